@@ -3,6 +3,7 @@ rem     Control.bat (opens the page in Internet Explorer, asks for IP address an
 rem     Control.bat firefox (opens the page in firefox, asks for IP address and network mask of the camera)
 rem     Control.bat firefox 192.168.0.1 (opens the page in firefox, doesn't ask for anything, assumes network mask /24)
 rem     Control.bat firefox 192.168.0.1 16 (opens the page in firefox, doesn't ask for anything, uses the given network mask /16)
+rem     Control.bat none 192.168.0.1 (doesn't open the page, the photobox connects to the camera on its own)
 rem
 rem For ease of use, you can make a shortcut to this .bat file that will launch it with your favorite parameters.
 
@@ -26,11 +27,11 @@ if not "%3"=="" (
 
 if "%ip%" == "" goto :noip
 
-start "" "%browser%" "file://%scriptdir%Control.html?ip=%ip%"
-start "" java -jar StreamViewer.jar %ip% %mask%
+if not "%browser%"=="none" start "" "%browser%" "file://%scriptdir%Control.html?ip=%ip%"
+start "" java --add-modules jdk.incubator.vector -jar StreamViewer.jar %ip% %mask%
 goto :eof
 
 :noip
-start "" "%browser%" "file://%scriptdir%Control.html"
-start "" java -jar StreamViewer.jar
+if not "%browser%"=="none" start "" "%browser%" "file://%scriptdir%Control.html"
+start "" java --add-modules jdk.incubator.vector -jar StreamViewer.jar
 
@@ -3,6 +3,7 @@
 #        Control.sh firefox (opens the page in firefox, asks for IP address and network mask of the camera)
 #        Control.sh firefox 192.168.0.1 (opens the page in firefox, doesn't ask for anything, assumes network mask /24)
 #        Control.sh firefox 192.168.0.1 16 (opens the page in firefox, doesn't ask for anything, uses the given network mask /16)
+#        Control.sh none 192.168.0.1 (doesn't open the page, the photobox connects to the camera on its own)
 
 browser=xdg-open
 ip=
@@ -24,14 +25,18 @@ fi
 
 function start_with_ip()
 {
-    "$browser" "file://${SCRIPT_DIR}/Control.html?ip=$ip" &
-    java -jar "${SCRIPT_DIR}/StreamViewer.jar" "$ip" "$mask"
+    if [[ "$browser" != "none" ]]; then
+        "$browser" "file://${SCRIPT_DIR}/Control.html?ip=$ip" &
+    fi
+    java --add-modules jdk.incubator.vector -jar "${SCRIPT_DIR}/StreamViewer.jar" "$ip" "$mask"
 }
 
 function start_without_ip()
 {
-    "$browser" "file://${SCRIPT_DIR}/Control.html" &
-    java -jar "${SCRIPT_DIR}/StreamViewer.jar"
+    if [[ "$browser" != "none" ]]; then
+        "$browser" "file://${SCRIPT_DIR}/Control.html" &
+    fi
+    java --add-modules jdk.incubator.vector -jar "${SCRIPT_DIR}/StreamViewer.jar"
 }
 
 if [[ "$ip" != "" ]]; then
@@ -4,6 +4,11 @@
 #define NUM_LEDS    16
 CRGB leds[NUM_LEDS];
 
+// Ambient mode: the host streams binary frames "0xFE, count, count * (R, G, B), XOR of the colour bytes"
+#define AMBIENT_MODE        5
+#define AMBIENT_FRAME_START 0xFE
+CRGB ambientTarget[NUM_LEDS];
+
 int brightness = 154;  // Initial brightness (0-255)
 int mode = 4;  
 
@@ -16,9 +21,13 @@ void pulseAnimation();
 void cameraShutterAnimation();
 void offMode();
 void chasingLight(CRGB);
+void readAmbientFrame();
+void resync();
+void ambientMode();
 
 void setup() {
-    Serial.begin(9600); 
+    Serial.begin(115200);  // Fast enough for ambient frames at 30 Hz
+    Serial.setTimeout(50);  // Don't block the animations for long on incomplete input
     FastLED.addLeds<WS2812B, LED_PIN>(leds, NUM_LEDS);  // Define the data pin as D6
     FastLED.setBrightness(brightness); // Set initial brightness
     FastLED.show(); 
@@ -26,8 +35,13 @@ void setup() {
 
 void loop() {
     if (Serial.available() > 0) {
-        String input = Serial.readStringUntil('\n');  // Read incoming serial data
-        parseCommand(input);  // Parse the received command
+        if (Serial.peek() == AMBIENT_FRAME_START) {
+            readAmbientFrame();
+        } else {
+            String input = Serial.readStringUntil('\n');  // Read incoming serial data
+            input.trim();  // The host starts each command with a newline, which leaves an empty line
+            parseCommand(input);  // Parse the received command
+        }
     }
 
     // Execute the current mode
@@ -47,6 +61,9 @@ void loop() {
         case 4:
             chasingLight(CRGB::White);
             break;
+        case AMBIENT_MODE:
+            ambientMode();
+            break;
     }
 
     FastLED.show();  // Update the LED strip
@@ -67,6 +84,57 @@ void parseCommand(String input) {
     }
 }
 
+void readAmbientFrame() {
+    Serial.read();  // Start byte
+    uint8_t header[1];
+    if (Serial.readBytes(header, 1) != 1 || header[0] != NUM_LEDS) {
+        resync();  // Unknown frame
+        return;
+    }
+
+    uint8_t payload[NUM_LEDS * 3 + 1];
+    if (Serial.readBytes(payload, sizeof(payload)) != sizeof(payload)) {
+        resync();
+        return;
+    }
+    uint8_t checksum = 0;
+    for (int i = 0; i < NUM_LEDS * 3; i++) {
+        checksum ^= payload[i];
+    }
+    if (checksum != payload[NUM_LEDS * 3]) {
+        // Bytes got lost, e.g. while FastLED.show() had the interrupts disabled, so the payload ran into what
+        // followed the frame
+        resync();
+        return;
+    }
+
+    for (int i = 0; i < NUM_LEDS; i++) {
+        ambientTarget[i] = CRGB(payload[i * 3], payload[i * 3 + 1], payload[i * 3 + 2]);
+    }
+}
+
+// Drop the rest of a damaged frame: everything up to the next frame start, or up to and including the next line end
+// that ends a command. A command damaged along the way is lost, the host sends it again if it is not confirmed.
+void resync() {
+    while (Serial.available() > 0) {
+        int next = Serial.peek();
+        if (next == AMBIENT_FRAME_START) {
+            return;
+        }
+        Serial.read();
+        if (next == '\n') {
+            return;
+        }
+    }
+}
+
+// Ambient mode (blend towards the colours sent by the host)
+void ambientMode() {
+    for (int i = 0; i < NUM_LEDS; i++) {
+        nblend(leds[i], ambientTarget[i], 64);
+    }
+}
+
 void offMode() {
     fill_solid(leds, NUM_LEDS, CRGB::Black);  // Set all LEDs to white
 }
@@ -0,0 +1,80 @@
+package streamviewer;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * Samples the colours along the edges of a frame for the ambient LED mode.
+ *
+ * The perimeter of the frame is split into one section per LED, starting in the top left corner and going clockwise.
+ * Each LED gets the average colour of a few strided samples taken along its section and a short way into the image.
+ * This touches a few hundred pixels per frame, regardless of the frame size.
+ */
+public class AmbientColorSampler {
+    private static final int SAMPLES_ALONG = 8;
+    private static final int SAMPLES_DEEP = 4;
+
+    /**
+     * @param image the frame
+     * @param ledCount number of LEDs on the ring
+     * @param rgb receives ledCount RGB triplets
+     */
+    public static void sampleEdges(BufferedImage image, int ledCount, byte[] rgb) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int perimeter = 2 * (width + height);
+        // How far into the image the samples reach
+        int depth = Math.max(1, Math.min(width, height) / 8);
+
+        for (int led = 0; led < ledCount; led++) {
+            long red = 0;
+            long green = 0;
+            long blue = 0;
+            int samples = 0;
+
+            for (int i = 0; i < SAMPLES_ALONG; i++) {
+                // Position on the perimeter, in the middle of each of the section's sub-ranges
+                int t = (int) (((long) led * SAMPLES_ALONG + i) * perimeter / ((long) ledCount * SAMPLES_ALONG)
+                        + perimeter / (2L * ledCount * SAMPLES_ALONG));
+
+                int x, y, inwardX, inwardY;
+                if (t < width) {                       // top edge, left to right
+                    x = t;
+                    y = 0;
+                    inwardX = 0;
+                    inwardY = 1;
+                } else if (t < width + height) {       // right edge, top to bottom
+                    x = width - 1;
+                    y = t - width;
+                    inwardX = -1;
+                    inwardY = 0;
+                } else if (t < 2 * width + height) {   // bottom edge, right to left
+                    x = width - 1 - (t - width - height);
+                    y = height - 1;
+                    inwardX = 0;
+                    inwardY = -1;
+                } else {                               // left edge, bottom to top
+                    x = 0;
+                    y = height - 1 - (t - 2 * width - height);
+                    inwardX = 1;
+                    inwardY = 0;
+                }
+
+                for (int d = 0; d < SAMPLES_DEEP; d++) {
+                    int offset = d * depth / SAMPLES_DEEP;
+                    int sampleX = Math.max(0, Math.min(width - 1, x + inwardX * offset));
+                    int sampleY = Math.max(0, Math.min(height - 1, y + inwardY * offset));
+                    // getRGB() keeps the image managed by Java2D, unlike grabbing its data buffer
+                    int pixel = image.getRGB(sampleX, sampleY);
+                    red += (pixel >> 16) & 0xFF;
+                    green += (pixel >> 8) & 0xFF;
+                    blue += pixel & 0xFF;
+                    samples++;
+                }
+            }
+
+            rgb[led * 3] = (byte) (red / samples);
+            rgb[led * 3 + 1] = (byte) (green / samples);
+            rgb[led * 3 + 2] = (byte) (blue / samples);
+        }
+    }
+}
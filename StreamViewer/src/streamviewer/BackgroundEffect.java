@@ -2,11 +2,14 @@ package streamviewer;
 
 import java.awt.*;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.Arrays;
 
 public abstract class BackgroundEffect {
     protected BufferedImage bufferedImage;
     protected int panelWidth;
     protected int panelHeight;
+    protected boolean reducedQuality = false;
 
     public void updateDimensions(int width, int height) {
         this.panelWidth = width;
@@ -17,6 +20,13 @@ public abstract class BackgroundEffect {
         this.bufferedImage = image;
     }
 
+    /**
+     * Let the effect look simpler to paint faster, see {@link RenderQualityGovernor}.
+     */
+    public void setReducedQuality(boolean reducedQuality) {
+        this.reducedQuality = reducedQuality;
+    }
+
     public abstract void render(Graphics2D g2d);
 
     public static class NoEffect extends BackgroundEffect {
@@ -34,6 +44,14 @@ public abstract class BackgroundEffect {
     }
 
     public static class ColorFadeEffect extends BackgroundEffect {
+        /**
+         * Width of the strips along the edges whose average colour is faded out, so that a single noisy pixel does
+         * not make the background flicker.
+         */
+        private static final int EDGE_STRIP = 8;
+
+        private int[] strip = new int[0];
+
         @Override
         public void render(Graphics2D g2d) {
             if (bufferedImage == null) return;
@@ -47,10 +65,12 @@ public abstract class BackgroundEffect {
             g2d.drawImage(bufferedImage, x, y, null);
 
             // Get edge colors
-            int leftColor = bufferedImage.getRGB(0, imageHeight / 2);
-            int rightColor = bufferedImage.getRGB(imageWidth - 1, imageHeight / 2);
-            int topColor = bufferedImage.getRGB(imageWidth / 2, 0);
-            int bottomColor = bufferedImage.getRGB(imageWidth / 2, imageHeight - 1);
+            int stripWidth = Math.min(EDGE_STRIP, imageWidth);
+            int stripHeight = Math.min(EDGE_STRIP, imageHeight);
+            int leftColor = edgeColor(0, 0, stripWidth, imageHeight);
+            int rightColor = edgeColor(imageWidth - stripWidth, 0, stripWidth, imageHeight);
+            int topColor = edgeColor(0, 0, imageWidth, stripHeight);
+            int bottomColor = edgeColor(0, imageHeight - stripHeight, imageWidth, stripHeight);
 
             // Create gradients for sides
             createHorizontalGradient(g2d, 0, y, x, imageHeight, rightColor, leftColor);
@@ -69,13 +89,32 @@ public abstract class BackgroundEffect {
             g2d.fillRect(x + imageWidth, y + imageHeight, panelWidth - (x + imageWidth), panelHeight - (y + imageHeight));
         }
 
+        private int edgeColor(int x, int y, int width, int height) {
+            if (strip.length < width * height) {
+                strip = new int[width * height];
+            }
+            bufferedImage.getRGB(x, y, width, height, strip, 0, width);
+            return PixelKernels.averageColor(strip, 0, width * height);
+        }
+
         private void createHorizontalGradient(Graphics2D g2d, int x, int y, int width, int height, int startColor, int endColor) {
+            if (reducedQuality) {
+                // A plain fill is much cheaper than a gradient
+                g2d.setColor(new Color(endColor));
+                g2d.fillRect(x, y, width, height);
+                return;
+            }
             GradientPaint gradient = new GradientPaint(x, y, new Color(startColor), x + width, y, new Color(endColor));
             g2d.setPaint(gradient);
             g2d.fillRect(x, y, width, height);
         }
 
         private void createVerticalGradient(Graphics2D g2d, int x, int y, int width, int height, int startColor, int endColor) {
+            if (reducedQuality) {
+                g2d.setColor(new Color(endColor));
+                g2d.fillRect(x, y, width, height);
+                return;
+            }
             GradientPaint gradient = new GradientPaint(x, y, new Color(startColor), x, y + height, new Color(endColor));
             g2d.setPaint(gradient);
             g2d.fillRect(x, y, width, height);
@@ -84,17 +123,32 @@ public abstract class BackgroundEffect {
 
     public static class ExtendedBackgroundEffect extends BackgroundEffect {
         private BufferedImage extendedBackground;
+        private boolean outdated = true;
+        private int[] temporary;
+        private int[] column = new int[0];
+        private int[] topRow = new int[0];
+        private int[] bottomRow = new int[0];
 
         @Override
         public void updateDimensions(int width, int height) {
             super.updateDimensions(width, height);
-            extendedBackground = null; // Reset the extended background when dimensions change
+            outdated = true; // Update the extended background when dimensions change
         }
 
         @Override
         public void setImage(BufferedImage image) {
+            if (image != bufferedImage) {
+                outdated = true; // Update the extended background when the image changes
+            }
             super.setImage(image);
-            extendedBackground = null; // Reset the extended background when the image changes
+        }
+
+        @Override
+        public void setReducedQuality(boolean reducedQuality) {
+            if (reducedQuality != this.reducedQuality) {
+                outdated = true;
+            }
+            super.setReducedQuality(reducedQuality);
         }
 
         @Override
@@ -113,7 +167,8 @@ public abstract class BackgroundEffect {
         }
 
         private void updateExtendedBackground() {
-            if (bufferedImage == null) return;
+            if (bufferedImage == null || !outdated || panelWidth <= 0 || panelHeight <= 0) return;
+            outdated = false;
 
             int imageWidth = bufferedImage.getWidth();
             int imageHeight = bufferedImage.getHeight();
@@ -121,54 +176,51 @@ public abstract class BackgroundEffect {
             // Create a new buffered image for the extended background if needed
             if (extendedBackground == null || extendedBackground.getWidth() != panelWidth || extendedBackground.getHeight() != panelHeight) {
                 extendedBackground = new BufferedImage(panelWidth, panelHeight, BufferedImage.TYPE_INT_RGB);
+                temporary = new int[panelWidth * panelHeight];
+                topRow = new int[panelWidth];
+                bottomRow = new int[panelWidth];
             }
-
-            Graphics2D g2d = extendedBackground.createGraphics();
+            if (column.length < imageHeight) {
+                column = new int[imageHeight];
+            }
+            int[] pixels = ((DataBufferInt) extendedBackground.getRaster().getDataBuffer()).getData();
+            int left = Math.max(0, (panelWidth - imageWidth) / 2);
+            int right = Math.min(panelWidth, (panelWidth + imageWidth) / 2);
 
             // Extend left and right
-            for (int y = 0; y < imageHeight; y++) {
-                int leftColor = bufferedImage.getRGB(0, y);
-                int rightColor = bufferedImage.getRGB(imageWidth - 1, y);
-
-                for (int x = 0; x < panelWidth; x++) {
-                    if (x < (panelWidth - imageWidth) / 2) {
-                        g2d.setColor(new Color(leftColor));
-                        g2d.drawLine(x, y, x, y);
-                    } else if (x >= (panelWidth + imageWidth) / 2) {
-                        g2d.setColor(new Color(rightColor));
-                        g2d.drawLine(x, y, x, y);
-                    }
-                }
+            int rows = Math.min(imageHeight, panelHeight);
+            bufferedImage.getRGB(0, 0, 1, rows, column, 0, 1);
+            for (int y = 0; y < rows; y++) {
+                Arrays.fill(pixels, y * panelWidth, y * panelWidth + left, column[y]);
+            }
+            bufferedImage.getRGB(imageWidth - 1, 0, 1, rows, column, 0, 1);
+            for (int y = 0; y < rows; y++) {
+                Arrays.fill(pixels, y * panelWidth + right, (y + 1) * panelWidth, column[y]);
             }
 
             // Extend top and bottom
-            for (int x = 0; x < panelWidth; x++) {
-                Color topColor, bottomColor;
-
-                if (x < (panelWidth - imageWidth) / 2) {
-                    topColor = new Color(bufferedImage.getRGB(0, 0));
-                    bottomColor = new Color(bufferedImage.getRGB(0, imageHeight - 1));
-                } else if (x >= (panelWidth + imageWidth) / 2) {
-                    topColor = new Color(bufferedImage.getRGB(imageWidth - 1, 0));
-                    bottomColor = new Color(bufferedImage.getRGB(imageWidth - 1, imageHeight - 1));
-                } else {
-                    int imageX = x - (panelWidth - imageWidth) / 2;
-                    topColor = new Color(bufferedImage.getRGB(imageX, 0));
-                    bottomColor = new Color(bufferedImage.getRGB(imageX, imageHeight - 1));
-                }
-
-                for (int y = 0; y < panelHeight; y++) {
-                    if (y < (panelHeight - imageHeight) / 2) {
-                        g2d.setColor(topColor);
-                        g2d.drawLine(x, y, x, y);
-                    } else if (y >= (panelHeight + imageHeight) / 2) {
-                        g2d.setColor(bottomColor);
-                        g2d.drawLine(x, y, x, y);
-                    }
-                }
+            int imageLeft = (panelWidth - imageWidth) / 2;
+            int from = Math.max(left, 0);
+            int to = Math.min(right, imageLeft + imageWidth);
+            if (to > from) {
+                bufferedImage.getRGB(from - imageLeft, 0, to - from, 1, topRow, from, panelWidth);
+                bufferedImage.getRGB(from - imageLeft, imageHeight - 1, to - from, 1, bottomRow, from, panelWidth);
+            }
+            Arrays.fill(topRow, 0, left, bufferedImage.getRGB(0, 0));
+            Arrays.fill(bottomRow, 0, left, bufferedImage.getRGB(0, imageHeight - 1));
+            Arrays.fill(topRow, right, panelWidth, bufferedImage.getRGB(imageWidth - 1, 0));
+            Arrays.fill(bottomRow, right, panelWidth, bufferedImage.getRGB(imageWidth - 1, imageHeight - 1));
+            for (int y = 0; y < (panelHeight - imageHeight) / 2; y++) {
+                System.arraycopy(topRow, 0, pixels, y * panelWidth, panelWidth);
+            }
+            for (int y = Math.max(0, (panelHeight + imageHeight) / 2); y < panelHeight; y++) {
+                System.arraycopy(bottomRow, 0, pixels, y * panelWidth, panelWidth);
             }
 
-            g2d.dispose();
+            // Soften the stripes of the extended edges, unless the paints have to be fast
+            if (!reducedQuality) {
+                PixelKernels.blur(pixels, temporary, panelWidth, panelHeight);
+            }
         }
     }
-}
\ No newline at end of file
+}
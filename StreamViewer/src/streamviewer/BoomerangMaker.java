@@ -0,0 +1,340 @@
+package streamviewer;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.IndexColorModel;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Turns the frames of the last seconds before a photo into a looping boomerang GIF: the frames forwards, then
+ * backwards.
+ *
+ * The work runs on a small fork/join pool of low priority daemon threads, so that it does not compete with the live
+ * view of the next guests: the frames are decoded and downscaled in parallel, a common 256 colour palette is built
+ * from their merged colour histograms, and the frames are mapped to it in parallel. Only writing the GIF is
+ * sequential.
+ */
+public class BoomerangMaker {
+    private static final int WIDTH = 480;
+    private static final int HEIGHT = 270;
+    private static final int PALETTE_SIZE = 256;
+    /**
+     * Colours are counted and looked up with 5 bits per channel.
+     */
+    private static final int HISTOGRAM_SIZE = 1 << 15;
+
+    private final ForkJoinPool pool;
+
+    public BoomerangMaker() {
+        int parallelism = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+        pool = new ForkJoinPool(parallelism, forkJoinPool -> {
+            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(forkJoinPool);
+            thread.setName("boomerang-" + thread.getPoolIndex());
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        }, null, false);
+    }
+
+    /**
+     * Create a boomerang in the background.
+     *
+     * @param frames the JPEG frames, oldest first
+     * @param frameDelayMs how long each frame is shown
+     * @param output the GIF file to write
+     * @return completes with the file once written
+     */
+    public CompletableFuture<File> create(List<byte[]> frames, int frameDelayMs, File output) {
+        return CompletableFuture.supplyAsync(() -> {
+            long start = System.nanoTime();
+            BufferedImage[] images = new BufferedImage[frames.size()];
+            pool.invoke(new DecodeTask(frames, images, 0, images.length));
+            BufferedImage[] decoded = Arrays.stream(images).filter(image -> image != null).toArray(BufferedImage[]::new);
+            if (decoded.length < 2) {
+                throw new IllegalStateException("Not enough frames for a boomerang: " + decoded.length);
+            }
+
+            int[] histogram = pool.invoke(new HistogramTask(decoded, 0, decoded.length));
+            int[] palette = createPalette(histogram);
+            IndexColorModel colorModel = createColorModel(palette);
+            byte[] lookup = new byte[HISTOGRAM_SIZE];
+            pool.invoke(new LookupTask(palette, lookup, 0, HISTOGRAM_SIZE));
+
+            BufferedImage[] quantized = new BufferedImage[decoded.length];
+            pool.invoke(new QuantizeTask(decoded, quantized, lookup, colorModel, 0, decoded.length));
+
+            try {
+                writeGif(quantized, frameDelayMs, output);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            Metrics.record("boomerang.createMs", (System.nanoTime() - start) / 1_000_000);
+            return output;
+        }, pool);
+    }
+
+    public void shutdown() {
+        pool.shutdownNow();
+    }
+
+    private static class DecodeTask extends RecursiveAction {
+        private final List<byte[]> frames;
+        private final BufferedImage[] images;
+        private final int from;
+        private final int to;
+
+        DecodeTask(List<byte[]> frames, BufferedImage[] images, int from, int to) {
+            this.frames = frames;
+            this.images = images;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > 1) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new DecodeTask(frames, images, from, middle), new DecodeTask(frames, images, middle, to));
+                return;
+            }
+            try {
+                // Subsampled while decoding, the rest is scaled smoothly
+                BufferedImage image = ThumbnailCache.decodeSubsampled(frames.get(from), WIDTH, HEIGHT);
+                images[from] = image != null ? ThumbnailCache.scaleToFit(image, WIDTH, HEIGHT) : null;
+            } catch (IOException e) {
+                System.err.println("Skipping undecodable boomerang frame: " + e.getMessage());
+            }
+        }
+    }
+
+    private static class HistogramTask extends RecursiveTask<int[]> {
+        private final BufferedImage[] images;
+        private final int from;
+        private final int to;
+
+        HistogramTask(BufferedImage[] images, int from, int to) {
+            this.images = images;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected int[] compute() {
+            if (to - from > 1) {
+                int middle = (from + to) >>> 1;
+                HistogramTask right = new HistogramTask(images, middle, to);
+                right.fork();
+                int[] histogram = new HistogramTask(images, from, middle).compute();
+                int[] rightHistogram = right.join();
+                for (int i = 0; i < HISTOGRAM_SIZE; i++) {
+                    histogram[i] += rightHistogram[i];
+                }
+                return histogram;
+            }
+            int[] histogram = new int[HISTOGRAM_SIZE];
+            BufferedImage image = images[from];
+            int[] pixels = image.getRGB(0, 0, image.getWidth(), image.getHeight(), null, 0, image.getWidth());
+            for (int pixel : pixels) {
+                histogram[toBucket(pixel)]++;
+            }
+            return histogram;
+        }
+    }
+
+    private static class LookupTask extends RecursiveAction {
+        private final int[] palette;
+        private final byte[] lookup;
+        private final int from;
+        private final int to;
+
+        LookupTask(int[] palette, byte[] lookup, int from, int to) {
+            this.palette = palette;
+            this.lookup = lookup;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > 2048) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new LookupTask(palette, lookup, from, middle), new LookupTask(palette, lookup, middle, to));
+                return;
+            }
+            for (int bucket = from; bucket < to; bucket++) {
+                int color = fromBucket(bucket);
+                int best = 0;
+                int bestDistance = Integer.MAX_VALUE;
+                for (int i = 0; i < palette.length; i++) {
+                    int distance = distance(color, palette[i]);
+                    if (distance < bestDistance) {
+                        bestDistance = distance;
+                        best = i;
+                    }
+                }
+                lookup[bucket] = (byte) best;
+            }
+        }
+    }
+
+    private static class QuantizeTask extends RecursiveAction {
+        private final BufferedImage[] images;
+        private final BufferedImage[] quantized;
+        private final byte[] lookup;
+        private final IndexColorModel colorModel;
+        private final int from;
+        private final int to;
+
+        QuantizeTask(BufferedImage[] images, BufferedImage[] quantized, byte[] lookup, IndexColorModel colorModel,
+                int from, int to) {
+            this.images = images;
+            this.quantized = quantized;
+            this.lookup = lookup;
+            this.colorModel = colorModel;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > 1) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new QuantizeTask(images, quantized, lookup, colorModel, from, middle),
+                        new QuantizeTask(images, quantized, lookup, colorModel, middle, to));
+                return;
+            }
+            BufferedImage image = images[from];
+            int width = image.getWidth();
+            int height = image.getHeight();
+            int[] pixels = image.getRGB(0, 0, width, height, null, 0, width);
+            BufferedImage indexed = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_INDEXED, colorModel);
+            byte[] indices = ((DataBufferByte) indexed.getRaster().getDataBuffer()).getData();
+            for (int i = 0; i < pixels.length; i++) {
+                indices[i] = lookup[toBucket(pixels[i])];
+            }
+            quantized[from] = indexed;
+        }
+    }
+
+    /**
+     * The most frequent colours (popularity algorithm), padded with black if the frames have fewer colours.
+     */
+    private static int[] createPalette(int[] histogram) {
+        Integer[] buckets = new Integer[HISTOGRAM_SIZE];
+        for (int i = 0; i < HISTOGRAM_SIZE; i++) {
+            buckets[i] = i;
+        }
+        Arrays.sort(buckets, (a, b) -> Integer.compare(histogram[b], histogram[a]));
+        int[] palette = new int[PALETTE_SIZE];
+        for (int i = 0; i < PALETTE_SIZE; i++) {
+            palette[i] = histogram[buckets[i]] > 0 ? fromBucket(buckets[i]) : 0;
+        }
+        return palette;
+    }
+
+    private static IndexColorModel createColorModel(int[] palette) {
+        byte[] red = new byte[PALETTE_SIZE];
+        byte[] green = new byte[PALETTE_SIZE];
+        byte[] blue = new byte[PALETTE_SIZE];
+        for (int i = 0; i < PALETTE_SIZE; i++) {
+            red[i] = (byte) (palette[i] >> 16);
+            green[i] = (byte) (palette[i] >> 8);
+            blue[i] = (byte) palette[i];
+        }
+        return new IndexColorModel(8, PALETTE_SIZE, red, green, blue);
+    }
+
+    private static int toBucket(int rgb) {
+        return ((rgb >> 9) & 0x7C00) | ((rgb >> 6) & 0x03E0) | ((rgb >> 3) & 0x001F);
+    }
+
+    /**
+     * @return the colour in the middle of the bucket
+     */
+    private static int fromBucket(int bucket) {
+        int red = ((bucket >> 10) & 0x1F) << 3 | 4;
+        int green = ((bucket >> 5) & 0x1F) << 3 | 4;
+        int blue = (bucket & 0x1F) << 3 | 4;
+        return (red << 16) | (green << 8) | blue;
+    }
+
+    private static int distance(int rgb1, int rgb2) {
+        int red = ((rgb1 >> 16) & 0xFF) - ((rgb2 >> 16) & 0xFF);
+        int green = ((rgb1 >> 8) & 0xFF) - ((rgb2 >> 8) & 0xFF);
+        int blue = (rgb1 & 0xFF) - (rgb2 & 0xFF);
+        // Weighted by the eye's sensitivity
+        return 2 * red * red + 4 * green * green + 3 * blue * blue;
+    }
+
+    /**
+     * Write the frames forwards and then backwards, without repeating the first and last frame, looping forever.
+     */
+    private static void writeGif(BufferedImage[] frames, int frameDelayMs, File output) throws IOException {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("gif").next();
+        try (ImageOutputStream out = ImageIO.createImageOutputStream(output)) {
+            writer.setOutput(out);
+            writer.prepareWriteSequence(null);
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            for (int i = 0; i < 2 * frames.length - 2; i++) {
+                BufferedImage frame = frames[i < frames.length ? i : 2 * frames.length - 2 - i];
+                IIOMetadata metadata = writer.getDefaultImageMetadata(new ImageTypeSpecifier(frame), param);
+                configureFrame(metadata, frameDelayMs, i == 0);
+                writer.writeToSequence(new IIOImage(frame, null, metadata), param);
+            }
+            writer.endWriteSequence();
+        } finally {
+            writer.dispose();
+        }
+    }
+
+    private static void configureFrame(IIOMetadata metadata, int frameDelayMs, boolean first) throws IOException {
+        String format = metadata.getNativeMetadataFormatName();
+        IIOMetadataNode root = (IIOMetadataNode) metadata.getAsTree(format);
+
+        IIOMetadataNode control = getOrCreateChild(root, "GraphicControlExtension");
+        control.setAttribute("disposalMethod", "none");
+        control.setAttribute("userInputFlag", "FALSE");
+        control.setAttribute("transparentColorFlag", "FALSE");
+        control.setAttribute("delayTime", Integer.toString(Math.max(2, frameDelayMs / 10)));
+        control.setAttribute("transparentColorIndex", "0");
+
+        if (first) {
+            // NETSCAPE2.0 extension: loop forever
+            IIOMetadataNode applicationExtensions = getOrCreateChild(root, "ApplicationExtensions");
+            IIOMetadataNode loop = new IIOMetadataNode("ApplicationExtension");
+            loop.setAttribute("applicationID", "NETSCAPE");
+            loop.setAttribute("authenticationCode", "2.0");
+            loop.setUserObject(new byte[]{1, 0, 0});
+            applicationExtensions.appendChild(loop);
+        }
+        metadata.setFromTree(format, root);
+    }
+
+    private static IIOMetadataNode getOrCreateChild(IIOMetadataNode parent, String name) {
+        for (int i = 0; i < parent.getLength(); i++) {
+            if (parent.item(i).getNodeName().equals(name)) {
+                return (IIOMetadataNode) parent.item(i);
+            }
+        }
+        IIOMetadataNode child = new IIOMetadataNode(name);
+        parent.appendChild(child);
+        return child;
+    }
+}
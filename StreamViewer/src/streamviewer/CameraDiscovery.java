@@ -0,0 +1,273 @@
+package streamviewer;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.InterfaceAddress;
+import java.net.MulticastSocket;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Finds a Lumix camera on the local networks, so that its IP address does not have to be typed in.
+ *
+ * Three sources of candidates are probed at the same time, in this order: the camera found by the previous run (kept
+ * in a small cache file), the devices answering an SSDP (UPnP) search, and every address of the subnets of all local
+ * interfaces, at most the /24 around the interface's own address. A candidate is a camera if it answers
+ * cam.cgi?mode=getstate with a camrply document. The probes run on a bounded pool with short timeouts, so a /24 is
+ * covered in a few hundred milliseconds; the first camera found wins and the remaining probes are abandoned.
+ *
+ * The HTTP port and the SSDP target can be changed, so that discovery can be tried against local stand-ins for a
+ * camera.
+ */
+public class CameraDiscovery {
+    public static final File DEFAULT_CACHE_FILE = new File(System.getProperty("user.home"), ".lumix-photobox-camera");
+
+    private static final InetSocketAddress SSDP_TARGET = new InetSocketAddress("239.255.255.250", 1900);
+    private static final String SSDP_SEARCH = "M-SEARCH * HTTP/1.1\r\n"
+            + "HOST: 239.255.255.250:1900\r\n"
+            + "MAN: \"ssdp:discover\"\r\n"
+            + "MX: 1\r\n"
+            + "ST: urn:schemas-upnp-org:device:MediaServer:1\r\n\r\n";
+
+    private static final int PROBE_THREADS = 128;
+    private static final int PROBE_CONNECT_TIMEOUT_MS = 200;
+    /**
+     * Once connected, give a busy camera a bit longer to answer.
+     */
+    private static final int PROBE_READ_TIMEOUT_MS = 500;
+    /**
+     * Larger subnets are only probed in the /24 around the local address.
+     */
+    private static final int MIN_PROBED_PREFIX = 24;
+
+    /**
+     * A camera found by the discovery.
+     *
+     * @param ip IPv4 address of the camera.
+     * @param netMaskBitSize Size of the subnet's bitmask of the network the camera was found in.
+     */
+    public record Camera(String ip, int netMaskBitSize) {
+    }
+
+    private final File cacheFile;
+    private final int httpPort;
+    private final InetSocketAddress ssdpTarget;
+
+    public CameraDiscovery(File cacheFile) {
+        this(cacheFile, 80, SSDP_TARGET);
+    }
+
+    /**
+     * @param cacheFile File remembering the last camera found, may be null.
+     * @param httpPort Port of the camera's cam.cgi interface.
+     * @param ssdpTarget Where the SSDP search is sent to, the SSDP multicast group for real cameras.
+     */
+    public CameraDiscovery(File cacheFile, int httpPort, InetSocketAddress ssdpTarget) {
+        this.cacheFile = cacheFile;
+        this.httpPort = httpPort;
+        this.ssdpTarget = ssdpTarget;
+    }
+
+    /**
+     * Search for a camera.
+     *
+     * @param timeoutMs The maximum time to search.
+     * @return The first camera found, or null if none answered in time.
+     */
+    public Camera discover(long timeoutMs) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        CompletableFuture<Camera> found = new CompletableFuture<>();
+        Set<String> probed = ConcurrentHashMap.newKeySet();
+        ExecutorService probeExecutor = Executors.newFixedThreadPool(PROBE_THREADS, runnable -> {
+            Thread thread = new Thread(runnable, "camera-discovery");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        try {
+            List<InterfaceAddress> localAddresses = NetUtil.findLocalIpv4Addresses();
+
+            // The last camera is queued first, the probe pool runs the probes in order
+            Camera cached = readCache();
+            if (cached != null) {
+                probe(cached, probeExecutor, found, probed);
+            }
+
+            Thread ssdpThread = new Thread(() -> searchSsdp(localAddresses, deadline, found, probed),
+                    "camera-discovery-ssdp");
+            ssdpThread.setDaemon(true);
+            ssdpThread.start();
+
+            for (InterfaceAddress localAddress : localAddresses) {
+                probeSubnet(localAddress, probeExecutor, found, probed);
+            }
+
+            long remainingNanos = deadline - System.nanoTime();
+            Camera camera = found.get(Math.max(0, remainingNanos), TimeUnit.NANOSECONDS);
+            ssdpThread.interrupt();
+            System.out.println("Found camera " + camera.ip() + "/" + camera.netMaskBitSize() + " after probing "
+                    + probed.size() + " addresses");
+            writeCache(camera);
+            return camera;
+        } catch (TimeoutException e) {
+            System.out.println("No camera found within " + timeoutMs + " ms, probed " + probed.size() + " addresses");
+            return null;
+        } catch (SocketException | ExecutionException e) {
+            System.err.println("Camera discovery failed: " + e.getMessage());
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } finally {
+            // Complete the future so that queued probes return at once
+            found.complete(null);
+            probeExecutor.shutdownNow();
+        }
+    }
+
+    private void probeSubnet(InterfaceAddress localAddress, ExecutorService probeExecutor,
+            CompletableFuture<Camera> found, Set<String> probed) {
+        int prefix = Math.max(localAddress.getNetworkPrefixLength(), MIN_PROBED_PREFIX);
+        if (prefix >= 31) {
+            return; // Point to point link, no other hosts
+        }
+        int localIp = NetUtil.inetAddrToInt(localAddress.getAddress());
+        int netMask = -1 << (32 - prefix);
+        int network = localIp & netMask;
+        int broadcast = network | ~netMask;
+        for (int ip = network + 1; ip < broadcast; ip++) {
+            if (ip != localIp) {
+                probe(new Camera(NetUtil.intToIpString(ip), localAddress.getNetworkPrefixLength()),
+                        probeExecutor, found, probed);
+            }
+        }
+    }
+
+    private void searchSsdp(List<InterfaceAddress> localAddresses, long deadline, CompletableFuture<Camera> found,
+            Set<String> probed) {
+        byte[] search = SSDP_SEARCH.getBytes(StandardCharsets.US_ASCII);
+        try (MulticastSocket socket = new MulticastSocket(0)) {
+            DatagramPacket request = new DatagramPacket(search, search.length, ssdpTarget);
+            if (ssdpTarget.getAddress().isMulticastAddress()) {
+                // Send the search out of every interface, not only the one of the default route
+                for (InterfaceAddress localAddress : localAddresses) {
+                    try {
+                        socket.setNetworkInterface(NetworkInterface.getByInetAddress(localAddress.getAddress()));
+                        socket.send(request);
+                    } catch (IOException e) {
+                        System.out.println("SSDP search via " + localAddress.getAddress() + " failed: " + e.getMessage());
+                    }
+                }
+            } else {
+                socket.send(request);
+            }
+
+            byte[] buffer = new byte[2048];
+            DatagramPacket response = new DatagramPacket(buffer, buffer.length);
+            while (!found.isDone()) {
+                long remainingMs = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (remainingMs <= 0) {
+                    return;
+                }
+                socket.setSoTimeout((int) remainingMs);
+                try {
+                    socket.receive(response);
+                } catch (SocketTimeoutException e) {
+                    return;
+                }
+                // Probed right here instead of queued behind the subnet probes
+                InetAddress responder = response.getAddress();
+                if (probed.add(responder.getHostAddress())) {
+                    check(new Camera(responder.getHostAddress(), prefixOf(responder, localAddresses)), found);
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("SSDP search failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return The prefix length of the local network the address lies in, or 24 if it lies in none of them.
+     */
+    private static int prefixOf(InetAddress address, List<InterfaceAddress> localAddresses) {
+        int ip = NetUtil.inetAddrToInt(address);
+        for (InterfaceAddress localAddress : localAddresses) {
+            int prefix = localAddress.getNetworkPrefixLength();
+            if (NetUtil.isInSameSubnet(ip, NetUtil.inetAddrToInt(localAddress.getAddress()), prefix)) {
+                return prefix;
+            }
+        }
+        return 24;
+    }
+
+    private void probe(Camera candidate, ExecutorService probeExecutor, CompletableFuture<Camera> found,
+            Set<String> probed) {
+        if (found.isDone() || !probed.add(candidate.ip())) {
+            return;
+        }
+        try {
+            probeExecutor.execute(() -> check(candidate, found));
+        } catch (RejectedExecutionException e) {
+            // Discovery already finished
+        }
+    }
+
+    /**
+     * Complete found with the candidate if it answers like a camera.
+     */
+    private void check(Camera candidate, CompletableFuture<Camera> found) {
+        if (found.isDone()) {
+            return;
+        }
+        String host = httpPort == 80 ? candidate.ip() : candidate.ip() + ":" + httpPort;
+        try {
+            String response = CameraHttp.request(host, "mode=getstate", PROBE_CONNECT_TIMEOUT_MS,
+                    PROBE_READ_TIMEOUT_MS);
+            if (response.contains("<camrply>")) {
+                found.complete(candidate);
+            }
+        } catch (IOException e) {
+            // Nothing there, or not a camera
+        }
+    }
+
+    private Camera readCache() {
+        if (cacheFile == null || !cacheFile.isFile()) {
+            return null;
+        }
+        try {
+            String[] parts = Files.readString(cacheFile.toPath(), StandardCharsets.UTF_8).trim().split("/");
+            return new Camera(parts[0], parts.length > 1 ? Integer.parseInt(parts[1]) : 24);
+        } catch (IOException | NumberFormatException e) {
+            System.err.println("Failed to read " + cacheFile + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    private void writeCache(Camera camera) {
+        if (cacheFile == null) {
+            return;
+        }
+        try {
+            Files.writeString(cacheFile.toPath(), camera.ip() + "/" + camera.netMaskBitSize(), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            System.err.println("Failed to write " + cacheFile + ": " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package streamviewer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Requests to the camera's cam.cgi control interface.
+ */
+public class CameraHttp {
+
+    /**
+     * Send a cam.cgi request and return the response body.
+     *
+     * @param cameraIp IP address of the camera.
+     * @param query The query string, e.g. "mode=getstate".
+     * @param timeoutMs Connect and read timeout in milliseconds.
+     * @return The response body.
+     * @throws IOException On network errors or if the camera does not answer with HTTP 200.
+     */
+    public static String request(String cameraIp, String query, int timeoutMs) throws IOException {
+        return request(cameraIp, query, timeoutMs, timeoutMs);
+    }
+
+    /**
+     * Send a cam.cgi request and return the response body.
+     *
+     * @param cameraIp IP address of the camera, optionally followed by ":port".
+     * @param query The query string, e.g. "mode=getstate".
+     * @param connectTimeoutMs Connect timeout in milliseconds.
+     * @param readTimeoutMs Read timeout in milliseconds.
+     * @return The response body.
+     * @throws IOException On network errors or if the camera does not answer with HTTP 200.
+     */
+    public static String request(String cameraIp, String query, int connectTimeoutMs, int readTimeoutMs)
+            throws IOException {
+        URL url = new URL("http://" + cameraIp + "/cam.cgi?" + query);
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setRequestMethod("GET");
+        connection.setConnectTimeout(connectTimeoutMs);
+        connection.setReadTimeout(readTimeoutMs);
+
+        try {
+            int responseCode = connection.getResponseCode();
+            if (responseCode != HttpURLConnection.HTTP_OK) {
+                throw new IOException("Camera answered " + query + " with response code " + responseCode);
+            }
+            try (InputStream in = connection.getInputStream()) {
+                ByteArrayOutputStream body = new ByteArrayOutputStream(512);
+                in.transferTo(body);
+                return body.toString(StandardCharsets.UTF_8);
+            }
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * Send a cam.cgi command and check that the camera accepted it.
+     *
+     * @param cameraIp IP address of the camera.
+     * @param query The query string, e.g. "mode=camcmd&value=recmode".
+     * @param timeoutMs Connect and read timeout in milliseconds.
+     * @throws IOException On network errors or if the camera rejected the command.
+     */
+    public static void command(String cameraIp, String query, int timeoutMs) throws IOException {
+        String response = request(cameraIp, query, timeoutMs);
+        if (!isOk(response)) {
+            throw new IOException("Camera rejected " + query + ": " + response.trim());
+        }
+    }
+
+    /**
+     * @param response A cam.cgi response body.
+     * @return Whether the response reports success. Most commands answer with an XML {@code <result>ok</result>},
+     * some with a plain text line starting with "ok".
+     */
+    public static boolean isOk(String response) {
+        return response.contains("<result>ok</result>") || response.trim().startsWith("ok");
+    }
+}
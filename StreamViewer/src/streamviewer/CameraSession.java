@@ -0,0 +1,135 @@
+package streamviewer;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the camera connected and streaming, which used to be done by the JavaScript in Control.html.
+ *
+ * Opening the session requests remote access (accctrl), switches the camera to recording mode and asks it to stream
+ * the live view to the local UDP port. Afterwards a keep-alive request is sent every 10 seconds; without it the
+ * camera stops streaming. If the camera stops answering, the whole handshake is repeated until it succeeds again.
+ * All requests run in a child of the given scope; closing the session cancels the one in progress.
+ */
+public class CameraSession {
+    private static final long KEEP_ALIVE_INTERVAL_MS = 10000;
+    private static final long RETRY_INTERVAL_MS = 2000;
+    private static final int REQUEST_TIMEOUT_MS = 3000;
+    private static final int MAX_KEEP_ALIVE_FAILURES = 3;
+
+    private final String cameraIp;
+    private final int streamPort;
+    private final IoRuntime.Scope scope;
+
+    private volatile boolean isOpen = false;
+    private volatile boolean isStreaming = false;
+    private IoRuntime.ScheduledTask nextTask;
+    private int keepAliveFailures = 0;
+
+    /**
+     * @param cameraIp IP address of the camera.
+     * @param streamPort The local UDP port the camera should stream the live view to.
+     * @param scope The scope to run the camera requests in.
+     */
+    public CameraSession(String cameraIp, int streamPort, IoRuntime.Scope scope) {
+        this.cameraIp = cameraIp;
+        this.streamPort = streamPort;
+        this.scope = scope.openScope("camera-session");
+    }
+
+    /**
+     * Start connecting to the camera in the background.
+     */
+    public void open() {
+        if (!isOpen) {
+            isOpen = true;
+            schedule(this::connect, 0);
+        }
+    }
+
+    /**
+     * Stop the keep-alive and ask the camera to stop streaming.
+     */
+    public void close() {
+        if (!isOpen) {
+            return;
+        }
+        isOpen = false;
+        scope.close();
+        if (isStreaming) {
+            isStreaming = false;
+            // Not in the session's scope, which no longer takes tasks, nor in the camera scope, which a mode switch
+            // closes right away
+            IoRuntime.root().execute(() -> {
+                try {
+                    CameraHttp.request(cameraIp, "mode=stopstream", REQUEST_TIMEOUT_MS);
+                } catch (IOException e) {
+                    System.out.println("Failed to stop the camera stream: " + e.getMessage());
+                }
+            });
+        }
+    }
+
+    /**
+     * Ask the camera to start streaming again, e.g. after the stream stalled. Returns immediately.
+     */
+    public void restartStream() {
+        if (!isOpen) {
+            return;
+        }
+        scope.execute(() -> {
+            try {
+                CameraHttp.command(cameraIp, "mode=startstream&value=" + streamPort, REQUEST_TIMEOUT_MS);
+            } catch (IOException e) {
+                System.out.println("Restarting the camera stream failed: " + e.getMessage());
+            }
+        });
+    }
+
+    /**
+     * @return Whether the camera has confirmed that it streams to us.
+     */
+    public boolean isStreaming() {
+        return isStreaming;
+    }
+
+    private void connect() {
+        try {
+            CameraHttp.command(cameraIp, "mode=accctrl&type=req_acc&value=0&value2=Lumix%20Link%20Desktop", REQUEST_TIMEOUT_MS);
+            CameraHttp.command(cameraIp, "mode=camcmd&value=recmode", REQUEST_TIMEOUT_MS);
+            CameraHttp.command(cameraIp, "mode=startstream&value=" + streamPort, REQUEST_TIMEOUT_MS);
+            System.out.println("Camera " + cameraIp + " is streaming to port " + streamPort);
+            isStreaming = true;
+            keepAliveFailures = 0;
+            schedule(this::keepAlive, KEEP_ALIVE_INTERVAL_MS);
+        } catch (IOException e) {
+            // e.g. err_unsuitable_app until the connection is confirmed on the camera
+            System.out.println("Connecting to camera " + cameraIp + " failed: " + e.getMessage());
+            isStreaming = false;
+            schedule(this::connect, RETRY_INTERVAL_MS);
+        }
+    }
+
+    private void keepAlive() {
+        try {
+            CameraHttp.request(cameraIp, "mode=getstate", REQUEST_TIMEOUT_MS);
+            keepAliveFailures = 0;
+            schedule(this::keepAlive, KEEP_ALIVE_INTERVAL_MS);
+        } catch (IOException e) {
+            keepAliveFailures++;
+            System.out.println("Camera keep-alive failed (" + keepAliveFailures + "): " + e.getMessage());
+            if (keepAliveFailures >= MAX_KEEP_ALIVE_FAILURES) {
+                isStreaming = false;
+                schedule(this::connect, RETRY_INTERVAL_MS);
+            } else {
+                schedule(this::keepAlive, RETRY_INTERVAL_MS);
+            }
+        }
+    }
+
+    private synchronized void schedule(Runnable task, long delayMs) {
+        if (isOpen) {
+            nextTask = scope.schedule(task, delayMs, TimeUnit.MILLISECONDS);
+        }
+    }
+}
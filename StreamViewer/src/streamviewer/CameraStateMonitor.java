@@ -1,24 +1,33 @@
 package streamviewer;
 
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
+import java.io.IOException;
+import java.io.InputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
+import java.util.Arrays;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 import javax.swing.SwingUtilities;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.NodeList;
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import java.io.ByteArrayInputStream;
-import java.nio.charset.StandardCharsets;
 
+/**
+ * Polls the camera's state (battery, SD card, remaining images) and reports changes to the listener.
+ *
+ * The polling interval adapts to the situation: the camera is polled rarely while everything is fine, quickly after
+ * a failed request (backing off while the camera stays unreachable) and quickly for a few polls right after a photo
+ * was taken, when the remaining capacity changes. The listener is only called on the EDT when a value actually
+ * changed, so steady state polling costs neither Wi-Fi bandwidth nor EDT time that the live view needs.
+ *
+ * The requests run in a child of the camera scope of {@link IoRuntime}, which {@link #stop()} closes.
+ */
 public class CameraStateMonitor {
+    private static final long HEALTHY_INTERVAL_MS = 15000;
+    private static final long ERROR_INTERVAL_MS = 2000;
+    private static final long MAX_ERROR_INTERVAL_MS = 10000;
+    private static final long CAPTURE_INTERVAL_MS = 1000;
+    private static final int POLLS_AFTER_CAPTURE = 5;
+
     private final String cameraIp;
-    private final ScheduledExecutorService scheduler;
+    protected final IoRuntime.Scope scope;
     private final CameraStateUpdateListener updateListener;
 
     private String batteryStatus = "Unknown";
@@ -26,80 +35,178 @@ public class CameraStateMonitor {
     private String remainingImages = "Unknown";
     private String errorMessage = null;
 
-    private boolean isRunning = false;
+    private volatile boolean isRunning = false;
+    private IoRuntime.ScheduledTask nextPoll;
+    /**
+     * Keeps a poll started early, e.g. after a capture, from running alongside one still waiting for its response.
+     */
+    private final ReentrantLock pollLock = new ReentrantLock();
+    private int consecutiveErrors = 0;
+    private int remainingCapturePolls = 0;
+    private State lastReported;
+
+    private record State(String batteryStatus, String sdCardStatus, String remainingImages, String errorMessage) {
+    }
+
+    private final XmlPullParser parser = new XmlPullParser();
+    private byte[] responseBuffer = new byte[2048];
 
     public CameraStateMonitor(Options options, CameraStateUpdateListener updateListener) {
         this.cameraIp = options.getCameraIp();
         this.updateListener = updateListener;
-        this.scheduler = Executors.newScheduledThreadPool(1);
+        this.scope = IoRuntime.camera().openScope("camera-state");
     }
 
     public void start() {
         if (!isRunning) {
             isRunning = true;
-            scheduler.scheduleAtFixedRate(this::checkCameraState, 0, 10, TimeUnit.SECONDS);
+            schedulePoll(0);
         }
     }
 
     public void stop() {
         if (isRunning) {
             isRunning = false;
-            scheduler.shutdown();
+            scope.close();
+        }
+    }
+
+    /**
+     * Tell the monitor that a photo has just been taken, so that it polls more often for a while.
+     */
+    public void notifyCapture() {
+        if (!isRunning) {
+            return;
         }
+        scope.execute(() -> {
+            remainingCapturePolls = POLLS_AFTER_CAPTURE;
+            schedulePoll(CAPTURE_INTERVAL_MS);
+        });
+    }
+
+    private synchronized void schedulePoll(long delayMs) {
+        if (!isRunning) {
+            return;
+        }
+        if (nextPoll != null) {
+            nextPoll.cancel(false);
+        }
+        nextPoll = scope.schedule(this::checkCameraState, delayMs, TimeUnit.MILLISECONDS);
     }
 
     private void checkCameraState() {
+        pollLock.lock();
         try {
-            String response = sendRequest();
-            parseResponse(response);
-            errorMessage = null;
-        } catch (Exception e) {
-            errorMessage = "Error connecting to camera: " + e.getMessage();
+            try {
+                int length = sendRequest();
+                parseResponse(length);
+                errorMessage = null;
+                consecutiveErrors = 0;
+            } catch (Exception e) {
+                if (!isRunning) {
+                    return; // Interrupted by stop()
+                }
+                errorMessage = "Error connecting to camera: " + e.getMessage();
+                consecutiveErrors++;
+            }
+
+            reportIfChanged();
+            schedulePoll(nextInterval());
+        } finally {
+            pollLock.unlock();
         }
+    }
+
+    private long nextInterval() {
+        if (consecutiveErrors > 0) {
+            return Math.min(MAX_ERROR_INTERVAL_MS, ERROR_INTERVAL_MS << Math.min(consecutiveErrors - 1, 8));
+        }
+        if (remainingCapturePolls > 0) {
+            remainingCapturePolls--;
+            return CAPTURE_INTERVAL_MS;
+        }
+        return HEALTHY_INTERVAL_MS;
+    }
+
+    private void reportIfChanged() {
+        String battery = batteryStatus;
+        String sdCard = sdCardStatus;
+        String remaining = remainingImages;
+        String error = errorMessage;
+        boolean lowBattery = isLowBattery();
+        boolean noSdCard = isNoSdCard();
+
+        State state = new State(battery, sdCard, remaining, error);
+        if (state.equals(lastReported)) {
+            return;
+        }
+        lastReported = state;
+
         SwingUtilities.invokeLater(() -> {
-            updateListener.onCameraStateUpdate(batteryStatus, sdCardStatus, remainingImages, errorMessage, isLowBattery(), isNoSdCard());
+            updateListener.onCameraStateUpdate(battery, sdCard, remaining, error, lowBattery, noSdCard);
         });
     }
 
-    private String sendRequest() throws Exception {
+    /**
+     * Read the getstate response into the reused response buffer.
+     *
+     * @return number of bytes read
+     */
+    private int sendRequest() throws IOException {
         URL url = new URL("http://" + cameraIp + "/cam.cgi?mode=getstate");
         HttpURLConnection connection = (HttpURLConnection) url.openConnection();
         connection.setRequestMethod("GET");
         connection.setConnectTimeout(5000);
         connection.setReadTimeout(5000);
 
-        try (BufferedReader in = new BufferedReader(new InputStreamReader(connection.getInputStream()))) {
-            StringBuilder response = new StringBuilder();
-            String inputLine;
-            while ((inputLine = in.readLine()) != null) {
-                response.append(inputLine);
+        try (InputStream in = connection.getInputStream()) {
+            int length = 0;
+            int read;
+            while ((read = in.read(responseBuffer, length, responseBuffer.length - length)) != -1) {
+                length += read;
+                if (length == responseBuffer.length) {
+                    responseBuffer = Arrays.copyOf(responseBuffer, responseBuffer.length * 2);
+                }
             }
-            return response.toString();
+            return length;
         }
     }
 
-    private void parseResponse(String response) throws Exception {
-        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-        DocumentBuilder builder = factory.newDocumentBuilder();
-        Document doc = builder.parse(new ByteArrayInputStream(response.getBytes(StandardCharsets.UTF_8)));
-
-        Element stateElement = (Element) doc.getElementsByTagName("state").item(0);
-
-        NodeList battElements = stateElement.getElementsByTagName("batt");
-        if (battElements.getLength() > 0) {
-            batteryStatus = battElements.item(0).getTextContent();
-        }
-
-        NodeList sdCardElements = stateElement.getElementsByTagName("sdcardstatus");
-        if (sdCardElements.getLength() > 0) {
-            sdCardStatus = sdCardElements.item(0).getTextContent();
+    private void parseResponse(int length) throws IOException {
+        parser.reset(responseBuffer, length);
+
+        boolean inState = false;
+        boolean foundState = false;
+        String currentElement = null;
+        int event;
+        while ((event = parser.next()) != XmlPullParser.END_DOCUMENT) {
+            if (event == XmlPullParser.START_ELEMENT) {
+                if (parser.isName("state")) {
+                    inState = true;
+                    foundState = true;
+                } else if (inState) {
+                    currentElement = parser.isName("batt") ? "batt"
+                            : parser.isName("sdcardstatus") ? "sdcardstatus"
+                            : parser.isName("remaincapacity") ? "remaincapacity"
+                            : null;
+                }
+            } else if (event == XmlPullParser.END_ELEMENT) {
+                if (parser.isName("state")) {
+                    inState = false;
+                }
+                currentElement = null;
+            } else if (event == XmlPullParser.TEXT && currentElement != null) {
+                switch (currentElement) {
+                    case "batt" -> batteryStatus = parser.getText();
+                    case "sdcardstatus" -> sdCardStatus = parser.getText();
+                    case "remaincapacity" -> remainingImages = parser.getText();
+                }
+            }
         }
 
-        NodeList remainCapacityElements = stateElement.getElementsByTagName("remaincapacity");
-        if (remainCapacityElements.getLength() > 0) {
-            remainingImages = remainCapacityElements.item(0).getTextContent();
+        if (!foundState) {
+            throw new IOException("No state in camera response");
         }
-
         errorMessage = null;
     }
 
@@ -110,4 +217,4 @@ public class CameraStateMonitor {
     public boolean isNoSdCard() {
         return !"write_enable".equals(sdCardStatus);
     }
-}
\ No newline at end of file
+}
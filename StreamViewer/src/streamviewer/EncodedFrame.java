@@ -0,0 +1,102 @@
+package streamviewer;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+/**
+ * One frame of a live view stream as JPEG bytes, for consumers that store or forward frames and do not need pixels.
+ *
+ * Frames of the camera stream carry the JPEG exactly as received. Viewers whose source is not JPEG (webcam, mock)
+ * create frames from their images, which are only encoded when {@link #getJpeg()} is first called, and then only
+ * once for all consumers of the frame.
+ */
+public final class EncodedFrame {
+    private static final float JPEG_QUALITY = 0.85f;
+
+    private final long sequenceNumber;
+    private final long receiveNanos;
+    private final BufferedImage image;
+    private byte[] jpeg;
+
+    private EncodedFrame(long sequenceNumber, long receiveNanos, byte[] jpeg, BufferedImage image) {
+        this.sequenceNumber = sequenceNumber;
+        this.receiveNanos = receiveNanos;
+        this.jpeg = jpeg;
+        this.image = image;
+    }
+
+    /**
+     * @param sequenceNumber number of the frame in its stream, counting up from 0
+     * @param receiveNanos System.nanoTime() when the frame was received
+     * @param jpeg the JPEG image; must not be modified afterwards
+     */
+    public static EncodedFrame ofJpeg(long sequenceNumber, long receiveNanos, byte[] jpeg) {
+        return new EncodedFrame(sequenceNumber, receiveNanos, jpeg, null);
+    }
+
+    /**
+     * @param sequenceNumber number of the frame in its stream, counting up from 0
+     * @param receiveNanos System.nanoTime() when the frame was captured
+     * @param image the image, encoded on demand; must not be modified afterwards
+     */
+    public static EncodedFrame ofImage(long sequenceNumber, long receiveNanos, BufferedImage image) {
+        return new EncodedFrame(sequenceNumber, receiveNanos, null, image);
+    }
+
+    public long getSequenceNumber() {
+        return sequenceNumber;
+    }
+
+    public long getReceiveNanos() {
+        return receiveNanos;
+    }
+
+    /**
+     * @return the JPEG bytes, shared by all consumers and not to be modified; null if encoding failed
+     */
+    public synchronized byte[] getJpeg() {
+        if (jpeg == null && image != null) {
+            try {
+                jpeg = encodeJpeg(image, JPEG_QUALITY);
+                Metrics.increment("stream.framesEncoded");
+            } catch (IOException e) {
+                System.err.println("Failed to encode frame " + sequenceNumber + ": " + e.getMessage());
+            }
+        }
+        return jpeg;
+    }
+
+    /**
+     * Encode an image as JPEG. Images with alpha channel are drawn onto an opaque image first, the JPEG writer does
+     * not support them.
+     */
+    static byte[] encodeJpeg(BufferedImage image, float quality) throws IOException {
+        if (image.getColorModel().hasAlpha()) {
+            BufferedImage opaque = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_RGB);
+            Graphics2D g2d = opaque.createGraphics();
+            g2d.drawImage(image, 0, 0, null);
+            g2d.dispose();
+            image = opaque;
+        }
+
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        ByteArrayOutputStream output = new ByteArrayOutputStream(16 * 1024);
+        try (MemoryCacheImageOutputStream imageOutput = new MemoryCacheImageOutputStream(output)) {
+            writer.setOutput(imageOutput);
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(quality);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+        return output.toByteArray();
+    }
+}
@@ -0,0 +1,212 @@
+package streamviewer;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfRect;
+import org.opencv.core.Rect;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+import org.opencv.objdetect.CascadeClassifier;
+
+import java.awt.*;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Finds the faces in the live view, for the framing guide and for starting the countdown automatically once the
+ * people in front of the camera hold still.
+ *
+ * {@link #offerFrame(BufferedImage)} only stores a reference to the latest frame, so the display path never waits
+ * for the detector. The detector thread runs at the configured rate on a small grayscale copy of the latest frame.
+ * Detections that are due while the previous one is still running, or that would exceed the CPU budget, are skipped
+ * and counted as faces.skippedDetections; the detector always continues with the latest frame.
+ */
+public class FaceDetector {
+    private static final int DETECTION_WIDTH = 320;
+    /**
+     * Share of one CPU core the detector may use on average.
+     */
+    private static final double CPU_BUDGET = 0.25;
+    /**
+     * How long the faces have to stay in place before the countdown is started.
+     */
+    private static final long STABLE_MS = 1500;
+    /**
+     * How far a face may move between two detections, relative to the frame size, and still count as in place.
+     */
+    private static final double MAX_MOVEMENT = 0.04;
+
+    private final CascadeClassifier classifier;
+    private final long intervalNanos;
+    private volatile BufferedImage latestImage;
+    private volatile List<Rectangle2D> faces = Collections.emptyList();
+    private volatile Runnable stableListener;
+    private volatile boolean running = true;
+    private final Thread detectorThread;
+
+    private BufferedImage grayImage;
+    private Mat grayMat;
+    private long stableSinceNanos = -1;
+    private boolean stableReported = false;
+
+    /**
+     * @param cascadeFile the OpenCV Haar cascade for frontal faces
+     * @param detectionsPerSecond how often to look for faces
+     * @throws IllegalStateException if the cascade cannot be loaded
+     */
+    public FaceDetector(String cascadeFile, int detectionsPerSecond) {
+        WebcamStreamViewer.loadOpenCv();
+        this.classifier = new CascadeClassifier();
+        if (!classifier.load(cascadeFile) || classifier.empty()) {
+            throw new IllegalStateException("Cannot load the face cascade " + cascadeFile);
+        }
+        this.intervalNanos = 1_000_000_000L / Math.max(1, detectionsPerSecond);
+
+        detectorThread = new Thread(this::runDetector, "face-detector");
+        detectorThread.setDaemon(true);
+        detectorThread.setPriority(Thread.MIN_PRIORITY);
+        detectorThread.start();
+    }
+
+    /**
+     * Offer the latest live view frame. Only stores the reference.
+     */
+    public void offerFrame(BufferedImage image) {
+        latestImage = image;
+    }
+
+    /**
+     * @return the faces found in the latest detection, as fractions of the frame size
+     */
+    public List<Rectangle2D> getFaces() {
+        return faces;
+    }
+
+    /**
+     * @param stableListener called on the detector thread once the faces have stayed in place for a while; called
+     * again only after the faces have moved or left
+     */
+    public void setStableListener(Runnable stableListener) {
+        this.stableListener = stableListener;
+    }
+
+    public void stop() {
+        running = false;
+        detectorThread.interrupt();
+    }
+
+    private void runDetector() {
+        long nextDetectionNanos = System.nanoTime();
+        BufferedImage lastImage = null;
+        try {
+            while (running) {
+                long waitNanos = nextDetectionNanos - System.nanoTime();
+                if (waitNanos > 0) {
+                    Thread.sleep(waitNanos / 1_000_000, (int) (waitNanos % 1_000_000));
+                }
+                BufferedImage image = latestImage;
+                if (image == null || image == lastImage) {
+                    nextDetectionNanos += intervalNanos;
+                    continue;
+                }
+                lastImage = image;
+
+                long startNanos = System.nanoTime();
+                List<Rectangle2D> detected = detect(image);
+                long endNanos = System.nanoTime();
+                Metrics.record("faces.detectMs", (endNanos - startNanos) / 1_000_000);
+                updateStability(detected, endNanos);
+                faces = detected;
+
+                // Stay within the CPU budget, and drop the detections that are overdue instead of catching up
+                long earliestNanos = endNanos + (long) ((endNanos - startNanos) * (1 - CPU_BUDGET) / CPU_BUDGET);
+                nextDetectionNanos += intervalNanos;
+                if (nextDetectionNanos < earliestNanos) {
+                    long skipped = (earliestNanos - nextDetectionNanos + intervalNanos - 1) / intervalNanos;
+                    Metrics.add("faces.skippedDetections", skipped);
+                    nextDetectionNanos += skipped * intervalNanos;
+                }
+            }
+        } catch (InterruptedException e) {
+            // Stopped
+        } finally {
+            if (grayMat != null) {
+                grayMat.release();
+            }
+        }
+    }
+
+    private List<Rectangle2D> detect(BufferedImage image) {
+        int height = Math.max(1, DETECTION_WIDTH * image.getHeight() / image.getWidth());
+        if (grayImage == null || grayImage.getHeight() != height) {
+            grayImage = new BufferedImage(DETECTION_WIDTH, height, BufferedImage.TYPE_BYTE_GRAY);
+            if (grayMat != null) {
+                grayMat.release();
+            }
+            grayMat = new Mat(height, DETECTION_WIDTH, CvType.CV_8UC1);
+        }
+        // Downscaling and the conversion to gray in one step, the frame itself is not touched
+        Graphics2D g2d = grayImage.createGraphics();
+        g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g2d.drawImage(image, 0, 0, DETECTION_WIDTH, height, null);
+        g2d.dispose();
+        grayMat.put(0, 0, ((DataBufferByte) grayImage.getRaster().getDataBuffer()).getData());
+        Imgproc.equalizeHist(grayMat, grayMat);
+
+        MatOfRect found = new MatOfRect();
+        int minSize = DETECTION_WIDTH / 16;
+        classifier.detectMultiScale(grayMat, found, 1.15, 4, 0, new Size(minSize, minSize), new Size());
+        Rect[] rects = found.toArray();
+        found.release();
+
+        List<Rectangle2D> result = new ArrayList<>(rects.length);
+        for (Rect rect : rects) {
+            result.add(new Rectangle2D.Double((double) rect.x / DETECTION_WIDTH, (double) rect.y / height,
+                    (double) rect.width / DETECTION_WIDTH, (double) rect.height / height));
+        }
+        Metrics.setGauge("faces.count", result.size());
+        return result;
+    }
+
+    private void updateStability(List<Rectangle2D> detected, long nowNanos) {
+        if (detected.isEmpty() || !isInPlace(faces, detected)) {
+            stableSinceNanos = detected.isEmpty() ? -1 : nowNanos;
+            stableReported = false;
+            return;
+        }
+        if (!stableReported && stableSinceNanos >= 0 && nowNanos - stableSinceNanos >= STABLE_MS * 1_000_000) {
+            stableReported = true;
+            Runnable listener = stableListener;
+            if (listener != null) {
+                listener.run();
+            }
+        }
+    }
+
+    /**
+     * @return whether there are as many faces as before and each of them is close to where one was before
+     */
+    private static boolean isInPlace(List<Rectangle2D> previous, List<Rectangle2D> current) {
+        if (previous.size() != current.size()) {
+            return false;
+        }
+        for (Rectangle2D face : current) {
+            boolean found = false;
+            for (Rectangle2D before : previous) {
+                if (Math.abs(face.getCenterX() - before.getCenterX()) <= MAX_MOVEMENT
+                        && Math.abs(face.getCenterY() - before.getCenterY()) <= MAX_MOVEMENT) {
+                    found = true;
+                    break;
+                }
+            }
+            if (!found) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,141 @@
+package streamviewer;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Keeps the JPEG bytes of the most recent live view frames in a fixed-size, off-heap ring buffer, e.g. for the
+ * boomerang of the last seconds before a photo.
+ *
+ * All frames share one direct buffer allocated up front, so the memory used never exceeds its capacity and the
+ * frames add nothing to the Java heap. New frames overwrite the oldest ones; frames older than the maximum age are
+ * dropped as well. Only a few frames per second are kept.
+ *
+ * {@link #offer(EncodedFrame)} never blocks the stream: the frames are copied in (and encoded first, for the webcam)
+ * on the ring's own thread, and dropped if it falls behind.
+ */
+public class FrameRing {
+    private static final int QUEUE_CAPACITY = 4;
+
+    private final ByteBuffer buffer;
+    private final long maxAgeNanos;
+    private final long minIntervalNanos;
+
+    /**
+     * Position, length and receive time of the stored frames, oldest first from {@link #head}.
+     */
+    private final int[] offsets;
+    private final int[] lengths;
+    private final long[] receiveNanos;
+    private int head = 0;
+    private int count = 0;
+    private int writePosition = 0;
+
+    private final BlockingQueue<EncodedFrame> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private volatile long lastOfferedNanos = 0;
+
+    /**
+     * @param capacityBytes size of the off-heap buffer
+     * @param maxAgeMs how far back frames are kept
+     * @param framesPerSecond how many frames per second are kept at most
+     */
+    public FrameRing(int capacityBytes, long maxAgeMs, int framesPerSecond) {
+        this.buffer = ByteBuffer.allocateDirect(capacityBytes);
+        this.maxAgeNanos = maxAgeMs * 1_000_000L;
+        this.minIntervalNanos = 1_000_000_000L / framesPerSecond;
+        int maxFrames = (int) (maxAgeMs * framesPerSecond / 1000) + 2;
+        this.offsets = new int[maxFrames];
+        this.lengths = new int[maxFrames];
+        this.receiveNanos = new long[maxFrames];
+
+        Thread thread = new Thread(this::runStoreLoop, "frame-ring");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Offer a live view frame. Never blocks; frames arriving faster than the configured rate are skipped.
+     *
+     * @param frame the frame
+     */
+    public void offer(EncodedFrame frame) {
+        if (frame.getReceiveNanos() - lastOfferedNanos < minIntervalNanos) {
+            return;
+        }
+        lastOfferedNanos = frame.getReceiveNanos();
+        if (!queue.offer(frame)) {
+            Metrics.increment("ring.droppedFrames");
+        }
+    }
+
+    /**
+     * Copy the stored frames out of the ring.
+     *
+     * @return the JPEG bytes of the frames, oldest first
+     */
+    public synchronized List<byte[]> snapshot() {
+        List<byte[]> frames = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int entry = (head + i) % offsets.length;
+            byte[] jpeg = new byte[lengths[entry]];
+            buffer.get(offsets[entry], jpeg);
+            frames.add(jpeg);
+        }
+        return frames;
+    }
+
+    private void runStoreLoop() {
+        while (true) {
+            try {
+                EncodedFrame frame = queue.take();
+                byte[] jpeg = frame.getJpeg();
+                if (jpeg != null) {
+                    store(jpeg, frame.getReceiveNanos());
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private synchronized void store(byte[] jpeg, long nanos) {
+        int length = jpeg.length;
+        if (length > buffer.capacity()) {
+            Metrics.increment("ring.droppedFrames");
+            return;
+        }
+        if (writePosition + length > buffer.capacity()) {
+            // The frames behind the write position are left from the previous pass and are the oldest, but the
+            // frames at the start of the buffer, which the new one overwrites, are newer. Drop the old ones first,
+            // so that the overlap check below reaches the newer ones.
+            while (count > 0 && offsets[head] >= writePosition) {
+                head = (head + 1) % offsets.length;
+                count--;
+            }
+            writePosition = 0;
+        }
+
+        // Drop the frames that are too old, would be overwritten, or whose slot is needed
+        while (count > 0 && (receiveNanos[head] < nanos - maxAgeNanos || count == offsets.length
+                || overlaps(offsets[head], lengths[head], writePosition, length))) {
+            head = (head + 1) % offsets.length;
+            count--;
+        }
+
+        buffer.put(writePosition, jpeg);
+        int entry = (head + count) % offsets.length;
+        offsets[entry] = writePosition;
+        lengths[entry] = length;
+        receiveNanos[entry] = nanos;
+        count++;
+        writePosition += length;
+        Metrics.setGauge("ring.frames", count);
+    }
+
+    private static boolean overlaps(int offset1, int length1, int offset2, int length2) {
+        return offset1 < offset2 + length2 && offset2 < offset1 + length1;
+    }
+}
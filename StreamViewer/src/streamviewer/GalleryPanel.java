@@ -0,0 +1,288 @@
+package streamviewer;
+
+import javax.swing.*;
+import java.awt.*;
+import java.awt.event.KeyAdapter;
+import java.awt.event.KeyEvent;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.awt.event.MouseWheelEvent;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Scrollable grid of the photos taken during the event, with a full screen review of a single photo.
+ *
+ * Nothing is decoded on the EDT: thumbnails come from the {@link ThumbnailCache} and the photo shown in full is
+ * decoded on a background thread at screen resolution. Thumbnails are kept in a {@link ThumbnailStore} inside the
+ * photo folder, so reopening the gallery after a restart does not decode every photo again.
+ */
+public class GalleryPanel extends JPanel {
+    private static final int GAP = 10;
+
+    private final ThumbnailCache thumbnailCache;
+    private final File photoDirectory;
+    private final Runnable onClose;
+    private final ExecutorService loaderExecutor;
+
+    private List<File> photos = new ArrayList<>();
+    private int scrollOffset = 0;
+    private int selectedIndex = 0;
+
+    private boolean showingPhoto = false;
+    private BufferedImage fullPhoto;
+    private int fullPhotoIndex = -1;
+
+    public GalleryPanel(File photoDirectory, Runnable onClose) {
+        this.photoDirectory = photoDirectory;
+        this.onClose = onClose;
+        this.thumbnailCache = new ThumbnailCache(320, 180, 64L * 1024 * 1024,
+                Math.max(1, Runtime.getRuntime().availableProcessors() / 2),
+                new ThumbnailStore(new File(photoDirectory, ".thumbnails")));
+        this.loaderExecutor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "gallery-loader");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        setBackground(Color.BLACK);
+        setFocusable(true);
+
+        addKeyListener(new KeyAdapter() {
+            @Override
+            public void keyPressed(KeyEvent e) {
+                switch (e.getKeyCode()) {
+                    case KeyEvent.VK_ESCAPE, KeyEvent.VK_G -> {
+                        if (showingPhoto) {
+                            closePhoto();
+                        } else {
+                            onClose.run();
+                        }
+                    }
+                    case KeyEvent.VK_LEFT -> moveSelection(-1);
+                    case KeyEvent.VK_RIGHT -> moveSelection(1);
+                    case KeyEvent.VK_UP -> moveSelection(-getColumns());
+                    case KeyEvent.VK_DOWN -> moveSelection(getColumns());
+                    case KeyEvent.VK_PAGE_UP -> scrollBy(-getHeight());
+                    case KeyEvent.VK_PAGE_DOWN -> scrollBy(getHeight());
+                    case KeyEvent.VK_ENTER -> openPhoto(selectedIndex);
+                    default -> {
+                    }
+                }
+            }
+        });
+
+        MouseAdapter mouseAdapter = new MouseAdapter() {
+            @Override
+            public void mouseClicked(MouseEvent e) {
+                if (showingPhoto) {
+                    closePhoto();
+                    return;
+                }
+                int index = indexAt(e.getX(), e.getY());
+                if (index >= 0) {
+                    selectedIndex = index;
+                    openPhoto(index);
+                }
+            }
+
+            @Override
+            public void mouseWheelMoved(MouseWheelEvent e) {
+                if (!showingPhoto) {
+                    scrollBy(e.getWheelRotation() * getRowHeight() / 2);
+                }
+            }
+        };
+        addMouseListener(mouseAdapter);
+        addMouseWheelListener(mouseAdapter);
+    }
+
+    /**
+     * Re-read the photo folder, newest photos first.
+     */
+    public void refresh() {
+        loaderExecutor.submit(() -> {
+            File[] files = photoDirectory.listFiles((dir, name) -> {
+                String lowerCase = name.toLowerCase();
+                return lowerCase.endsWith(".jpg") || lowerCase.endsWith(".jpeg");
+            });
+            List<File> sorted = files != null ? new ArrayList<>(Arrays.asList(files)) : new ArrayList<>();
+            sorted.sort(Comparator.comparingLong(File::lastModified).reversed());
+
+            SwingUtilities.invokeLater(() -> {
+                photos = sorted;
+                selectedIndex = Math.min(selectedIndex, Math.max(0, photos.size() - 1));
+                scrollBy(0);
+                repaint();
+            });
+        });
+    }
+
+    public void shutdown() {
+        thumbnailCache.shutdown();
+        loaderExecutor.shutdownNow();
+    }
+
+    @Override
+    protected void paintComponent(Graphics g) {
+        super.paintComponent(g);
+        Graphics2D g2d = (Graphics2D) g;
+
+        if (showingPhoto) {
+            paintPhoto(g2d);
+            return;
+        }
+
+        if (photos.isEmpty()) {
+            g2d.setColor(Color.WHITE);
+            g2d.setFont(new Font("Arial", Font.BOLD, 30));
+            g2d.drawString("No photos in " + photoDirectory.getAbsolutePath(), 40, 60);
+            return;
+        }
+
+        int columns = getColumns();
+        int rowHeight = getRowHeight();
+        int tileWidth = thumbnailCache.getThumbnailWidth();
+        int tileHeight = thumbnailCache.getThumbnailHeight();
+        int left = (getWidth() - columns * (tileWidth + GAP) + GAP) / 2;
+
+        // Only the visible rows and the row below them are requested, everything else is cancelled
+        int firstRow = scrollOffset / rowHeight;
+        int lastRow = (scrollOffset + getHeight()) / rowHeight + 1;
+        List<File> wanted = new ArrayList<>();
+
+        for (int row = firstRow; row <= lastRow; row++) {
+            for (int column = 0; column < columns; column++) {
+                int index = row * columns + column;
+                if (index >= photos.size()) {
+                    break;
+                }
+                File photo = photos.get(index);
+                wanted.add(photo);
+
+                int x = left + column * (tileWidth + GAP);
+                int y = GAP + row * rowHeight - scrollOffset;
+                BufferedImage thumbnail = thumbnailCache.get(photo, () -> SwingUtilities.invokeLater(this::repaint));
+                if (thumbnail != null) {
+                    g2d.drawImage(thumbnail, x + (tileWidth - thumbnail.getWidth()) / 2,
+                            y + (tileHeight - thumbnail.getHeight()) / 2, null);
+                } else {
+                    g2d.setColor(Color.DARK_GRAY);
+                    g2d.fillRect(x, y, tileWidth, tileHeight);
+                }
+
+                if (index == selectedIndex) {
+                    g2d.setColor(new Color(255, 69, 58));
+                    g2d.setStroke(new BasicStroke(4));
+                    g2d.drawRect(x - 2, y - 2, tileWidth + 4, tileHeight + 4);
+                }
+            }
+        }
+
+        thumbnailCache.retainPending(wanted);
+    }
+
+    private void paintPhoto(Graphics2D g2d) {
+        if (fullPhoto == null) {
+            g2d.setColor(Color.WHITE);
+            g2d.setFont(new Font("Arial", Font.BOLD, 30));
+            g2d.drawString("Loading...", 40, 60);
+            return;
+        }
+        double scale = Math.min((double) getWidth() / fullPhoto.getWidth(), (double) getHeight() / fullPhoto.getHeight());
+        int width = (int) (fullPhoto.getWidth() * scale);
+        int height = (int) (fullPhoto.getHeight() * scale);
+        g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g2d.drawImage(fullPhoto, (getWidth() - width) / 2, (getHeight() - height) / 2, width, height, null);
+    }
+
+    private void openPhoto(int index) {
+        if (index < 0 || index >= photos.size()) {
+            return;
+        }
+        showingPhoto = true;
+        fullPhoto = null;
+        fullPhotoIndex = index;
+        File photo = photos.get(index);
+        int width = Math.max(1, getWidth());
+        int height = Math.max(1, getHeight());
+        repaint();
+
+        loaderExecutor.submit(() -> {
+            try {
+                BufferedImage decoded = ThumbnailCache.decodeSubsampled(photo, width, height);
+                SwingUtilities.invokeLater(() -> {
+                    // Ignore the result if another photo was opened in the meantime
+                    if (showingPhoto && fullPhotoIndex == index) {
+                        fullPhoto = decoded;
+                        repaint();
+                    }
+                });
+            } catch (IOException e) {
+                System.err.println("Failed to load photo " + photo.getName() + ": " + e.getMessage());
+            }
+        });
+    }
+
+    private void closePhoto() {
+        showingPhoto = false;
+        fullPhoto = null;
+        fullPhotoIndex = -1;
+        repaint();
+    }
+
+    private void moveSelection(int delta) {
+        if (photos.isEmpty()) {
+            return;
+        }
+        selectedIndex = Math.max(0, Math.min(photos.size() - 1, selectedIndex + delta));
+        if (showingPhoto) {
+            openPhoto(selectedIndex);
+            return;
+        }
+
+        // Keep the selected tile on screen
+        int rowTop = GAP + (selectedIndex / getColumns()) * getRowHeight();
+        if (rowTop < scrollOffset) {
+            scrollOffset = rowTop - GAP;
+        } else if (rowTop + getRowHeight() > scrollOffset + getHeight()) {
+            scrollOffset = rowTop + getRowHeight() - getHeight();
+        }
+        scrollBy(0);
+    }
+
+    private void scrollBy(int delta) {
+        int rows = (photos.size() + getColumns() - 1) / getColumns();
+        int maxOffset = Math.max(0, GAP + rows * getRowHeight() - getHeight());
+        scrollOffset = Math.max(0, Math.min(maxOffset, scrollOffset + delta));
+        repaint();
+    }
+
+    private int indexAt(int x, int y) {
+        int columns = getColumns();
+        int tileWidth = thumbnailCache.getThumbnailWidth();
+        int left = (getWidth() - columns * (tileWidth + GAP) + GAP) / 2;
+        int column = (x - left) / (tileWidth + GAP);
+        int row = (y + scrollOffset - GAP) / getRowHeight();
+        if (x < left || column >= columns || row < 0) {
+            return -1;
+        }
+        int index = row * columns + column;
+        return index < photos.size() ? index : -1;
+    }
+
+    private int getColumns() {
+        return Math.max(1, (getWidth() - GAP) / (thumbnailCache.getThumbnailWidth() + GAP));
+    }
+
+    private int getRowHeight() {
+        return thumbnailCache.getThumbnailHeight() + GAP;
+    }
+}
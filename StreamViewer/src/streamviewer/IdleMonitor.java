@@ -0,0 +1,147 @@
+package streamviewer;
+
+import java.awt.image.BufferedImage;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Switches the photobox into a power saving idle mode while nobody is in front of it, and back as soon as somebody
+ * is.
+ *
+ * Motion is detected by comparing a tiny signature of each frame, the brightness of a grid of single pixels, with
+ * that of a reference frame taken a moment earlier. This costs a few hundred pixel reads per frame, regardless of the
+ * frame size. Without motion and without key or mouse events for {@link #IDLE_AFTER_MS}, the listener is told to go
+ * idle, e.g. decode and paint fewer frames and dim the LED ring. The first frame showing motion, or any input event,
+ * ends the idle mode.
+ *
+ * The process CPU usage is sampled periodically and recorded separately for both states as cpu.idlePercent and
+ * cpu.activePercent, together with the time spent in each as idle.idleSeconds and idle.activeSeconds.
+ */
+public class IdleMonitor {
+    /**
+     * Time without motion or input after which the photobox goes idle, can be set by the system property
+     * photobox.idleAfterMs.
+     */
+    private static final long IDLE_AFTER_MS = Long.getLong("photobox.idleAfterMs", 60_000);
+
+    private static final int GRID_WIDTH = 16;
+    private static final int GRID_HEIGHT = 9;
+    /**
+     * Average brightness change per grid pixel, out of 255, that counts as motion; well above sensor noise and
+     * the camera's exposure hunting.
+     */
+    private static final int MOTION_THRESHOLD = 8;
+    /**
+     * How often the reference frame is renewed, so that slow changes like daylight are not taken for motion.
+     */
+    private static final long REFERENCE_INTERVAL_MS = 1000;
+    private static final long CPU_SAMPLE_INTERVAL_S = 10;
+
+    private final Consumer<Boolean> idleListener;
+    private final int[] reference = new int[GRID_WIDTH * GRID_HEIGHT];
+    private final int[] signature = new int[GRID_WIDTH * GRID_HEIGHT];
+    private boolean hasReference = false;
+    private long referenceMillis = 0;
+
+    private volatile long lastActivityMillis = System.currentTimeMillis();
+    private volatile boolean idle = false;
+
+    private long lastCpuNanos = -1;
+    private long lastSampleNanos;
+
+    /**
+     * @param scheduler runs the periodic idle check and CPU sampling
+     * @param idleListener called with true when going idle and with false when becoming active again, on the
+     * thread that noticed the change
+     */
+    public IdleMonitor(IoRuntime.Scope scheduler, Consumer<Boolean> idleListener) {
+        this.idleListener = idleListener;
+        scheduler.scheduleAtFixedRate(this::checkIdle, 1, 1, TimeUnit.SECONDS);
+        scheduler.scheduleAtFixedRate(this::sampleCpu, CPU_SAMPLE_INTERVAL_S, CPU_SAMPLE_INTERVAL_S, TimeUnit.SECONDS);
+    }
+
+    public boolean isIdle() {
+        return idle;
+    }
+
+    /**
+     * Look for motion in a displayed frame.
+     *
+     * @param image the frame
+     */
+    public synchronized void offerFrame(BufferedImage image) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        for (int gridY = 0; gridY < GRID_HEIGHT; gridY++) {
+            int y = (2 * gridY + 1) * height / (2 * GRID_HEIGHT);
+            for (int gridX = 0; gridX < GRID_WIDTH; gridX++) {
+                int x = (2 * gridX + 1) * width / (2 * GRID_WIDTH);
+                int pixel = image.getRGB(x, y);
+                // Brightness, weighted roughly like the eye sees the colours
+                signature[gridY * GRID_WIDTH + gridX] = (2 * ((pixel >> 16) & 0xFF) + 5 * ((pixel >> 8) & 0xFF) + (pixel & 0xFF)) >> 3;
+            }
+        }
+
+        long now = System.currentTimeMillis();
+        boolean motion = false;
+        if (hasReference) {
+            int difference = 0;
+            for (int i = 0; i < signature.length; i++) {
+                difference += Math.abs(signature[i] - reference[i]);
+            }
+            motion = difference / signature.length >= MOTION_THRESHOLD;
+        }
+        if (!hasReference || motion || now - referenceMillis >= REFERENCE_INTERVAL_MS) {
+            System.arraycopy(signature, 0, reference, 0, signature.length);
+            hasReference = true;
+            referenceMillis = now;
+        }
+        if (motion) {
+            Metrics.increment("idle.motionFrames");
+            activity();
+        }
+    }
+
+    /**
+     * Record activity, e.g. a key press, ending the idle mode at once.
+     */
+    public void activity() {
+        lastActivityMillis = System.currentTimeMillis();
+        if (idle) {
+            setIdle(false);
+        }
+    }
+
+    private void checkIdle() {
+        if (!idle && System.currentTimeMillis() - lastActivityMillis >= IDLE_AFTER_MS) {
+            setIdle(true);
+        }
+        Metrics.increment(idle ? "idle.idleSeconds" : "idle.activeSeconds");
+    }
+
+    private synchronized void setIdle(boolean idle) {
+        if (this.idle == idle) {
+            return;
+        }
+        this.idle = idle;
+        Metrics.setGauge("idle.state", idle ? 1 : 0);
+        System.out.println(idle ? "Nothing happening, going idle" : "Activity, leaving idle mode");
+        idleListener.accept(idle);
+    }
+
+    private void sampleCpu() {
+        if (!(ManagementFactory.getOperatingSystemMXBean() instanceof com.sun.management.OperatingSystemMXBean os)) {
+            return;
+        }
+        long cpuNanos = os.getProcessCpuTime();
+        long now = System.nanoTime();
+        if (lastCpuNanos >= 0 && cpuNanos >= 0) {
+            // Percent of one core, like top shows it
+            long percent = 100 * (cpuNanos - lastCpuNanos) / Math.max(1, now - lastSampleNanos);
+            Metrics.record(idle ? "cpu.idlePercent" : "cpu.activePercent", percent);
+        }
+        lastCpuNanos = cpuNanos;
+        lastSampleNanos = now;
+    }
+}
@@ -0,0 +1,298 @@
+package streamviewer;
+
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * Runs the blocking I/O of the photobox, e.g. the requests to the camera, on virtual threads grouped into scopes.
+ *
+ * A scope owns every task started in it and in its child scopes. Closing a scope cancels all of them at once:
+ * scheduled tasks no longer fire and running ones are interrupted, which also closes the socket a virtual thread is
+ * blocked on, so a request does not have to run into its timeout first. The camera scope is replaced whenever the
+ * camera mode changes, so that nothing keeps talking to the previous camera, and {@link #shutdown()} closes
+ * everything when the photobox exits.
+ *
+ * There are no pools to size or to forget to shut down: every task gets its own virtual thread, named after its
+ * scope, and a single platform thread starts the scheduled ones.
+ */
+public final class IoRuntime {
+    private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "io-timer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private static final AtomicInteger runningTasks = new AtomicInteger();
+
+    private static final Scope root = new Scope("io", null);
+    private static volatile Scope camera = root.openScope("camera");
+
+    private IoRuntime() {
+    }
+
+    /**
+     * @return the scope for work that lasts as long as the photobox runs
+     */
+    public static Scope root() {
+        return root;
+    }
+
+    /**
+     * @return the scope for work with the current camera
+     */
+    public static Scope camera() {
+        return camera;
+    }
+
+    /**
+     * @return the number of tasks started in any scope that have not finished yet, i.e. of the virtual threads doing
+     * I/O, which the thread count of the JVM does not include
+     */
+    public static int runningTasks() {
+        return runningTasks.get();
+    }
+
+    /**
+     * Cancel all work with the current camera, and open a new camera scope for the next one.
+     */
+    public static synchronized void resetCamera() {
+        Scope previous = camera;
+        camera = root.openScope("camera");
+        previous.close();
+    }
+
+    /**
+     * Cancel all work and stop the timer thread.
+     */
+    public static void shutdown() {
+        root.close();
+        timer.shutdownNow();
+    }
+
+    /**
+     * A group of tasks that are cancelled together. Rejects new tasks with a RejectedExecutionException once it is
+     * closed.
+     */
+    public static final class Scope implements Executor, AutoCloseable {
+        private final String name;
+        private final Scope parent;
+        private final ThreadFactory threadFactory;
+        private final Set<Task<?>> running = ConcurrentHashMap.newKeySet();
+        private final Set<ScheduledTask> scheduled = ConcurrentHashMap.newKeySet();
+        private final Set<Scope> children = ConcurrentHashMap.newKeySet();
+        private volatile boolean closed = false;
+
+        private Scope(String name, Scope parent) {
+            this.name = name;
+            this.parent = parent;
+            this.threadFactory = Thread.ofVirtual().name(name + "-", 0).factory();
+        }
+
+        /**
+         * @return a scope that is closed together with this one, or on its own
+         */
+        public Scope openScope(String name) {
+            Scope child = new Scope(name, this);
+            children.add(child);
+            if (closed) {
+                children.remove(child);
+                throw new RejectedExecutionException(this.name + " is closed");
+            }
+            return child;
+        }
+
+        public boolean isClosed() {
+            return closed;
+        }
+
+        /**
+         * Run a task on its own virtual thread. Exceptions are logged.
+         */
+        @Override
+        public void execute(Runnable command) {
+            start(command);
+        }
+
+        /**
+         * Run a task on its own virtual thread.
+         *
+         * @return the result, completed with a CancellationException if the scope is closed first; cancelling it
+         * interrupts the task
+         */
+        public <T> CompletableFuture<T> supply(Callable<T> work) {
+            Task<T> task = new Task<>(work);
+            running.add(task);
+            if (closed) {
+                running.remove(task);
+                throw new RejectedExecutionException(name + " is closed");
+            }
+            runningTasks.incrementAndGet();
+            threadFactory.newThread(task).start();
+            return task.result;
+        }
+
+        /**
+         * Run a task once after a delay.
+         */
+        public ScheduledTask schedule(Runnable command, long delay, TimeUnit unit) {
+            return startTimer(new ScheduledTask(this, command, false), task -> timer.schedule(task, delay, unit));
+        }
+
+        /**
+         * Run a task periodically. A run is skipped while the previous one is still busy, e.g. waiting for a timeout.
+         */
+        public ScheduledTask scheduleAtFixedRate(Runnable command, long initialDelay, long period, TimeUnit unit) {
+            return startTimer(new ScheduledTask(this, command, true),
+                    task -> timer.scheduleAtFixedRate(task, initialDelay, period, unit));
+        }
+
+        /**
+         * Cancel all tasks of this scope and its child scopes, interrupting the running ones. Returns without
+         * waiting for them to finish.
+         */
+        @Override
+        public void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            for (Scope child : children) {
+                child.close();
+            }
+            int cancelled = 0;
+            for (ScheduledTask task : scheduled) {
+                task.cancel(true);
+                cancelled++;
+            }
+            for (Task<?> task : running) {
+                if (task.cancel(true)) {
+                    cancelled++;
+                }
+            }
+            if (parent != null) {
+                parent.children.remove(this);
+            }
+            Metrics.add("io.cancelledTasks", cancelled);
+        }
+
+        private CompletableFuture<Object> start(Runnable command) {
+            CompletableFuture<Object> result = supply(Executors.callable(command));
+            result.exceptionally(error -> {
+                if (!(error instanceof CancellationException)) {
+                    System.err.println("Task in " + name + " failed: " + error);
+                }
+                return null;
+            });
+            return result;
+        }
+
+        private ScheduledTask startTimer(ScheduledTask task,
+                Function<Runnable, ScheduledFuture<?>> schedule) {
+            synchronized (task) {
+                scheduled.add(task);
+                if (closed) {
+                    scheduled.remove(task);
+                    throw new RejectedExecutionException(name + " is closed");
+                }
+                task.trigger = schedule.apply(task);
+            }
+            return task;
+        }
+
+        /**
+         * A task running on its own virtual thread, passing its outcome on to a CompletableFuture.
+         */
+        private final class Task<T> extends FutureTask<T> {
+            private final CompletableFuture<T> result = new CompletableFuture<>() {
+                @Override
+                public boolean cancel(boolean mayInterruptIfRunning) {
+                    Task.this.cancel(mayInterruptIfRunning);
+                    return super.cancel(mayInterruptIfRunning);
+                }
+            };
+
+            Task(Callable<T> work) {
+                super(work);
+            }
+
+            @Override
+            protected void done() {
+                running.remove(this);
+                runningTasks.decrementAndGet();
+                try {
+                    result.complete(get());
+                } catch (CancellationException e) {
+                    result.cancel(false);
+                } catch (ExecutionException e) {
+                    result.completeExceptionally(e.getCause());
+                } catch (InterruptedException e) {
+                    // Cannot happen, the task is done
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    /**
+     * A task started by the timer thread in its scope, once or periodically.
+     */
+    public static final class ScheduledTask implements Runnable {
+        private final Scope scope;
+        private final Runnable command;
+        private final boolean periodic;
+        private ScheduledFuture<?> trigger;
+        private CompletableFuture<Object> current;
+        private boolean cancelled = false;
+
+        private ScheduledTask(Scope scope, Runnable command, boolean periodic) {
+            this.scope = scope;
+            this.command = command;
+            this.periodic = periodic;
+        }
+
+        @Override
+        public synchronized void run() {
+            if (cancelled) {
+                return;
+            }
+            if (!periodic) {
+                scope.scheduled.remove(this);
+            }
+            if (current == null || current.isDone()) {
+                try {
+                    current = scope.start(command);
+                } catch (RejectedExecutionException e) {
+                    cancel(false);
+                }
+            }
+        }
+
+        /**
+         * Keep the task from being started (again).
+         *
+         * @param mayInterruptIfRunning whether to interrupt a run in progress, too
+         */
+        public synchronized void cancel(boolean mayInterruptIfRunning) {
+            cancelled = true;
+            trigger.cancel(false);
+            scope.scheduled.remove(this);
+            if (mayInterruptIfRunning && current != null) {
+                current.cancel(true);
+            }
+        }
+    }
+}
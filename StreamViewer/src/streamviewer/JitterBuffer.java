@@ -0,0 +1,197 @@
+package streamviewer;
+
+import java.awt.image.BufferedImage;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+
+/**
+ * Evens out the presentation of frames that arrive in bursts over Wi-Fi.
+ *
+ * The arrival times of the packets give an estimate of the camera's frame interval (averaged over the last
+ * {@link #INTERVAL_WINDOW} arrivals, so that bursts do not skew it) and of the jitter around it (an exponential moving
+ * average of the deviation, like RTP receivers compute it). Decoded frames are held back by about twice the jitter and
+ * released one per frame interval, in sequence order, on the buffer's own thread. The delay therefore follows the
+ * network: on a clean link it shrinks to nothing, on a bursty one it grows up to {@link #MAX_DELAY_NANOS}. When more
+ * frames pile up than twice the delay accounts for, they are released a little faster to catch up, and beyond
+ * {@link #MAX_FRAMES} the oldest ones are dropped.
+ *
+ * In low-latency mode, used during the countdown, frames bypass the buffer and are passed on as soon as they are
+ * decoded, so the people see themselves without delay right before the photo is taken.
+ */
+public class JitterBuffer {
+    private static final long DEFAULT_INTERVAL_NANOS = 33_000_000L;
+    private static final long MAX_DELAY_NANOS = 250_000_000L;
+    private static final int MAX_FRAMES = 8;
+    private static final int INTERVAL_WINDOW = 32;
+    private static final double SMOOTHING = 1.0 / 16;
+    private static final double JITTER_FACTOR = 2.0;
+    /**
+     * Release interval relative to the frame interval while catching up.
+     */
+    private static final double CATCH_UP_RATE = 0.9;
+    /**
+     * Gaps longer than this are stream interruptions, not jitter.
+     */
+    private static final long MAX_GAP_NANOS = 500_000_000L;
+
+    private record Frame(long receiveNanos, BufferedImage image) {
+    }
+
+    private final Consumer<BufferedImage> consumer;
+    private final TreeMap<Long, Frame> frames = new TreeMap<>();
+
+    private final long[] arrivalNanos = new long[INTERVAL_WINDOW];
+    private int arrivalCount = 0;
+    private long lastArrivalNanos = -1;
+    private double intervalNanos = DEFAULT_INTERVAL_NANOS;
+    private double jitterNanos = 0;
+    private long lastReleasedSequence = -1;
+    private long lastReleaseNanos = 0;
+
+    private volatile boolean lowLatency = false;
+    private volatile boolean running = false;
+    private Thread releaseThread;
+
+    /**
+     * @param consumer receives the frames, on the buffer's thread or in low-latency mode on the offering thread
+     */
+    public JitterBuffer(Consumer<BufferedImage> consumer) {
+        this.consumer = consumer;
+    }
+
+    public void start() {
+        running = true;
+        releaseThread = new Thread(this::runReleaseLoop, "jitter-buffer");
+        releaseThread.setDaemon(true);
+        releaseThread.start();
+    }
+
+    public void stop() {
+        running = false;
+        if (releaseThread != null) {
+            releaseThread.interrupt();
+        }
+    }
+
+    /**
+     * Record the arrival of a frame's packet, in arrival order, to estimate the frame interval and jitter.
+     *
+     * @param receiveNanos System.nanoTime() when the packet arrived
+     */
+    public synchronized void recordArrival(long receiveNanos) {
+        if (lastArrivalNanos >= 0 && receiveNanos - lastArrivalNanos >= MAX_GAP_NANOS) {
+            arrivalCount = 0; // Stream interruption, start over
+        }
+        int index = arrivalCount % INTERVAL_WINDOW;
+        long oldestNanos = arrivalCount >= INTERVAL_WINDOW ? arrivalNanos[index] : arrivalNanos[0];
+        arrivalNanos[index] = receiveNanos;
+        arrivalCount++;
+
+        if (arrivalCount > 1) {
+            long gap = receiveNanos - lastArrivalNanos;
+            int span = Math.min(arrivalCount, INTERVAL_WINDOW + 1) - 1;
+            if (arrivalCount >= 8) {
+                intervalNanos = (double) (receiveNanos - oldestNanos) / span;
+            }
+            jitterNanos += (Math.abs(gap - intervalNanos) - jitterNanos) * SMOOTHING;
+            Metrics.setGauge("stream.frameIntervalUs", (long) (intervalNanos / 1000));
+            Metrics.setGauge("stream.jitterBufferDelayUs", getTargetDelayNanos() / 1000);
+        }
+        lastArrivalNanos = receiveNanos;
+    }
+
+    /**
+     * Add a decoded frame. Frames may be offered out of order; frames older than the last released one are dropped.
+     *
+     * @param sequenceNumber the frame's sequence number in the stream
+     * @param receiveNanos System.nanoTime() when the frame's packet arrived
+     * @param image the decoded frame
+     */
+    public void offer(long sequenceNumber, long receiveNanos, BufferedImage image) {
+        synchronized (this) {
+            if (sequenceNumber <= lastReleasedSequence) {
+                Metrics.increment("stream.jitterBufferLateFrames");
+                return;
+            }
+            if (lowLatency || !running) {
+                lastReleasedSequence = sequenceNumber;
+                lastReleaseNanos = System.nanoTime();
+            } else {
+                frames.put(sequenceNumber, new Frame(receiveNanos, image));
+                while (frames.size() > MAX_FRAMES) {
+                    frames.pollFirstEntry();
+                    Metrics.increment("stream.jitterBufferDroppedFrames");
+                }
+                notifyAll();
+                return;
+            }
+        }
+        consumer.accept(image);
+    }
+
+    /**
+     * @param lowLatency whether to pass frames on as soon as they are decoded; switching it on also releases the
+     * newest buffered frame at once and discards the older ones
+     */
+    public void setLowLatency(boolean lowLatency) {
+        this.lowLatency = lowLatency;
+        if (!lowLatency) {
+            return;
+        }
+        Frame newest;
+        synchronized (this) {
+            Map.Entry<Long, Frame> last = frames.lastEntry();
+            if (last == null) {
+                return;
+            }
+            frames.clear();
+            lastReleasedSequence = last.getKey();
+            lastReleaseNanos = System.nanoTime();
+            newest = last.getValue();
+        }
+        consumer.accept(newest.image());
+    }
+
+    private long getTargetDelayNanos() {
+        return Math.min(MAX_DELAY_NANOS, (long) (jitterNanos * JITTER_FACTOR));
+    }
+
+    private void runReleaseLoop() {
+        while (running) {
+            Frame frame;
+            synchronized (this) {
+                try {
+                    Map.Entry<Long, Frame> first = frames.firstEntry();
+                    if (first == null) {
+                        wait();
+                        continue;
+                    }
+
+                    long targetDelay = getTargetDelayNanos();
+                    long receiveNanos = first.getValue().receiveNanos();
+                    long now = System.nanoTime();
+                    // A burst legitimately fills the buffer up to the delay; twice that means the buffer fell behind
+                    int maxBufferedFrames = 1 + (int) (2 * targetDelay / intervalNanos);
+                    double releaseInterval = frames.size() > maxBufferedFrames ? intervalNanos * CATCH_UP_RATE : intervalNanos;
+                    long due = Math.max(receiveNanos + targetDelay, lastReleaseNanos + (long) releaseInterval);
+                    if (now < due) {
+                        // Wakes up early when a frame is offered, which may change what is due next
+                        long waitNanos = due - now;
+                        wait(waitNanos / 1_000_000, (int) (waitNanos % 1_000_000));
+                        continue;
+                    }
+
+                    frames.pollFirstEntry();
+                    lastReleasedSequence = first.getKey();
+                    lastReleaseNanos = now;
+                    frame = first.getValue();
+                    Metrics.record("stream.jitterBufferHoldMs", (now - frame.receiveNanos()) / 1_000_000);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            consumer.accept(frame.image());
+        }
+    }
+}
@@ -2,53 +2,370 @@ package streamviewer;
 
 import javax.swing.*;
 import java.awt.*;
-import java.io.IOException;
+import java.awt.image.BufferedImage;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import com.fazecast.jSerialComm.*;
 
+/**
+ * Controls the LED ring over the serial port.
+ *
+ * Commands are never written on the caller's thread: {@link #sendCommand(String)} only queues the command and a
+ * dedicated LED thread writes it, so a slow or stuck port cannot stall the EDT. Queued "mode" and "brightness"
+ * commands are coalesced, only the latest of each is sent. Writes time out, and if the port drops the LED thread
+ * reconnects in the background and restores the current mode and brightness.
+ *
+ * In the ambient mode the LED thread also streams the ring colours sampled from the edges of the latest live view
+ * frame, at most {@link #AMBIENT_FRAME_RATE} times per second, as binary frames:
+ * {@code 0xFE, led count, led count * (R, G, B), XOR of the colour bytes}. The start byte never occurs in the
+ * text commands, so the firmware can tell the two apart. Each text command starts with a newline, so that the
+ * firmware, after dropping a damaged frame up to the next newline, finds the next command intact. A command may
+ * still be lost with the frame, so leaving the ambient mode is confirmed by the firmware's reply and sent again if
+ * the reply does not come.
+ */
 public class LedController {
+    private static final int QUEUE_CAPACITY = 16;
+    private static final int WRITE_TIMEOUT_MS = 200;
+    private static final long RECONNECT_INTERVAL_MS = 2000;
+
+    public static final int AMBIENT_MODE = 5;
+    private static final int MODE_COUNT = 5;
+    private static final int AMBIENT_FRAME_RATE = 30;
+    private static final long AMBIENT_FRAME_INTERVAL_NANOS = 1_000_000_000L / AMBIENT_FRAME_RATE;
+    private static final int AMBIENT_FRAME_START = 0xFE;
+    /**
+     * Must match NUM_LEDS in the firmware.
+     */
+    private static final int LED_COUNT = 16;
+    /**
+     * The set brightness is divided by this while the photobox is idle.
+     */
+    private static final int DIM_DIVISOR = 8;
+    private static final int MODE_CONFIRM_ATTEMPTS = 3;
+    private static final long MODE_CONFIRM_TIMEOUT_MS = 200;
+
     private SerialPort serialPort;
-    private int currentMode = 4;
-    private int currentBrightness = 255;
+    private volatile int currentMode = 4;
+    private volatile int currentBrightness = 255;
+    private volatile boolean dimmed = false;
+
+    private final String comPort;
+    private Thread ledThread;
+    private volatile boolean running = false;
+
+    /**
+     * Commands waiting to be written, keyed by command name for "mode" and "brightness" so that a newer command
+     * replaces a queued older one, and by the whole command otherwise.
+     */
+    private final LinkedHashMap<String, String> pendingCommands = new LinkedHashMap<>();
+
+    /**
+     * The mode last written to the ring, which differs from {@link #currentMode} e.g. during the countdown.
+     */
+    private int activeMode = 4;
+    private volatile BufferedImage ambientImage;
+    private BufferedImage lastSampledImage;
+    private long nextAmbientFrameNanos = 0;
+    private final byte[] ambientFrame = new byte[LED_COUNT * 3 + 3];
+    private final byte[] ambientColors = new byte[LED_COUNT * 3];
+    private final byte[] lastAmbientColors = new byte[LED_COUNT * 3];
+    private boolean ambientColorsSent = false;
 
     public LedController(Options options) {
         String comPort = options.getComPort();
         if (comPort == null || comPort.equals("COM")) {
             System.out.println("No COM port specified. LED control disabled.");
+            this.comPort = null;
         } else {
-            connectToSerial(comPort);
+            this.comPort = comPort;
+            running = true;
+            ledThread = new Thread(this::runLedThread, "led-controller");
+            ledThread.setDaemon(true);
+            ledThread.start();
         }
     }
 
-    private void connectToSerial(String comPort) {
+    private boolean connectToSerial(String comPort) {
         serialPort = SerialPort.getCommPort(comPort);
-        serialPort.setBaudRate(9600);
+        serialPort.setBaudRate(115200);
         serialPort.setNumDataBits(8);
         serialPort.setNumStopBits(1);
         serialPort.setParity(SerialPort.NO_PARITY);
+        serialPort.setComPortTimeouts(SerialPort.TIMEOUT_WRITE_BLOCKING, 0, WRITE_TIMEOUT_MS);
 
         if (serialPort.openPort()) {
             System.out.println("Successfully connected to " + comPort);
+            return true;
         } else {
             System.err.println("Failed to connect to " + comPort);
+            return false;
         }
     }
 
+    /**
+     * Queue a command for the LED ring. Never blocks.
+     *
+     * @param command the command, e.g. "mode 2;"
+     */
     public void sendCommand(String command) {
+        if (comPort == null) {
+            return;
+        }
+        String key = commandKey(command);
+        synchronized (pendingCommands) {
+            if (!pendingCommands.containsKey(key) && pendingCommands.size() >= QUEUE_CAPACITY) {
+                Metrics.increment("led.droppedCommands");
+                return;
+            }
+            pendingCommands.put(key, command);
+            pendingCommands.notifyAll();
+        }
+    }
+
+    /**
+     * Offer the latest live view frame for the ambient mode. Only stores the reference, the colours are sampled on
+     * the LED thread when the next ambient frame is due.
+     *
+     * @param image the frame
+     */
+    public void offerFrame(BufferedImage image) {
+        if (comPort != null && currentMode == AMBIENT_MODE) {
+            ambientImage = image;
+        }
+    }
+
+    private void runLedThread() {
+        boolean connected = false;
+        boolean wasConnected = false;
+        while (running) {
+            if (!connected) {
+                connected = connectToSerial(comPort);
+                if (!connected) {
+                    sleep(RECONNECT_INTERVAL_MS);
+                    continue;
+                }
+                Metrics.increment("led.connects");
+                if (wasConnected) {
+                    restoreState();
+                }
+                wasConnected = true;
+            }
+
+            boolean ambient = activeMode == AMBIENT_MODE;
+            long waitNanos = ambient ? Math.max(0, nextAmbientFrameNanos - System.nanoTime()) : 0;
+            String command = takeCommand(ambient, waitNanos);
+            if (command != null) {
+                boolean leavingAmbient = activeMode == AMBIENT_MODE && command.startsWith("mode")
+                        && parseMode(command) != AMBIENT_MODE;
+                if (!(leavingAmbient ? writeConfirmedMode(command) : write(command))) {
+                    connected = handleWriteFailure();
+                    requeue(command); // Retry after reconnecting
+                    continue;
+                }
+                if (command.startsWith("mode")) {
+                    activeMode = parseMode(command);
+                    ambientColorsSent = false;
+                }
+            }
+
+            if (activeMode == AMBIENT_MODE && System.nanoTime() >= nextAmbientFrameNanos) {
+                nextAmbientFrameNanos = System.nanoTime() + AMBIENT_FRAME_INTERVAL_NANOS;
+                if (!writeAmbientFrame()) {
+                    connected = handleWriteFailure();
+                }
+            }
+        }
         if (serialPort != null && serialPort.isOpen()) {
-            try {
-                serialPort.getOutputStream().write((command + "\n").getBytes());
-                serialPort.getOutputStream().flush();
-            } catch (IOException e) {
-                e.printStackTrace();
+            serialPort.closePort();
+        }
+    }
+
+    private boolean handleWriteFailure() {
+        System.err.println("Writing to " + comPort + " failed, reconnecting.");
+        Metrics.increment("led.writeFailures");
+        serialPort.closePort();
+        ambientColorsSent = false;
+        return false;
+    }
+
+    /**
+     * Sample the latest frame and write its colours, unless the frame or the colours did not change.
+     *
+     * @return false if writing failed
+     */
+    private boolean writeAmbientFrame() {
+        BufferedImage image = ambientImage;
+        if (image == null || (image == lastSampledImage && ambientColorsSent)) {
+            return true;
+        }
+        lastSampledImage = image;
+
+        byte[] colors = ambientColors;
+        AmbientColorSampler.sampleEdges(image, LED_COUNT, colors);
+        if (ambientColorsSent && Arrays.equals(colors, lastAmbientColors)) {
+            return true;
+        }
+        System.arraycopy(colors, 0, lastAmbientColors, 0, colors.length);
+        ambientColorsSent = true;
+
+        byte checksum = 0;
+        for (byte color : colors) {
+            checksum ^= color;
+        }
+        ambientFrame[0] = (byte) AMBIENT_FRAME_START;
+        ambientFrame[1] = (byte) LED_COUNT;
+        System.arraycopy(colors, 0, ambientFrame, 2, colors.length);
+        ambientFrame[ambientFrame.length - 1] = checksum;
+
+        Metrics.increment("led.ambientFrames");
+        return serialPort.isOpen() && serialPort.writeBytes(ambientFrame, ambientFrame.length) == ambientFrame.length;
+    }
+
+    private static int parseMode(String command) {
+        try {
+            return Integer.parseInt(command.replaceAll("[^0-9]", ""));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Commands of the same kind replace each other, only the latest mode and brightness are sent.
+     */
+    private static String commandKey(String command) {
+        return command.startsWith("mode") ? "mode" : command.startsWith("brightness") ? "brightness" : command;
+    }
+
+    /**
+     * Queue a command that failed to be written again, unless a newer one of the same kind was queued meanwhile.
+     */
+    private void requeue(String command) {
+        synchronized (pendingCommands) {
+            pendingCommands.putIfAbsent(commandKey(command), command);
+        }
+    }
+
+    /**
+     * The ring controller may have been reset while the port was gone, queue the current mode and brightness
+     * unless newer commands are already waiting.
+     */
+    private void restoreState() {
+        synchronized (pendingCommands) {
+            pendingCommands.putIfAbsent("mode", "mode " + currentMode + ";");
+            pendingCommands.putIfAbsent("brightness", "brightness " + getEffectiveBrightness() + ";");
+        }
+    }
+
+    /**
+     * @param timed whether to wait at most waitNanos; otherwise waits until a command arrives
+     * @param waitNanos maximum time to wait for a command
+     * @return the next command, or null if none arrived in time
+     */
+    private String takeCommand(boolean timed, long waitNanos) {
+        synchronized (pendingCommands) {
+            long deadline = System.nanoTime() + waitNanos;
+            while (running && pendingCommands.isEmpty()) {
+                long remainingNanos = deadline - System.nanoTime();
+                if (timed && remainingNanos <= 0) {
+                    return null;
+                }
+                try {
+                    if (timed) {
+                        pendingCommands.wait(Math.max(1, remainingNanos / 1_000_000L));
+                    } else {
+                        pendingCommands.wait();
+                    }
+                } catch (InterruptedException e) {
+                    return null;
+                }
+            }
+            Iterator<String> it = pendingCommands.values().iterator();
+            if (!it.hasNext()) {
+                return null;
+            }
+            String command = it.next();
+            it.remove();
+            return command;
+        }
+    }
+
+    /**
+     * Write a mode command until the firmware confirms it, at most {@link #MODE_CONFIRM_ATTEMPTS} times.
+     *
+     * @return false if writing failed; an unconfirmed mode only counts as led.unconfirmedModes
+     */
+    private boolean writeConfirmedMode(String command) {
+        String reply = "Mode set to " + parseMode(command);
+        // Drop the replies to earlier commands, which nobody read
+        byte[] buffer = new byte[256];
+        while (serialPort.bytesAvailable() > 0 && serialPort.readBytes(buffer, buffer.length) > 0) {
+            // Discarded
+        }
+        StringBuilder received = new StringBuilder();
+        for (int attempt = 0; attempt < MODE_CONFIRM_ATTEMPTS; attempt++) {
+            if (!write(command)) {
+                return false;
             }
+            long deadline = System.currentTimeMillis() + MODE_CONFIRM_TIMEOUT_MS;
+            while (System.currentTimeMillis() < deadline) {
+                int count = serialPort.bytesAvailable() > 0 ? serialPort.readBytes(buffer, buffer.length) : 0;
+                if (count > 0) {
+                    received.append(new String(buffer, 0, count, StandardCharsets.US_ASCII));
+                    if (received.indexOf(reply) >= 0) {
+                        return true;
+                    }
+                } else {
+                    sleep(5);
+                }
+            }
+        }
+        System.err.println("The LED ring did not confirm \"" + command + "\"");
+        Metrics.increment("led.unconfirmedModes");
+        return true;
+    }
+
+    private boolean write(String command) {
+        if (!serialPort.isOpen()) {
+            return false;
+        }
+        // The leading newline ends any garbage left from a damaged ambient frame
+        byte[] bytes = ("\n" + command + "\n").getBytes();
+        // Returns early with fewer bytes written when the write timeout expires
+        return serialPort.writeBytes(bytes, bytes.length) == bytes.length;
+    }
+
+    private void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
     }
 
     public void cycleMode() {
-        currentMode = (currentMode % 4) + 1;
+        currentMode = (currentMode % MODE_COUNT) + 1;
+        if (currentMode != AMBIENT_MODE) {
+            ambientImage = null;
+        }
         sendCommand("mode " + currentMode + ";");
     }
 
+    /**
+     * Dim the ring while the photobox is idle, or restore the set brightness.
+     *
+     * @param dimmed whether to dim
+     */
+    public void setDimmed(boolean dimmed) {
+        this.dimmed = dimmed;
+        sendCommand("brightness " + getEffectiveBrightness() + ";");
+    }
+
+    private int getEffectiveBrightness() {
+        return dimmed ? currentBrightness / DIM_DIVISOR : currentBrightness;
+    }
+
     public int getCurrentMode() {
         return currentMode;
     }
@@ -63,7 +380,7 @@ public class LedController {
         JButton applyButton = new JButton("Apply");
         applyButton.addActionListener(e -> {
             currentBrightness = slider.getValue();
-            sendCommand("brightness " + currentBrightness + ";");
+            sendCommand("brightness " + getEffectiveBrightness() + ";");
             dialog.dispose();
         });
 
@@ -76,8 +393,9 @@ public class LedController {
     }
 
     public void close() {
-        if (serialPort != null && serialPort.isOpen()) {
-            serialPort.closePort();
+        running = false;
+        if (ledThread != null) {
+            ledThread.interrupt();
         }
     }
 }
\ No newline at end of file
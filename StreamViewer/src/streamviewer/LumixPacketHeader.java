@@ -0,0 +1,138 @@
+package streamviewer;
+
+/**
+ * The header in front of the JPEG image in a live view packet of the camera, and the checks done on a packet before
+ * its image is decoded.
+ *
+ * The header starts with 32 bytes whose last two hold the length of the rest of the header, big-endian, so the JPEG
+ * starts at 32 plus that length, somewhere between byte 130 and 320 depending on the model. Bytes 4-5 hold a frame
+ * counter. Packets whose length field does not point at a JPEG start marker are searched for the marker instead, as
+ * before this class existed.
+ *
+ * @param jpegStart offset of the JPEG data in the packet
+ * @param frameCounter the 16 bit frame counter
+ * @param fromLengthField whether the JPEG start was found through the header length field rather than by searching
+ */
+record LumixPacketHeader(int jpegStart, int frameCounter, boolean fromLengthField) {
+    private static final int FIXED_LENGTH = 32;
+    private static final int MIN_JPEG_START = 130;
+    private static final int MAX_JPEG_START = 320;
+    /**
+     * How many bytes at the end of a packet may follow the JPEG end marker, e.g. padding.
+     */
+    private static final int MAX_TRAILER = 16;
+
+    /**
+     * @param packet the packet data
+     * @param length the packet length
+     * @return the header, or null if the packet contains no JPEG start marker where the image is expected
+     */
+    static LumixPacketHeader parse(byte[] packet, int length) {
+        if (length < MIN_JPEG_START + 4) {
+            return null;
+        }
+        int frameCounter = ((packet[4] & 0xFF) << 8) | (packet[5] & 0xFF);
+        int jpegStart = FIXED_LENGTH + (((packet[30] & 0xFF) << 8) | (packet[31] & 0xFF));
+        if (jpegStart >= MIN_JPEG_START && jpegStart <= MAX_JPEG_START && isStartOfImage(packet, jpegStart, length)) {
+            return new LumixPacketHeader(jpegStart, frameCounter, true);
+        }
+        // The image data starts somewhere after the first 130 bytes, but at last in 320 bytes
+        for (int k = Math.min(MAX_JPEG_START, length - 2); k >= MIN_JPEG_START; k--) {
+            if (isStartOfImage(packet, k, length)) {
+                return new LumixPacketHeader(k, frameCounter, false);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * The bytes FF D8 start a JPEG image, see https://en.wikipedia.org/wiki/JPEG_File_Interchange_Format
+     */
+    private static boolean isStartOfImage(byte[] packet, int offset, int length) {
+        return offset + 1 < length && packet[offset] == (byte) 0xFF && packet[offset + 1] == (byte) 0xD8;
+    }
+
+    /**
+     * Check for the JPEG end marker FF D9 at the end of the packet, which is missing if the packet was truncated.
+     * Costs a few byte reads, where a failing decode costs a few milliseconds.
+     *
+     * @return whether the image ends within the last bytes of the packet
+     */
+    boolean hasEndOfImage(byte[] packet, int length) {
+        for (int k = length - 2; k >= Math.max(jpegStart + 2, length - 2 - MAX_TRAILER); k--) {
+            if (packet[k] == (byte) 0xFF && packet[k + 1] == (byte) 0xD9) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Follows the frame counters of the received packets to count lost, late and duplicate packets.
+     *
+     * The counter is only trusted once it has been seen counting up by one for a few packets in a row, so that a
+     * camera using these bytes differently does not show up as massive packet loss. A jump by more than a few seconds
+     * of frames, e.g. after the stream was restarted, starts following the counter anew.
+     */
+    static final class FrameCounter {
+        private static final int PACKETS_TO_TRUST = 8;
+        private static final int MAX_GAP = 300;
+
+        enum Order {
+            /**
+             * Not yet known whether the counter can be trusted.
+             */
+            UNKNOWN,
+            /**
+             * The next frame, or a later one with the frames in between lost (so far).
+             */
+            IN_ORDER,
+            /**
+             * An older frame than one received before, i.e. reordered on the way, or a duplicate.
+             */
+            LATE
+        }
+
+        private int last = -1;
+        private int countingUp = 0;
+
+        /**
+         * Count a packet in the metrics stream.lostPackets, stream.reorderedPackets and stream.duplicatePackets.
+         *
+         * @param counter the frame counter of the packet
+         */
+        Order onPacket(int counter) {
+            if (last < 0) {
+                last = counter;
+                return Order.UNKNOWN;
+            }
+            int step = (counter - last) & 0xFFFF;
+            if (countingUp < PACKETS_TO_TRUST) {
+                countingUp = step == 1 ? countingUp + 1 : 0;
+                last = counter;
+                return Order.UNKNOWN;
+            }
+            if (step == 0) {
+                Metrics.increment("stream.duplicatePackets");
+                return Order.LATE;
+            }
+            if (step <= MAX_GAP) {
+                if (step > 1) {
+                    Metrics.add("stream.lostPackets", step - 1);
+                }
+                last = counter;
+                return Order.IN_ORDER;
+            }
+            if (step >= 0x10000 - MAX_GAP) {
+                // Counted as lost when the following frame arrived, but it only came late
+                Metrics.add("stream.lostPackets", -1);
+                Metrics.increment("stream.reorderedPackets");
+                return Order.LATE;
+            }
+            Metrics.increment("stream.counterResets");
+            countingUp = 0;
+            last = counter;
+            return Order.UNKNOWN;
+        }
+    }
+}
@@ -1,52 +1,330 @@
 package streamviewer;
 
 import javax.swing.*;
+import java.awt.AWTEvent;
+import java.awt.Toolkit;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
+import java.awt.image.BufferedImage;
+import java.io.File;
 import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 public class LumixPhotoBox {
     private static JFrame window;
     private static VideoPanel videoPanel;
-    private static StreamViewerInterface currentStreamViewer;
+    private static volatile StreamViewerInterface currentStreamViewer;
     private static Options options;
     private static Thread streamViewerThread;
     private static CameraStateMonitor cameraStateMonitor;
+    private static CameraSession cameraSession;
+    private static MjpegServer mjpegServer;
+    private static volatile MjpegAviRecorder recorder;
+    private static FrameRing frameRing;
+    private static BoomerangMaker boomerangMaker;
+    private static StripCompositor stripCompositor;
+    private static FaceDetector faceDetector;
+    private static IdleMonitor idleMonitor;
+
+    /**
+     * Frames kept for the boomerang: the last 3 seconds at 15 fps, in 32 MB off-heap.
+     */
+    private static final int BOOMERANG_BUFFER_BYTES = 32 * 1024 * 1024;
+    private static final long BOOMERANG_LENGTH_MS = 3000;
+    private static final int BOOMERANG_FPS = 15;
+
+    private static final long CAMERA_DISCOVERY_TIMEOUT_MS = 800;
+
+    /**
+     * Runs the slow, independent parts of the startup in parallel and off the EDT, so that the window shows up as
+     * early as possible.
+     */
+    private static final ExecutorService startupExecutor = Executors.newFixedThreadPool(2, runnable -> {
+        Thread thread = new Thread(runnable, "startup");
+        thread.setDaemon(true);
+        return thread;
+    });
 
     public static void main(String[] args) {
+        // Log the metrics every minute and on exit
+        IoRuntime.root().scheduleAtFixedRate(() -> System.out.println(Metrics.report()), 1, 1, TimeUnit.MINUTES);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> System.out.println(Metrics.report())));
 
-        System.load(System.getProperty("user.dir") + "/lib/opencv_java4100.dll");  // For Windows
+        // Does not depend on the options; also initializes ImageIO, which takes a while on first use
+        CompletableFuture<BufferedImage> smileyImage = CompletableFuture.supplyAsync(
+                () -> timed("resources", VideoPanel::loadSmileyImage), startupExecutor);
 
         SwingUtilities.invokeLater(() -> {
-            options = Options.read();
+            options = Options.load(args);
             if (options == null) {
                 return;  // User cancelled the input dialog
             }
+            Metrics.markStartupPhase("options");
+
+            // Discover the camera and create the stream viewer (native libraries, network interface lookup, mock
+            // image) while the window is being built; the LED controller connects on its own thread anyway
+            String viewerType = options.getViewerType();
+            CompletableFuture<StreamViewerInterface> streamViewer = CompletableFuture.supplyAsync(() -> {
+                if (options.isCameraDiscoveryEnabled()) {
+                    timed("cameraDiscovery", LumixPhotoBox::discoverCamera);
+                }
+                return timed("streamViewer", () -> createStreamViewer(viewerType));
+            }, startupExecutor);
+            startupExecutor.shutdown();
 
             initializeUI();
-            initializeStreamViewer();
-            initializeCameraStateMonitor();
+            Metrics.markStartupPhase("window");
+            initializeFaceDetector();
+            initializeIdleMonitor();
+            initializeMjpegServer();
+            if (options.isBoomerangEnabled()) {
+                frameRing = new FrameRing(BOOMERANG_BUFFER_BYTES, BOOMERANG_LENGTH_MS, BOOMERANG_FPS);
+                boomerangMaker = new BoomerangMaker();
+            }
+
+            smileyImage.thenAccept(image -> SwingUtilities.invokeLater(() -> videoPanel.setSmileyImage(image)));
+            streamViewer.whenComplete((viewer, error) -> SwingUtilities.invokeLater(() -> {
+                if (error != null) {
+                    handleStreamViewerError(error instanceof CompletionException ? error.getCause() : error);
+                } else {
+                    startStreamViewer(viewer);
+                }
+                initializeCameraStateMonitor();
+            }));
         });
     }
 
+    private static Void discoverCamera() {
+        CameraDiscovery.Camera camera = new CameraDiscovery(CameraDiscovery.DEFAULT_CACHE_FILE)
+                .discover(CAMERA_DISCOVERY_TIMEOUT_MS);
+        if (camera != null) {
+            options.setCamera(camera.ip(), camera.netMaskBitSize());
+        } else {
+            System.out.println("Using the default camera IP " + Options.DEFAULT_CAMERA_IP);
+            options.setCamera(Options.DEFAULT_CAMERA_IP, options.getCameraNetMaskBitSize());
+        }
+        return null;
+    }
+
+    /**
+     * Run a startup task and log how long it took.
+     */
+    private static <T> T timed(String task, Callable<T> work) {
+        long startNanos = System.nanoTime();
+        try {
+            return work.call();
+        } catch (Exception e) {
+            throw new CompletionException(e);
+        } finally {
+            long durationMs = (System.nanoTime() - startNanos) / 1_000_000;
+            Metrics.setGauge("startup." + task + "TaskMs", durationMs);
+            System.out.println("Startup: " + task + " took " + durationMs + " ms");
+        }
+    }
+
     private static void initializeUI() {
         window = new JFrame("Lumix Photobox");
         videoPanel = new VideoPanel(options, LumixPhotoBox::switchCameraMode);
+        videoPanel.setRecordingToggle(LumixPhotoBox::toggleRecording);
+        videoPanel.setCountdownListener(LumixPhotoBox::countdownChanged);
+        videoPanel.setStripAction(LumixPhotoBox::composeStrip);
         window.add(videoPanel);
         window.setSize(1600, 900);
         window.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
         window.setVisible(true);
+        if (options.isFullscreen()) {
+            videoPanel.enterFullscreen();
+        }
 
         window.addWindowListener(new WindowAdapter() {
             @Override
             public void windowClosing(WindowEvent ev) {
                 stopStreamViewer();
                 stopCameraStateMonitor();
+                stopRecording();
+                if (mjpegServer != null) {
+                    mjpegServer.stop();
+                }
+                if (boomerangMaker != null) {
+                    boomerangMaker.shutdown();
+                }
+                if (stripCompositor != null) {
+                    stripCompositor.shutdown();
+                }
+                if (faceDetector != null) {
+                    faceDetector.stop();
+                }
+                IoRuntime.shutdown();
                 System.exit(0);
             }
         });
     }
 
+    private static void initializeIdleMonitor() {
+        idleMonitor = new IdleMonitor(IoRuntime.root(), idle -> {
+            StreamViewerInterface viewer = currentStreamViewer;
+            if (viewer != null) {
+                viewer.setIdle(idle);
+            }
+            videoPanel.setIdle(idle);
+        });
+        videoPanel.setIdleMonitor(idleMonitor);
+        // Any key or touch wakes the photobox up, wherever it goes
+        Toolkit.getDefaultToolkit().addAWTEventListener(event -> idleMonitor.activity(),
+                AWTEvent.KEY_EVENT_MASK | AWTEvent.MOUSE_EVENT_MASK);
+    }
+
+    private static void initializeFaceDetector() {
+        if (options.getFaceDetectionRate() <= 0) {
+            return;
+        }
+        // Loading OpenCV and the cascade takes a while, the live view starts without the framing guide
+        CompletableFuture.supplyAsync(() -> new FaceDetector(options.getFaceCascade(), options.getFaceDetectionRate()))
+                .whenComplete((detector, error) -> SwingUtilities.invokeLater(() -> {
+                    if (error != null) {
+                        Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+                        System.err.println("Face detection is not available: " + cause.getMessage());
+                        return;
+                    }
+                    faceDetector = detector;
+                    videoPanel.setFaceDetector(detector, options.isAutoCountdown());
+                }));
+    }
+
+    private static void initializeMjpegServer() {
+        if (options.getMjpegPort() <= 0) {
+            return;
+        }
+        try {
+            mjpegServer = new MjpegServer(options.getMjpegPort());
+            mjpegServer.start();
+        } catch (IOException e) {
+            System.err.println("Failed to start the MJPEG server on port " + options.getMjpegPort() + ": " + e.getMessage());
+            mjpegServer = null;
+        }
+    }
+
+    /**
+     * Hand a frame to the MJPEG server, the recorder and the boomerang ring; called on the stream viewer's thread.
+     */
+    private static void publishEncodedFrame(EncodedFrame frame) {
+        if (mjpegServer != null) {
+            mjpegServer.publish(frame);
+        }
+        MjpegAviRecorder currentRecorder = recorder;
+        if (currentRecorder != null) {
+            currentRecorder.offer(frame);
+        }
+        if (frameRing != null) {
+            frameRing.offer(frame);
+        }
+    }
+
+    /**
+     * Called on the EDT when a countdown starts (true) and when the photo has been taken (false).
+     */
+    private static void countdownChanged(boolean running) {
+        if (currentStreamViewer instanceof LumixStreamViewer) {
+            // No buffering delay while people pose for the photo
+            ((LumixStreamViewer) currentStreamViewer).setLowLatency(running);
+        }
+        if (!running && frameRing != null) {
+            createBoomerang();
+        }
+    }
+
+    private static void createBoomerang() {
+        List<byte[]> frames = frameRing.snapshot();
+        if (frames.size() < 2) {
+            return;
+        }
+        File boomerangDirectory = new File(options.getPhotoDirectory(), "boomerangs");
+        boomerangDirectory.mkdirs();
+        File file = new File(boomerangDirectory, "boomerang-" + new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date()) + ".gif");
+        boomerangMaker.create(frames, 1000 / BOOMERANG_FPS, file).whenComplete((result, error) -> {
+            if (error != null) {
+                System.err.println("Failed to create " + file + ": " + error.getMessage());
+            } else {
+                System.out.println("Boomerang of " + frames.size() + " frames saved to " + result);
+            }
+        });
+    }
+
+    /**
+     * Lay out the latest photos, oldest first, into a print-sized photo strip in the strips folder.
+     */
+    private static void composeStrip() {
+        StripCompositor.Template template = options.getStripTemplate();
+        File photoDirectory = new File(options.getPhotoDirectory());
+        File[] files = photoDirectory.listFiles((dir, name) -> {
+            String lowerCase = name.toLowerCase();
+            return lowerCase.endsWith(".jpg") || lowerCase.endsWith(".jpeg");
+        });
+        if (files == null || files.length == 0) {
+            System.out.println("No photos in " + photoDirectory + " for a photo strip");
+            return;
+        }
+        List<File> photos = new ArrayList<>(Arrays.asList(files));
+        photos.sort(Comparator.comparingLong(File::lastModified).reversed());
+        photos = new ArrayList<>(photos.subList(0, Math.min(photos.size(), template.getPhotoCount())));
+        Collections.reverse(photos);
+
+        if (stripCompositor == null) {
+            stripCompositor = new StripCompositor();
+        }
+        File stripDirectory = new File(photoDirectory, "strips");
+        stripDirectory.mkdirs();
+        File file = new File(stripDirectory, "strip-" + new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date()) + ".jpg");
+        int photoCount = photos.size();
+        stripCompositor.compose(photos, template, file).whenComplete((result, error) -> {
+            if (error != null) {
+                System.err.println("Failed to create " + file + ": " + error.getMessage());
+            } else {
+                System.out.println("Photo strip of " + photoCount + " photos saved to " + result);
+            }
+        });
+    }
+
+    private static void toggleRecording() {
+        if (recorder != null) {
+            stopRecording();
+            return;
+        }
+        File clipDirectory = new File(options.getPhotoDirectory(), "clips");
+        clipDirectory.mkdirs();
+        File file = new File(clipDirectory, "clip-" + new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date()) + ".avi");
+        try {
+            recorder = new MjpegAviRecorder(file);
+            videoPanel.setRecording(true);
+            System.out.println("Recording to " + file);
+        } catch (IOException e) {
+            JOptionPane.showMessageDialog(window, "Cannot record to " + file + ": " + e.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+        }
+    }
+
+    private static void stopRecording() {
+        MjpegAviRecorder currentRecorder = recorder;
+        if (currentRecorder == null) {
+            return;
+        }
+        recorder = null;
+        videoPanel.setRecording(false);
+        // Writes the index and headers, which is quick, the frames have been written along the way
+        currentRecorder.close();
+    }
+
     private static void initializeCameraStateMonitor() {
         switch (options.getCameraStateMonitorMode()) {
             case "live":
@@ -58,9 +336,11 @@ public class LumixPhotoBox {
             case "none":
             default:
                 cameraStateMonitor = null;
+                videoPanel.setPhotoTakenListener(null);
                 return;
         }
         cameraStateMonitor.start();
+        videoPanel.setPhotoTakenListener(cameraStateMonitor::notifyCapture);
     }
 
     private static void stopCameraStateMonitor() {
@@ -73,23 +353,37 @@ public class LumixPhotoBox {
         stopStreamViewer(); // Stop any existing viewer
 
         try {
-            currentStreamViewer = createStreamViewer(options.getViewerType());
-            currentStreamViewer.setImageConsumer(videoPanel::displayNewImage);
-            streamViewerThread = new Thread(currentStreamViewer);
-            streamViewerThread.start();
+            startStreamViewer(createStreamViewer(options.getViewerType()));
             return true;
-        } catch (Exception e) {
+        } catch (Exception | LinkageError e) {
             handleStreamViewerError(e);
             return false;
         }
     }
 
+    private static void startStreamViewer(StreamViewerInterface streamViewer) {
+        currentStreamViewer = streamViewer;
+        currentStreamViewer.setImageConsumer(videoPanel::displayNewImage);
+        currentStreamViewer.setEncodedFrameConsumer(LumixPhotoBox::publishEncodedFrame);
+        currentStreamViewer.setIdle(idleMonitor != null && idleMonitor.isIdle());
+        streamViewerThread = new Thread(currentStreamViewer);
+        streamViewerThread.start();
+        if (currentStreamViewer instanceof LumixStreamViewer) {
+            // The UDP socket is bound now, so the camera can be asked to start streaming
+            CameraSession session = new CameraSession(options.getCameraIp(), LumixStreamViewer.DEFAULT_UDP_PORT, IoRuntime.camera());
+            ((LumixStreamViewer) currentStreamViewer).setRestreamAction(session::restartStream);
+            cameraSession = session;
+            cameraSession.open();
+        }
+    }
+
     private static StreamViewerInterface createStreamViewer(String viewerType) throws Exception {
         switch (viewerType) {
             case "mock":
                 return new MockStreamViewer("/mockImage.png");
             case "real":
-                return new LumixStreamViewer(videoPanel::displayNewImage, options.getCameraIp(), options.getCameraNetMaskBitSize());
+                // The panel may not exist yet during startup, the consumer is set again when the viewer is started
+                return new LumixStreamViewer(image -> videoPanel.displayNewImage(image), options.getCameraIp(), options.getCameraNetMaskBitSize());
             case "webcam":
                 return new WebcamStreamViewer(options.getWebcamIndex());
             default:
@@ -98,6 +392,10 @@ public class LumixPhotoBox {
     }
 
     private static void stopStreamViewer() {
+        if (cameraSession != null) {
+            cameraSession.close();
+            cameraSession = null;
+        }
         if (currentStreamViewer != null) {
             if (currentStreamViewer instanceof WebcamStreamViewer) {
                 ((WebcamStreamViewer) currentStreamViewer).stop();
@@ -122,19 +420,21 @@ public class LumixPhotoBox {
         String newMode = selector.selectMode();
         if (newMode != null && !newMode.equals(options.getViewerType())) {
             String previousMode = options.getViewerType();
+            stopStreamViewer();
+            stopCameraStateMonitor();
+            // Cancel whatever still talks to the previous camera, e.g. a photo request waiting for its timeout
+            IoRuntime.resetCamera();
             options.setViewerType(newMode);
             if (!initializeStreamViewer()) {
                 // If initialization fails, revert to the previous mode
                 options.setViewerType(previousMode);
                 initializeStreamViewer();
             }
-            // Update CameraStateMonitor if needed
-            stopCameraStateMonitor();
             initializeCameraStateMonitor();
         }
     }
 
-    private static void handleStreamViewerError(Exception e) {
+    private static void handleStreamViewerError(Throwable e) {
         String errorMessage = "Error initializing stream viewer: " + e.getMessage();
         if (e instanceof IOException && options.getViewerType().equals("mock")) {
             errorMessage += "\nMake sure the mock image file exists in the resources folder.";
@@ -7,10 +7,11 @@ import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.SocketException;
+import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
 import java.util.Arrays;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
 import java.util.function.Consumer;
 
 import javax.imageio.ImageIO;
@@ -22,11 +23,36 @@ import javax.imageio.ImageIO;
  */
 public class LumixStreamViewer implements StreamViewerInterface {
 
+    /**
+     * The UDP port the camera is asked to stream to by default.
+     */
+    public static final int DEFAULT_UDP_PORT = 49199;
+
+    /**
+     * Gap between packets after which the stream is considered stalled, can be set by the system property
+     * photobox.stallThresholdMs.
+     */
+    private static final long STALL_THRESHOLD_MS = Long.getLong("photobox.stallThresholdMs", 700);
+
+    /**
+     * How often the watchdog checks for a stall while no packets arrive.
+     */
+    private static final int WATCHDOG_POLL_MS = 100;
+
+    /**
+     * Whether decoded frames go through the jitter buffer, can be switched off by the system property
+     * photobox.jitterBuffer=false.
+     */
+    private static final boolean JITTER_BUFFER_ENABLED = Boolean.parseBoolean(System.getProperty("photobox.jitterBuffer", "true"));
+
 // debugigng
     private long packetCount = 0;
     private long lastLogTime = System.currentTimeMillis();
+    private long droppedCount = 0;
+    private long lostAtLastLog = Metrics.getCounter("stream.lostPackets");
+    private final LumixPacketHeader.FrameCounter frameCounter = new LumixPacketHeader.FrameCounter();
 
-    private Consumer<BufferedImage> imageConsumer;
+    private volatile Consumer<BufferedImage> imageConsumer;
 
     /**
      * The local UDP socket for receiving the video stream.
@@ -43,13 +69,70 @@ public class LumixStreamViewer implements StreamViewerInterface {
      */
     private final InetAddress cameraIp;
 
-    private ExecutorService imageExecutor = Executors.newCachedThreadPool();
+    /**
+     * Decodes the frames on virtual threads.
+     */
+    private final IoRuntime.Scope decodeScope = IoRuntime.camera().openScope("lumix-decode");
+
+    /**
+     * Limits the frames decoded at a time to one less than the CPUs, so that decoding neither piles up when it falls
+     * behind nor takes all carrier threads from the camera I/O. Frames arriving while all permits are taken are
+     * dropped.
+     */
+    private final Semaphore decodePermits = new Semaphore(Math.max(1, Runtime.getRuntime().availableProcessors() - 1));
+
+    private volatile Runnable restreamAction = () -> {};
+
+    private volatile Consumer<EncodedFrame> encodedFrameConsumer;
+    private long frameSequenceNumber = 0;
+
+    private volatile boolean idle = false;
+    private long lastDecodeNanos = 0;
+
+    private final JitterBuffer jitterBuffer = new JitterBuffer(image -> {
+        Consumer<BufferedImage> imageConsumer = this.imageConsumer;
+        if (imageConsumer != null) {
+            imageConsumer.accept(image);
+        }
+    });
 
     @Override
     public void setImageConsumer(Consumer<BufferedImage> imageConsumer) {
         this.imageConsumer = imageConsumer;
     }
 
+    /**
+     * The frames carry the JPEG bytes as sent by the camera, they are passed on before and independent of decoding.
+     */
+    @Override
+    public void setEncodedFrameConsumer(Consumer<EncodedFrame> encodedFrameConsumer) {
+        this.encodedFrameConsumer = encodedFrameConsumer;
+    }
+
+    /**
+     * While idle, the frames between the ones decoded are not decoded at all; the encoded frames still all go to the
+     * encoded frame consumer.
+     */
+    @Override
+    public void setIdle(boolean idle) {
+        this.idle = idle;
+    }
+
+    /**
+     * @param lowLatency whether to show frames as soon as they are decoded instead of evening out their cadence,
+     * e.g. during the countdown
+     */
+    public void setLowLatency(boolean lowLatency) {
+        jitterBuffer.setLowLatency(lowLatency);
+    }
+
+    /**
+     * @param restreamAction asks the camera to stream again after the stream stalled; must not block
+     */
+    public void setRestreamAction(Runnable restreamAction) {
+        this.restreamAction = restreamAction;
+    }
+
     /**
      * Create the Lumix videostream reader connected to the default UDP port 49199.
      *
@@ -61,7 +144,7 @@ public class LumixStreamViewer implements StreamViewerInterface {
      */
     public LumixStreamViewer(Consumer<BufferedImage> imageConsumer, String cameraIp, int cameraNetmaskBitSize)
             throws UnknownHostException, SocketException {
-        this(imageConsumer, cameraIp, cameraNetmaskBitSize, 49199);
+        this(imageConsumer, cameraIp, cameraNetmaskBitSize, DEFAULT_UDP_PORT);
     }
 
     /**
@@ -77,18 +160,18 @@ public class LumixStreamViewer implements StreamViewerInterface {
     public LumixStreamViewer(Consumer<BufferedImage> imageConsumer, String cameraIp, int cameraNetmaskBitSize, int udpPort)
             throws UnknownHostException, SocketException {
         this.imageConsumer = imageConsumer;
-        this.cameraIp = NetUtil.findLocalIpInSubnet(cameraIp, cameraNetmaskBitSize);
+        this.cameraIp = NetUtil.findLocalIpInSubnet(NetUtil.stripPort(cameraIp), cameraNetmaskBitSize);
 
         this.localUdpPort = udpPort;
         this.localUdpSocket = new DatagramSocket(this.localUdpPort);
+        // Do not wait forever for packets, the watchdog has to notice when the camera stops sending
+        this.localUdpSocket.setSoTimeout(WATCHDOG_POLL_MS);
 
         System.out.println("UDP Socket on " + this.cameraIp.getHostAddress() + ":" + this.localUdpPort
                 + " created");
     }
 
-    private BufferedImage retrieveImage(DatagramPacket receivedPacket) {
-        final byte[] videoData = getImageData(receivedPacket);
-
+    private BufferedImage retrieveImage(byte[] videoData) {
         System.out.println("Extracted video data. Size: " + videoData.length + " bytes");
 
         BufferedImage img = null;
@@ -111,32 +194,36 @@ public class LumixStreamViewer implements StreamViewerInterface {
      * The camera sends one JPEG image in each UDP packet.
      *
      * @param receivedPacket a received camera image packet
+     * @param header the parsed header of the packet
      * @return the jpeg image data
      */
-    private byte[] getImageData(DatagramPacket receivedPacket) {
-        final byte[] udpData = receivedPacket.getData();
-        int videoDataStart = getImageDataStart(receivedPacket, udpData);
-        System.out.println("Image data starts at byte: " + videoDataStart);
-        return Arrays.copyOfRange(udpData, videoDataStart, receivedPacket.getLength());
+    private byte[] getImageData(DatagramPacket receivedPacket, LumixPacketHeader header) {
+        return Arrays.copyOfRange(receivedPacket.getData(), header.jpegStart(), receivedPacket.getLength());
     }
 
-    private int getImageDataStart(DatagramPacket receivedPacket, byte[] udpData) {
-        int videoDataStart = 130;
-
-        // The image data starts somewhere after the first 130 bytes, but at last in 320 bytes
-        for (int k = 130; k < 320 && k < (receivedPacket.getLength() - 1); k++) {
-            // The bytes FF and D8 signify the start of the jpeg data, see https://en.wikipedia.org/wiki/JPEG_File_Interchange_Format
-            if ((udpData[k] == (byte) 0xFF) && (udpData[(k + 1)] == (byte) 0xD8)) {
-                videoDataStart = k;
-            }
-        }
-
-        return videoDataStart;
+    /**
+     * Log the packets received, lost and dropped since the last time, and publish the loss as the gauge
+     * stream.lossPermille.
+     */
+    private void logPacketLoss() {
+        long lost = Metrics.getCounter("stream.lostPackets");
+        long lostSinceLog = lost - lostAtLastLog;
+        lostAtLastLog = lost;
+        long expected = packetCount + Math.max(0, lostSinceLog);
+        Metrics.setGauge("stream.lossPermille", expected > 0 ? Math.max(0, lostSinceLog) * 1000 / expected : 0);
+        System.out.println("Received " + packetCount + " packets in the last 5 seconds, " + lostSinceLog + " lost, "
+                + droppedCount + " dropped as incomplete or late");
+        droppedCount = 0;
     }
 
     @Override
     public void run() {
         byte[] udpPacketBuffer = new byte[35000];
+        StreamWatchdog watchdog = new StreamWatchdog(STALL_THRESHOLD_MS, () -> restreamAction.run());
+
+        if (JITTER_BUFFER_ENABLED) {
+            jitterBuffer.start();
+        }
 
         System.out.println("StreamViewer started. Listening for packets...");
 
@@ -145,8 +232,16 @@ public class LumixStreamViewer implements StreamViewerInterface {
                 final DatagramPacket receivedPacket = new DatagramPacket(udpPacketBuffer, udpPacketBuffer.length,
                         cameraIp, localUdpPort);
 
-                System.out.println("Waiting to receive packet...");
-                localUdpSocket.receive(receivedPacket);
+                // Returns every WATCHDOG_POLL_MS without a packet, so nothing is logged while waiting
+                try {
+                    localUdpSocket.receive(receivedPacket);
+                } catch (SocketTimeoutException e) {
+                    watchdog.check(System.nanoTime());
+                    continue;
+                }
+                long receiveNanos = System.nanoTime();
+                watchdog.onPacket(receiveNanos);
+                jitterBuffer.recordArrival(receiveNanos);
 
                 System.out.println("Received packet from: " + receivedPacket.getAddress() + ":" + receivedPacket.getPort());
                 System.out.println("Packet length: " + receivedPacket.getLength());
@@ -154,28 +249,74 @@ public class LumixStreamViewer implements StreamViewerInterface {
                 packetCount++;
                 long currentTime = System.currentTimeMillis();
                 if (currentTime - lastLogTime > 5000) {
-                    System.out.println("Received " + packetCount + " packets in the last 5 seconds");
+                    logPacketLoss();
                     packetCount = 0;
                     lastLogTime = currentTime;
                 }
 
-                imageExecutor.submit(() -> {
-                    BufferedImage newImage = retrieveImage(receivedPacket);
-                    if (newImage != null) {
-                        System.out.println("Successfully retrieved image. Size: " + newImage.getWidth() + "x" + newImage.getHeight());
-                        imageConsumer.accept(newImage);
-                    } else {
-                        System.out.println("Failed to retrieve image from packet. Packet size: " + receivedPacket.getLength());
-                    }
-                });
+                // Checked before copying and decoding, a broken or stale frame would only be thrown away later
+                LumixPacketHeader header = LumixPacketHeader.parse(udpPacketBuffer, receivedPacket.getLength());
+                if (header == null || !header.hasEndOfImage(udpPacketBuffer, receivedPacket.getLength())) {
+                    droppedCount++;
+                    Metrics.increment("stream.corruptFrames");
+                    continue;
+                }
+                if (!header.fromLengthField()) {
+                    Metrics.increment("stream.headerFallbacks");
+                }
+                if (frameCounter.onPacket(header.frameCounter()) == LumixPacketHeader.FrameCounter.Order.LATE) {
+                    droppedCount++;
+                    continue;
+                }
+
+                // Copied here, the packet buffer is reused for the next packet while the image is decoded
+                final byte[] videoData = getImageData(receivedPacket, header);
+                Consumer<EncodedFrame> encodedFrameConsumer = this.encodedFrameConsumer;
+                if (encodedFrameConsumer != null) {
+                    encodedFrameConsumer.accept(EncodedFrame.ofJpeg(frameSequenceNumber, receiveNanos, videoData));
+                }
+                final long sequenceNumber = frameSequenceNumber++;
+
+                // Decode only if someone needs the pixels
+                if (imageConsumer == null
+                        || (idle && receiveNanos - lastDecodeNanos < 1_000_000_000L / IDLE_FRAMES_PER_SECOND)) {
+                    continue;
+                }
+                if (!decodePermits.tryAcquire()) {
+                    Metrics.increment("stream.decodeDroppedFrames");
+                    continue;
+                }
+                lastDecodeNanos = receiveNanos;
+                try {
+                    decodeScope.execute(() -> {
+                        try {
+                            BufferedImage newImage = retrieveImage(videoData);
+                            if (newImage != null) {
+                                System.out.println("Successfully retrieved image. Size: " + newImage.getWidth() + "x" + newImage.getHeight());
+                                // Decoding on several threads may reorder the frames, the jitter buffer puts them back in order
+                                jitterBuffer.offer(sequenceNumber, receiveNanos, newImage);
+                            } else {
+                                System.out.println("Failed to retrieve image from packet. Packet size: " + videoData.length);
+                            }
+                        } finally {
+                            decodePermits.release();
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    decodePermits.release();
+                    throw e;
+                }
 
             } catch (IOException e) {
                 System.out.println("Error with client request : " + e.getMessage());
+            } catch (RejectedExecutionException e) {
+                break; // The camera scope was closed
             }
         }
 
         System.out.println("StreamViewer stopped.");
-        imageExecutor.shutdown();
+        jitterBuffer.stop();
+        decodeScope.close();
         localUdpSocket.close();
     }
 
@@ -0,0 +1,101 @@
+package streamviewer;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Application wide counters, gauges and timings, logged periodically so that problems on a booth can be diagnosed
+ * after an event.
+ *
+ * All methods are cheap and thread safe, they may be called from the receive and paint paths.
+ */
+public class Metrics {
+    private static final Map<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private static final Map<String, AtomicLong> gauges = new ConcurrentHashMap<>();
+    private static final Map<String, Timing> timings = new ConcurrentHashMap<>();
+
+    private static class Timing {
+        private final LongAdder count = new LongAdder();
+        private final LongAdder total = new LongAdder();
+        private final AtomicLong max = new AtomicLong();
+        private volatile long last;
+
+        private void record(long value) {
+            count.increment();
+            total.add(value);
+            max.accumulateAndGet(value, Math::max);
+            last = value;
+        }
+
+        @Override
+        public String toString() {
+            long n = count.sum();
+            return "count=" + n + " avg=" + (n > 0 ? total.sum() / n : 0) + " max=" + max.get() + " last=" + last;
+        }
+    }
+
+    public static void increment(String name) {
+        add(name, 1);
+    }
+
+    public static void add(String name, long delta) {
+        counters.computeIfAbsent(name, k -> new LongAdder()).add(delta);
+    }
+
+    public static long getCounter(String name) {
+        LongAdder counter = counters.get(name);
+        return counter != null ? counter.sum() : 0;
+    }
+
+    public static void setGauge(String name, long value) {
+        gauges.computeIfAbsent(name, k -> new AtomicLong()).set(value);
+    }
+
+    public static long getGauge(String name) {
+        AtomicLong gauge = gauges.get(name);
+        return gauge != null ? gauge.get() : 0;
+    }
+
+    /**
+     * Record a duration or any other value of which count, average and maximum are of interest.
+     *
+     * @param name name of the timing, by convention ending with the unit, e.g. "stream.stallMs"
+     * @param value the measured value
+     */
+    public static void record(String name, long value) {
+        timings.computeIfAbsent(name, k -> new Timing()).record(value);
+    }
+
+    /**
+     * Record the time since the JVM was started at which the given startup phase was reached, once per phase.
+     *
+     * @param phase name of the phase, recorded as "startup.&lt;phase&gt;Ms"
+     */
+    public static void markStartupPhase(String phase) {
+        String name = "startup." + phase + "Ms";
+        if (!gauges.containsKey(name)) {
+            long uptime = ManagementFactory.getRuntimeMXBean().getUptime();
+            if (gauges.putIfAbsent(name, new AtomicLong(uptime)) == null) {
+                System.out.println("Startup: " + phase + " after " + uptime + " ms");
+            }
+        }
+    }
+
+    /**
+     * @return all metrics, one per line, sorted by name
+     */
+    public static String report() {
+        Map<String, String> lines = new TreeMap<>();
+        counters.forEach((name, counter) -> lines.put(name, String.valueOf(counter.sum())));
+        gauges.forEach((name, gauge) -> lines.put(name, String.valueOf(gauge.get())));
+        timings.forEach((name, timing) -> lines.put(name, timing.toString()));
+
+        StringBuilder report = new StringBuilder("Metrics:");
+        lines.forEach((name, value) -> report.append("\n  ").append(name).append(": ").append(value));
+        return report.toString();
+    }
+}
@@ -0,0 +1,287 @@
+package streamviewer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records the live view into an MJPEG AVI file, storing the JPEG frames as they are, without decoding or encoding
+ * them again (frames of the webcam viewer are encoded once, on the recorder's thread).
+ *
+ * {@link #offer(EncodedFrame)} only puts the frame into a bounded queue, so it never blocks the receive thread. A
+ * writer thread appends the queued frames in batches with one gathering write per batch. If the disk is too slow
+ * and the queue is full, frames are dropped and counted as recorder.droppedFrames instead of stalling the stream.
+ *
+ * The frame size is taken from the first frame. The frame rate, the frame count and the idx1 index are only known
+ * at the end and are written by {@link #close()}.
+ */
+public class MjpegAviRecorder {
+    private static final int QUEUE_CAPACITY = 64;
+    private static final int MAX_BATCH = 16;
+    private static final int HEADER_SIZE = 224;
+    /**
+     * Position of the "movi" FOURCC, the idx1 offsets are relative to it.
+     */
+    private static final int MOVI_OFFSET = 220;
+    private static final int AVIF_HASINDEX = 0x10;
+    private static final int AVIIF_KEYFRAME = 0x10;
+
+    private final File file;
+    private final FileChannel channel;
+    private final BlockingQueue<EncodedFrame> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final Thread writerThread;
+    private volatile boolean running = true;
+
+    private boolean frameSizeKnown = false;
+    private int width;
+    private int height;
+    private long position = HEADER_SIZE;
+    private int frameCount = 0;
+    private int maxFrameSize = 0;
+    private long firstFrameNanos;
+    private long lastFrameNanos;
+    /**
+     * Offset relative to {@link #MOVI_OFFSET} and size of every frame, for the index.
+     */
+    private int[] index = new int[2 * 1024];
+
+    /**
+     * @param file the AVI file to create
+     * @throws IOException if the file cannot be created
+     */
+    public MjpegAviRecorder(File file) throws IOException {
+        this.file = file;
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        // The header is written last, when everything in it is known
+        this.channel.position(HEADER_SIZE);
+        writerThread = new Thread(this::runWriter, "avi-recorder");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Queue a frame for recording. Never blocks; the frame is dropped if the writer cannot keep up.
+     *
+     * @param frame the frame
+     */
+    public void offer(EncodedFrame frame) {
+        if (!running) {
+            return;
+        }
+        if (!queue.offer(frame)) {
+            Metrics.increment("recorder.droppedFrames");
+        }
+    }
+
+    /**
+     * Write the queued frames, the index and the final headers, and close the file. Blocks until done.
+     */
+    public void close() {
+        running = false;
+        try {
+            writerThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void runWriter() {
+        List<EncodedFrame> batch = new ArrayList<>(MAX_BATCH);
+        try {
+            while (running || !queue.isEmpty()) {
+                EncodedFrame first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch, MAX_BATCH - 1);
+                writeFrames(batch);
+                batch.clear();
+            }
+            finish();
+        } catch (IOException e) {
+            System.err.println("Recording to " + file + " failed: " + e.getMessage());
+            running = false;
+            queue.clear();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void writeFrames(List<EncodedFrame> frames) throws IOException {
+        ByteBuffer[] buffers = new ByteBuffer[frames.size() * 2];
+        int count = 0;
+        for (EncodedFrame frame : frames) {
+            byte[] jpeg = frame.getJpeg();
+            if (jpeg == null) {
+                continue;
+            }
+            if (!frameSizeKnown) {
+                int[] size = readJpegSize(jpeg);
+                if (size == null) {
+                    Metrics.increment("recorder.droppedFrames");
+                    continue;
+                }
+                width = size[0];
+                height = size[1];
+                firstFrameNanos = frame.getReceiveNanos();
+                frameSizeKnown = true;
+            }
+            lastFrameNanos = frame.getReceiveNanos();
+
+            // Chunks are padded to an even size
+            int padding = jpeg.length & 1;
+            ByteBuffer chunkHeader = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+            chunkHeader.put(fourCc("00dc")).putInt(jpeg.length).flip();
+            buffers[count++] = chunkHeader;
+            buffers[count++] = ByteBuffer.wrap(padding == 0 ? jpeg : Arrays.copyOf(jpeg, jpeg.length + 1));
+
+            if (index.length < (frameCount + 1) * 2) {
+                index = Arrays.copyOf(index, index.length * 2);
+            }
+            index[frameCount * 2] = (int) (position - MOVI_OFFSET);
+            index[frameCount * 2 + 1] = jpeg.length;
+            frameCount++;
+            maxFrameSize = Math.max(maxFrameSize, jpeg.length);
+            position += 8 + jpeg.length + padding;
+        }
+
+        long start = System.nanoTime();
+        // One gathering write for the whole batch
+        while (hasRemaining(buffers, count)) {
+            channel.write(buffers, 0, count);
+        }
+        Metrics.record("recorder.batchWriteMs", (System.nanoTime() - start) / 1_000_000);
+        Metrics.add("recorder.frames", count / 2);
+    }
+
+    private static boolean hasRemaining(ByteBuffer[] buffers, int count) {
+        for (int i = 0; i < count; i++) {
+            if (buffers[i].hasRemaining()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void finish() throws IOException {
+        if (frameCount == 0) {
+            System.out.println("Nothing recorded, deleting " + file);
+            channel.close();
+            file.delete();
+            return;
+        }
+
+        ByteBuffer idx1 = ByteBuffer.allocate(8 + frameCount * 16).order(ByteOrder.LITTLE_ENDIAN);
+        idx1.put(fourCc("idx1")).putInt(frameCount * 16);
+        for (int i = 0; i < frameCount; i++) {
+            idx1.put(fourCc("00dc")).putInt(AVIIF_KEYFRAME).putInt(index[i * 2]).putInt(index[i * 2 + 1]);
+        }
+        idx1.flip();
+        channel.write(idx1, position);
+
+        long durationNanos = lastFrameNanos - firstFrameNanos;
+        int microSecPerFrame = frameCount > 1 ? (int) (durationNanos / 1000 / (frameCount - 1)) : 33333;
+        ByteBuffer header = createHeader(Math.max(1, microSecPerFrame), position + idx1.limit());
+        channel.write(header, 0);
+        channel.force(false);
+        System.out.println("Recorded " + frameCount + " frames (" + width + "x" + height + ", "
+                + (1_000_000 / Math.max(1, microSecPerFrame)) + " fps) to " + file);
+    }
+
+    private ByteBuffer createHeader(int microSecPerFrame, long fileSize) {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.put(fourCc("RIFF")).putInt((int) (fileSize - 8)).put(fourCc("AVI "));
+
+        header.put(fourCc("LIST")).putInt(192).put(fourCc("hdrl"));
+        header.put(fourCc("avih")).putInt(56);
+        header.putInt(microSecPerFrame);
+        header.putInt((int) ((long) maxFrameSize * 1_000_000 / microSecPerFrame)); // dwMaxBytesPerSec
+        header.putInt(0);                   // dwPaddingGranularity
+        header.putInt(AVIF_HASINDEX);       // dwFlags
+        header.putInt(frameCount);          // dwTotalFrames
+        header.putInt(0);                   // dwInitialFrames
+        header.putInt(1);                   // dwStreams
+        header.putInt(maxFrameSize);        // dwSuggestedBufferSize
+        header.putInt(width).putInt(height);
+        header.putInt(0).putInt(0).putInt(0).putInt(0);
+
+        header.put(fourCc("LIST")).putInt(116).put(fourCc("strl"));
+        header.put(fourCc("strh")).putInt(56);
+        header.put(fourCc("vids")).put(fourCc("MJPG"));
+        header.putInt(0);                   // dwFlags
+        header.putShort((short) 0).putShort((short) 0); // wPriority, wLanguage
+        header.putInt(0);                   // dwInitialFrames
+        header.putInt(microSecPerFrame);    // dwScale
+        header.putInt(1_000_000);           // dwRate, rate / scale = frames per second
+        header.putInt(0);                   // dwStart
+        header.putInt(frameCount);          // dwLength
+        header.putInt(maxFrameSize);        // dwSuggestedBufferSize
+        header.putInt(-1);                  // dwQuality
+        header.putInt(0);                   // dwSampleSize
+        header.putShort((short) 0).putShort((short) 0).putShort((short) width).putShort((short) height);
+
+        header.put(fourCc("strf")).putInt(40);
+        header.putInt(40);                  // biSize
+        header.putInt(width).putInt(height);
+        header.putShort((short) 1).putShort((short) 24); // biPlanes, biBitCount
+        header.put(fourCc("MJPG"));         // biCompression
+        header.putInt(width * height * 3);  // biSizeImage
+        header.putInt(0).putInt(0).putInt(0).putInt(0);
+
+        header.put(fourCc("LIST")).putInt((int) (position - MOVI_OFFSET)).put(fourCc("movi"));
+        header.flip();
+        return header;
+    }
+
+    private static byte[] fourCc(String code) {
+        return code.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * @return width and height from the JPEG's start of frame marker, or null if there is none
+     */
+    static int[] readJpegSize(byte[] jpeg) {
+        int i = 2; // Skip SOI
+        while (i + 9 < jpeg.length) {
+            if (jpeg[i] != (byte) 0xFF) {
+                return null;
+            }
+            int marker = jpeg[i + 1] & 0xFF;
+            if (marker == 0xFF) {
+                i++; // Fill byte
+                continue;
+            }
+            int length = ((jpeg[i + 2] & 0xFF) << 8) | (jpeg[i + 3] & 0xFF);
+            // SOF0 to SOF15, except DHT (C4), JPG (C8) and DAC (CC)
+            if (marker >= 0xC0 && marker <= 0xCF && marker != 0xC4 && marker != 0xC8 && marker != 0xCC) {
+                int height = ((jpeg[i + 5] & 0xFF) << 8) | (jpeg[i + 6] & 0xFF);
+                int width = ((jpeg[i + 7] & 0xFF) << 8) | (jpeg[i + 8] & 0xFF);
+                return new int[]{width, height};
+            }
+            i += 2 + length;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,163 @@
+package streamviewer;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Serves the live view as MJPEG (multipart/x-mixed-replace) over HTTP, for secondary displays such as a TV or the
+ * operator's tablet.
+ *
+ * The JPEG images are passed through exactly as the camera sent them, nothing is decoded or encoded for the clients,
+ * so the cost per frame is the same for any number of clients. Frames of the webcam and mock viewers are encoded once
+ * per frame, and only while clients are connected. Each client has a slot holding only the latest frame not yet sent
+ * to it; a client that cannot keep up skips frames instead of building up a backlog.
+ */
+public class MjpegServer {
+    private static final String BOUNDARY = "photoboxframe";
+    private static final int MAX_CLIENTS = 32;
+    /**
+     * How long a client waits for a frame before checking whether the server is still running.
+     */
+    private static final long FRAME_WAIT_MS = 1000;
+
+    private final HttpServer server;
+    private final ExecutorService clientExecutor;
+    private final Set<Client> clients = ConcurrentHashMap.newKeySet();
+    private volatile boolean running = false;
+
+    /**
+     * The latest frame not yet sent to one client.
+     */
+    private static class Client {
+        private EncodedFrame nextFrame;
+        private boolean closed = false;
+
+        synchronized void offer(EncodedFrame frame) {
+            if (nextFrame != null) {
+                Metrics.increment("mjpeg.droppedFrames");
+            }
+            nextFrame = frame;
+            notifyAll();
+        }
+
+        /**
+         * @return the next frame, or null if none arrived in time or the client was closed
+         */
+        synchronized EncodedFrame take(long timeoutMs) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + timeoutMs;
+            while (nextFrame == null && !closed) {
+                long remainingMs = deadline - System.currentTimeMillis();
+                if (remainingMs <= 0) {
+                    return null;
+                }
+                wait(remainingMs);
+            }
+            EncodedFrame frame = nextFrame;
+            nextFrame = null;
+            return frame;
+        }
+
+        synchronized void close() {
+            closed = true;
+            notifyAll();
+        }
+    }
+
+    /**
+     * @param port the TCP port to listen on
+     * @throws IOException if the port cannot be bound
+     */
+    public MjpegServer(int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(port), 0);
+        // Every client blocks one thread for as long as it watches
+        clientExecutor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "mjpeg-client");
+            thread.setDaemon(true);
+            return thread;
+        });
+        server.setExecutor(clientExecutor);
+        server.createContext("/", this::handleStream);
+    }
+
+    public void start() {
+        running = true;
+        server.start();
+        System.out.println("MJPEG stream available at http://<this computer>:" + server.getAddress().getPort() + "/");
+    }
+
+    public void stop() {
+        running = false;
+        for (Client client : clients) {
+            client.close();
+        }
+        server.stop(0);
+        clientExecutor.shutdownNow();
+    }
+
+    /**
+     * Hand a new frame to all clients. Never blocks; frames not yet encoded are encoded by the first client thread
+     * sending them, once for all clients.
+     *
+     * @param frame the frame, shared by all clients
+     */
+    public void publish(EncodedFrame frame) {
+        for (Client client : clients) {
+            client.offer(frame);
+        }
+    }
+
+    private void handleStream(HttpExchange exchange) throws IOException {
+        if (clients.size() >= MAX_CLIENTS) {
+            exchange.sendResponseHeaders(503, -1);
+            exchange.close();
+            return;
+        }
+
+        Client client = new Client();
+        clients.add(client);
+        Metrics.setGauge("mjpeg.clients", clients.size());
+        System.out.println("MJPEG client connected: " + exchange.getRemoteAddress());
+
+        exchange.getResponseHeaders().set("Content-Type", "multipart/x-mixed-replace; boundary=" + BOUNDARY);
+        exchange.getResponseHeaders().set("Cache-Control", "no-cache, no-store");
+        exchange.getResponseHeaders().set("Connection", "close");
+        exchange.sendResponseHeaders(200, 0);
+
+        try (OutputStream out = exchange.getResponseBody()) {
+            while (running) {
+                EncodedFrame next = client.take(FRAME_WAIT_MS);
+                byte[] frame = next != null ? next.getJpeg() : null;
+                if (frame == null) {
+                    continue;
+                }
+                String partHeader = "--" + BOUNDARY + "\r\nContent-Type: image/jpeg\r\nContent-Length: "
+                        + frame.length + "\r\n\r\n";
+                out.write(partHeader.getBytes(StandardCharsets.US_ASCII));
+                out.write(frame);
+                out.write('\r');
+                out.write('\n');
+                out.flush();
+                Metrics.increment("mjpeg.sentFrames");
+            }
+        } catch (IOException e) {
+            // The client went away
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            client.close();
+            clients.remove(client);
+            Metrics.setGauge("mjpeg.clients", clients.size());
+            System.out.println("MJPEG client disconnected: " + exchange.getRemoteAddress());
+            exchange.close();
+        }
+    }
+}
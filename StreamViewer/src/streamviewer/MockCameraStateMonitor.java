@@ -1,26 +1,22 @@
 package streamviewer;
 
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import javax.swing.SwingUtilities;
 
 public class MockCameraStateMonitor extends CameraStateMonitor {
-    private final ScheduledExecutorService scheduler;
     private final CameraStateUpdateListener updateListener;
     private boolean isRunning = false;
 
     public MockCameraStateMonitor(Options options, CameraStateUpdateListener updateListener) {
         super(options, updateListener);
         this.updateListener = updateListener;
-        this.scheduler = Executors.newScheduledThreadPool(1);
     }
 
     @Override
     public void start() {
         if (!isRunning) {
             isRunning = true;
-            scheduler.scheduleAtFixedRate(this::updateMockState, 0, 10, TimeUnit.SECONDS);
+            scope.scheduleAtFixedRate(this::updateMockState, 0, 10, TimeUnit.SECONDS);
         }
     }
 
@@ -28,7 +24,7 @@ public class MockCameraStateMonitor extends CameraStateMonitor {
     public void stop() {
         if (isRunning) {
             isRunning = false;
-            scheduler.shutdown();
+            scope.close();
         }
     }
 
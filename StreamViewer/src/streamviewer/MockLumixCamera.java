@@ -0,0 +1,389 @@
+package streamviewer;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.GradientPaint;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A stand-in for a Lumix camera on the local machine, for testing the real network code (LumixStreamViewer,
+ * CameraSession, PhotoTaker, CameraStateMonitor) without hardware, under good and bad network conditions.
+ *
+ * It answers the cam.cgi requests the photobox sends (accctrl, camcmd recmode and capture, startstream, stopstream
+ * and getstate) and, after startstream, pushes live view packets to the UDP port given by the requesting host: one
+ * JPEG per packet behind a header, as the camera does. Packets can be dropped, reordered and delayed at random
+ * according to the {@link Conditions}.
+ *
+ * Run on its own with
+ *
+ * {@code java -cp StreamViewer.jar streamviewer.MockLumixCamera --httpPort=8080 --fps=30 --loss=0.05}
+ *
+ * and start the photobox with {@code --viewerType=real --cameraIp=127.0.0.1:8080 --cameraNetMaskBitSize=8}.
+ */
+public class MockLumixCamera {
+    /**
+     * The header in front of the JPEG data, laid out as {@link LumixPacketHeader} parses it: bytes 4-5 hold the frame
+     * counter and bytes 30-31 the length of the header after its first 32 bytes, i.e. HEADER_LENGTH - 32, so that
+     * the JPEG is found at HEADER_LENGTH. Both are big-endian; the other bytes are zero.
+     */
+    public static final int HEADER_LENGTH = 168;
+    /**
+     * The photobox receives into a buffer of this size, larger packets would be cut off.
+     */
+    public static final int MAX_PACKET_LENGTH = 35000;
+
+    private static final float MAX_JPEG_QUALITY = 0.8f;
+    private static final float MIN_JPEG_QUALITY = 0.2f;
+    private static final int INITIAL_REMAINING_CAPACITY = 999;
+
+    /**
+     * The live view and how the network treats it.
+     *
+     * @param width frame width in pixels
+     * @param height frame height in pixels
+     * @param fps frames per second
+     * @param lossRate probability of dropping a packet, from 0 to 1
+     * @param reorderRate probability of delaying a packet behind the next one, from 0 to 1
+     * @param latencyMs delay of every packet
+     * @param jitterMs additional random delay of each packet, up to this many milliseconds
+     * @param httpDelayMs delay of every cam.cgi response
+     */
+    public record Conditions(int width, int height, int fps, double lossRate, double reorderRate, long latencyMs,
+                             long jitterMs, long httpDelayMs) {
+        /**
+         * The live view of a camera close to the booth computer: 640x480 at 30 fps, no loss, no delay.
+         */
+        public static Conditions ideal() {
+            return new Conditions(640, 480, 30, 0, 0, 0, 0, 0);
+        }
+    }
+
+    private final HttpServer server;
+    private final ExecutorService httpExecutor;
+    private final DatagramSocket udpSocket;
+    private final ScheduledExecutorService streamScheduler;
+    private final Conditions conditions;
+    private final byte[][] packets;
+
+    private volatile boolean accessGranted = false;
+    private volatile InetSocketAddress streamTarget;
+    private ScheduledFuture<?> streamTask;
+    private int frameIndex = 0;
+    private final AtomicLong remainingCapacity = new AtomicLong(INITIAL_REMAINING_CAPACITY);
+
+    private final AtomicLong framesSent = new AtomicLong();
+    private final AtomicLong framesDropped = new AtomicLong();
+    private final AtomicLong framesReordered = new AtomicLong();
+    private final AtomicLong captures = new AtomicLong();
+    private final Map<String, AtomicLong> requests = new ConcurrentHashMap<>();
+
+    /**
+     * Render the frames and bind the HTTP port. Nothing is served before {@link #start()}.
+     *
+     * @param httpPort the TCP port for cam.cgi, 0 for any free port
+     * @param conditions the live view and network conditions
+     * @throws IOException if a port cannot be bound
+     * @throws IllegalArgumentException if the frames do not fit into a packet even at low JPEG quality
+     */
+    public MockLumixCamera(int httpPort, Conditions conditions) throws IOException {
+        this.conditions = conditions;
+        // One second of frames, sent in a loop, so that pushing them costs nothing but the send itself
+        this.packets = new byte[Math.max(1, conditions.fps())][];
+        for (int i = 0; i < packets.length; i++) {
+            packets[i] = encodeFrame(renderFrame(i, packets.length));
+        }
+
+        server = HttpServer.create(new InetSocketAddress(httpPort), 0);
+        httpExecutor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "mock-camera-http");
+            thread.setDaemon(true);
+            return thread;
+        });
+        server.setExecutor(httpExecutor);
+        server.createContext("/cam.cgi", this::handleRequest);
+        udpSocket = new DatagramSocket();
+        streamScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "mock-camera-stream");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public void start() {
+        server.start();
+        System.out.println("Mock camera listening on port " + getHttpPort() + ", " + conditions);
+    }
+
+    public void stop() {
+        stopStream();
+        server.stop(0);
+        httpExecutor.shutdownNow();
+        streamScheduler.shutdownNow();
+        udpSocket.close();
+    }
+
+    public int getHttpPort() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * @return the camera address for the photobox options, e.g. "127.0.0.1:8080"
+     */
+    public String getCameraIp() {
+        return "127.0.0.1:" + getHttpPort();
+    }
+
+    public boolean isStreaming() {
+        return streamTarget != null;
+    }
+
+    public long getFramesSent() {
+        return framesSent.get();
+    }
+
+    public long getFramesDropped() {
+        return framesDropped.get();
+    }
+
+    public long getFramesReordered() {
+        return framesReordered.get();
+    }
+
+    public long getCaptures() {
+        return captures.get();
+    }
+
+    /**
+     * @param request the mode, or "camcmd " followed by the value, e.g. "getstate" or "camcmd capture"
+     * @return how often the request was received
+     */
+    public long getRequestCount(String request) {
+        AtomicLong count = requests.get(request);
+        return count != null ? count.get() : 0;
+    }
+
+    private void handleRequest(HttpExchange exchange) throws IOException {
+        Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+        String mode = query.getOrDefault("mode", "");
+        String value = query.getOrDefault("value", "");
+        String request = mode.equals("camcmd") ? "camcmd " + value : mode;
+        requests.computeIfAbsent(request, key -> new AtomicLong()).incrementAndGet();
+
+        if (conditions.httpDelayMs() > 0) {
+            try {
+                Thread.sleep(conditions.httpDelayMs());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        String response = switch (request) {
+            case "accctrl" -> {
+                accessGranted = true;
+                yield result("ok");
+            }
+            case "camcmd recmode" -> result(accessGranted ? "ok" : "err_unsuitable_app");
+            case "camcmd capture" -> {
+                if (!accessGranted) {
+                    yield result("err_unsuitable_app");
+                }
+                captures.incrementAndGet();
+                remainingCapacity.updateAndGet(remaining -> Math.max(0, remaining - 1));
+                yield result("ok");
+            }
+            case "startstream" -> {
+                if (!accessGranted) {
+                    yield result("err_unsuitable_app");
+                }
+                try {
+                    startStream(new InetSocketAddress(exchange.getRemoteAddress().getAddress(), Integer.parseInt(value)));
+                    yield result("ok");
+                } catch (NumberFormatException e) {
+                    yield result("err_param");
+                }
+            }
+            case "stopstream" -> {
+                stopStream();
+                yield result("ok");
+            }
+            case "getstate" -> "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\r\n<camrply><result>ok</result><state>"
+                    + "<batt>3/3</batt><cammode>rec</cammode><sdcardstatus>write_enable</sdcardstatus>"
+                    + "<sd_memory>set</sd_memory><remaincapacity>" + remainingCapacity.get() + "</remaincapacity>"
+                    + "<sdaccess>off</sdaccess><rec>off</rec></state></camrply>";
+            default -> result("err_param");
+        };
+
+        byte[] body = response.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/xml");
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private static String result(String result) {
+        return "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\r\n<camrply><result>" + result + "</result></camrply>";
+    }
+
+    private static Map<String, String> parseQuery(String query) {
+        Map<String, String> parameters = new HashMap<>();
+        if (query == null) {
+            return parameters;
+        }
+        for (String parameter : query.split("&")) {
+            int separator = parameter.indexOf('=');
+            if (separator > 0) {
+                parameters.put(parameter.substring(0, separator), parameter.substring(separator + 1));
+            }
+        }
+        return parameters;
+    }
+
+    private synchronized void startStream(InetSocketAddress target) {
+        streamTarget = target;
+        if (streamTask == null) {
+            long intervalNanos = 1_000_000_000L / Math.max(1, conditions.fps());
+            streamTask = streamScheduler.scheduleAtFixedRate(this::sendFrame, 0, intervalNanos, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private synchronized void stopStream() {
+        streamTarget = null;
+        if (streamTask != null) {
+            streamTask.cancel(false);
+            streamTask = null;
+        }
+    }
+
+    /**
+     * Send the next frame, or drop or delay it; runs on the stream scheduler.
+     */
+    private void sendFrame() {
+        InetSocketAddress target = streamTarget;
+        if (target == null) {
+            return;
+        }
+        byte[] packet = packets[frameIndex % packets.length].clone();
+        packet[4] = (byte) (frameIndex >>> 8);
+        packet[5] = (byte) frameIndex;
+        frameIndex++;
+
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        if (random.nextDouble() < conditions.lossRate()) {
+            framesDropped.incrementAndGet();
+            return;
+        }
+        long delayMs = conditions.latencyMs() + (conditions.jitterMs() > 0 ? random.nextLong(conditions.jitterMs() + 1) : 0);
+        if (random.nextDouble() < conditions.reorderRate()) {
+            // Behind the next frame, but ahead of the one after it
+            delayMs += 3 * 1000L / (2 * Math.max(1, conditions.fps()));
+            framesReordered.incrementAndGet();
+        }
+        if (delayMs > 0) {
+            streamScheduler.schedule(() -> send(packet, target), delayMs, TimeUnit.MILLISECONDS);
+        } else {
+            send(packet, target);
+        }
+    }
+
+    private void send(byte[] packet, InetSocketAddress target) {
+        try {
+            udpSocket.send(new DatagramPacket(packet, packet.length, target));
+            framesSent.incrementAndGet();
+        } catch (IOException e) {
+            if (!udpSocket.isClosed()) {
+                System.err.println("Mock camera failed to send a frame: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * A test pattern with a box moving across the frame, so that stalls and reordering are visible.
+     */
+    private BufferedImage renderFrame(int index, int count) {
+        int width = conditions.width();
+        int height = conditions.height();
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g2d = image.createGraphics();
+        g2d.setPaint(new GradientPaint(0, 0, new Color(40, 60, 120), width, height, new Color(200, 120, 40)));
+        g2d.fillRect(0, 0, width, height);
+        int boxSize = Math.max(8, height / 4);
+        int x = (width - boxSize) * index / Math.max(1, count - 1);
+        g2d.setColor(Color.WHITE);
+        g2d.fillRect(x, (height - boxSize) / 2, boxSize, boxSize);
+        g2d.setColor(Color.BLACK);
+        g2d.setFont(new Font(Font.SANS_SERIF, Font.BOLD, Math.max(10, height / 12)));
+        g2d.drawString("MOCK " + index, width / 20, height / 8);
+        g2d.dispose();
+        return image;
+    }
+
+    /**
+     * @return the packet for a frame: the header, then the JPEG at the best quality that fits into a packet
+     */
+    private static byte[] encodeFrame(BufferedImage image) throws IOException {
+        for (float quality = MAX_JPEG_QUALITY; quality >= MIN_JPEG_QUALITY - 0.001f; quality -= 0.1f) {
+            byte[] jpeg = EncodedFrame.encodeJpeg(image, quality);
+            if (HEADER_LENGTH + jpeg.length <= MAX_PACKET_LENGTH) {
+                byte[] packet = new byte[HEADER_LENGTH + jpeg.length];
+                packet[30] = (byte) ((HEADER_LENGTH - 32) >>> 8);
+                packet[31] = (byte) (HEADER_LENGTH - 32);
+                System.arraycopy(jpeg, 0, packet, HEADER_LENGTH, jpeg.length);
+                return packet;
+            }
+        }
+        throw new IllegalArgumentException(image.getWidth() + "x" + image.getHeight()
+                + " frames do not fit into a " + MAX_PACKET_LENGTH + " byte packet");
+    }
+
+    /**
+     * Run the mock camera until the process is stopped. Options as --name=value: httpPort (default 8080), width,
+     * height, fps, loss, reorder, latencyMs, jitterMs and httpDelayMs.
+     */
+    public static void main(String[] args) throws IOException {
+        Map<String, String> settings = new HashMap<>();
+        for (String arg : args) {
+            int separator = arg.indexOf('=');
+            if (arg.startsWith("--") && separator > 2) {
+                settings.put(arg.substring(2, separator), arg.substring(separator + 1));
+            } else {
+                System.err.println("Ignoring argument " + arg);
+            }
+        }
+        Conditions ideal = Conditions.ideal();
+        Conditions conditions = new Conditions(
+                Integer.parseInt(settings.getOrDefault("width", String.valueOf(ideal.width()))),
+                Integer.parseInt(settings.getOrDefault("height", String.valueOf(ideal.height()))),
+                Integer.parseInt(settings.getOrDefault("fps", String.valueOf(ideal.fps()))),
+                Double.parseDouble(settings.getOrDefault("loss", "0")),
+                Double.parseDouble(settings.getOrDefault("reorder", "0")),
+                Long.parseLong(settings.getOrDefault("latencyMs", "0")),
+                Long.parseLong(settings.getOrDefault("jitterMs", "0")),
+                Long.parseLong(settings.getOrDefault("httpDelayMs", "0")));
+        MockLumixCamera camera = new MockLumixCamera(Integer.parseInt(settings.getOrDefault("httpPort", "8080")), conditions);
+        camera.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> System.out.println("Mock camera sent "
+                + camera.getFramesSent() + " frames, dropped " + camera.getFramesDropped() + ", reordered "
+                + camera.getFramesReordered() + ", " + camera.getCaptures() + " captures")));
+    }
+}
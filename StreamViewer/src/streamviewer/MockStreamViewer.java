@@ -8,8 +8,10 @@ import java.util.function.Consumer;
 
 public class MockStreamViewer implements StreamViewerInterface {
 
-    private Consumer<BufferedImage> imageConsumer;
+    private volatile Consumer<BufferedImage> imageConsumer;
+    private volatile Consumer<EncodedFrame> encodedFrameConsumer;
     private BufferedImage mockImage;
+    private volatile boolean idle = false;
 
     public MockStreamViewer(String imagePath) throws IOException {
         try (InputStream inputStream = getClass().getResourceAsStream(imagePath)) {
@@ -28,14 +30,40 @@ public class MockStreamViewer implements StreamViewerInterface {
         this.imageConsumer = imageConsumer;
     }
 
+    /**
+     * The mock image is only encoded if a consumer asks for the JPEG bytes.
+     */
+    @Override
+    public void setEncodedFrameConsumer(Consumer<EncodedFrame> encodedFrameConsumer) {
+        this.encodedFrameConsumer = encodedFrameConsumer;
+    }
+
+    @Override
+    public void setIdle(boolean idle) {
+        this.idle = idle;
+    }
+
     @Override
     public void run() {
+        long sequenceNumber = 0;
+        EncodedFrame encodedFrame = null;
         while (!Thread.interrupted()) {
+            Consumer<BufferedImage> imageConsumer = this.imageConsumer;
             if (mockImage != null && imageConsumer != null) {
                 imageConsumer.accept(mockImage);
             }
+            Consumer<EncodedFrame> encodedFrameConsumer = this.encodedFrameConsumer;
+            if (mockImage != null && encodedFrameConsumer != null) {
+                // The image never changes, so neither do its JPEG bytes: encode at most once
+                byte[] jpeg = encodedFrame != null ? encodedFrame.getJpeg() : null;
+                encodedFrame = jpeg != null
+                        ? EncodedFrame.ofJpeg(sequenceNumber, System.nanoTime(), jpeg)
+                        : EncodedFrame.ofImage(sequenceNumber, System.nanoTime(), mockImage);
+                encodedFrameConsumer.accept(encodedFrame);
+            }
+            sequenceNumber++;
             try {
-                Thread.sleep(33); // Simulate 30 FPS
+                Thread.sleep(idle ? 1000 / IDLE_FRAMES_PER_SECOND : 33); // Simulate 30 FPS
             } catch (InterruptedException e) {
                 Thread.currentThread().interrupt();
             }
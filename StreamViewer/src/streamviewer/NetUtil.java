@@ -2,13 +2,25 @@ package streamviewer;
 
 import java.net.Inet4Address;
 import java.net.InetAddress;
+import java.net.InterfaceAddress;
 import java.net.NetworkInterface;
 import java.net.SocketException;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
 import java.util.Enumeration;
+import java.util.List;
 
 public class NetUtil {
 
+    /**
+     * @param cameraIp an IP address, optionally followed by ":port" as accepted by {@link CameraHttp}
+     * @return the IP address alone
+     */
+    public static String stripPort(String cameraIp) {
+        int separator = cameraIp.indexOf(':');
+        return separator >= 0 ? cameraIp.substring(0, separator) : cameraIp;
+    }
+
     /**
      * Find a local interface IPv4 address that lies in the same subnet as the given IP address.
      *
@@ -45,6 +57,29 @@ public class NetUtil {
         throw new SocketException("Could not find any local IP address in subnet " + anyIpInSubnet + "/" + subnetMaskBitSize + " .");
     }
 
+    /**
+     * List the IPv4 addresses of all local network interfaces that are up, except the loopback interfaces.
+     *
+     * @return The interface addresses, including their network prefix lengths.
+     * @throws SocketException On network communication errors.
+     */
+    public static List<InterfaceAddress> findLocalIpv4Addresses() throws SocketException {
+        final List<InterfaceAddress> addresses = new ArrayList<>();
+        final Enumeration<NetworkInterface> netInterfaces = NetworkInterface.getNetworkInterfaces();
+        for (; netInterfaces.hasMoreElements(); ) {
+            final NetworkInterface netInterface = netInterfaces.nextElement();
+            if (!netInterface.isUp() || netInterface.isLoopback()) {
+                continue;
+            }
+            for (InterfaceAddress interfaceAddress : netInterface.getInterfaceAddresses()) {
+                if (interfaceAddress.getAddress() instanceof Inet4Address) {
+                    addresses.add(interfaceAddress);
+                }
+            }
+        }
+        return addresses;
+    }
+
     /**
      * Check if the two given IPv4 addresses are in the same subnet.
      *
@@ -53,7 +88,7 @@ public class NetUtil {
      * @param netMaskBitSize Size of the subnet's bitmask (0-32).
      * @return Whether the two addresses lie in the same subnet.
      */
-    private static boolean isInSameSubnet(int ip1, int ip2, int netMaskBitSize) {
+    static boolean isInSameSubnet(int ip1, int ip2, int netMaskBitSize) {
         final int netMask = -1 << (32 - netMaskBitSize);
         return (ip1 & netMask) == (ip2 & netMask);
     }
@@ -64,7 +99,7 @@ public class NetUtil {
      * @param address The address to convert.
      * @return The integer corresponding to the given address, or zero if the address is not IPv4.
      */
-    private static int inetAddrToInt(InetAddress address) {
+    static int inetAddrToInt(InetAddress address) {
         if (address instanceof Inet4Address) {
             byte[] ipv4Address = ((Inet4Address) address).getAddress();
             return ((ipv4Address[0] & 0xFF) << 24)
@@ -75,4 +110,14 @@ public class NetUtil {
             return 0;
         }
     }
+
+    /**
+     * Convert the given integer to the dotted IPv4 address string.
+     *
+     * @param ip The IPv4 address (converted by #inetAddrToInt()).
+     * @return The address, e.g. "192.168.54.1".
+     */
+    static String intToIpString(int ip) {
+        return ((ip >>> 24) & 0xFF) + "." + ((ip >>> 16) & 0xFF) + "." + ((ip >>> 8) & 0xFF) + "." + (ip & 0xFF);
+    }
 }
@@ -2,36 +2,173 @@ package streamviewer;
 
 import javax.swing.*;
 import java.awt.*;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
 
+/**
+ * The photobox settings.
+ *
+ * Settings are read from the properties file {@value #DEFAULT_CONFIG_FILE} in the working directory (another file
+ * can be given by {@code --config=<file>}) and can be overridden on the command line, either by the positional
+ * arguments {@code <cameraIp> [<cameraNetMaskBitSize>]} passed by Control.sh/Control.bat or by
+ * {@code --<key>=<value>} for any of the keys below. The settings dialog is only shown when neither a properties
+ * file nor command-line settings exist, or when asked for by {@code --dialog}; {@code --no-dialog} and a headless
+ * environment never show it. Settings confirmed in the dialog are saved to the properties file.
+ */
 public class Options {
-    private final String cameraIp;
-    private final int cameraNetMaskBitSize;
+    public static final String DEFAULT_CONFIG_FILE = "photobox.properties";
+    public static final String DEFAULT_CAMERA_IP = "192.168.54.1";
+    /**
+     * Camera IP address setting asking for the camera to be discovered on the local networks.
+     */
+    public static final String AUTO_CAMERA_IP = "auto";
+
+    private static final String CAMERA_IP = "cameraIp";
+    private static final String CAMERA_NET_MASK_BIT_SIZE = "cameraNetMaskBitSize";
+    private static final String VIEWER_TYPE = "viewerType";
+    private static final String WEBCAM_INDEX = "webcamIndex";
+    private static final String COM_PORT = "comPort";
+    private static final String CAMERA_STATE_MONITOR_MODE = "cameraStateMonitorMode";
+    private static final String PHOTO_DIRECTORY = "photoDirectory";
+    private static final String FULLSCREEN = "fullscreen";
+    private static final String MJPEG_PORT = "mjpegPort";
+    private static final String BOOMERANG = "boomerang";
+    private static final String STRIP_TEMPLATE = "stripTemplate";
+    private static final String FACE_DETECTION_RATE = "faceDetectionRate";
+    private static final String FACE_CASCADE = "faceCascade";
+    private static final String AUTO_COUNTDOWN = "autoCountdown";
+
+    private volatile String cameraIp;
+    private volatile int cameraNetMaskBitSize;
     private String viewerType;
     private final int webcamIndex;
     private final String comPort;
     private final String cameraStateMonitorMode;
+    private final String photoDirectory;
+    private final boolean fullscreen;
+    private final int mjpegPort;
+    private final boolean boomerang;
+    private final StripCompositor.Template stripTemplate;
+    private final int faceDetectionRate;
+    private final String faceCascade;
+    private final boolean autoCountdown;
 
-    private Options(String cameraIp, int cameraNetMaskBitSize, String viewerType, int webcamIndex, String comPort, String cameraStateMonitorMode) {
-        this.cameraIp = cameraIp;
-        this.cameraNetMaskBitSize = cameraNetMaskBitSize;
-        this.viewerType = viewerType;
-        this.webcamIndex = webcamIndex;
-        this.comPort = comPort;
-        this.cameraStateMonitorMode = cameraStateMonitorMode;
+    private Options(Properties properties) {
+        this.cameraIp = properties.getProperty(CAMERA_IP);
+        this.cameraNetMaskBitSize = parseInt(properties.getProperty(CAMERA_NET_MASK_BIT_SIZE), 24);
+        this.viewerType = properties.getProperty(VIEWER_TYPE);
+        this.webcamIndex = parseInt(properties.getProperty(WEBCAM_INDEX), 0);
+        String comPort = properties.getProperty(COM_PORT, "").trim();
+        // If COM port is empty, set it to null
+        this.comPort = comPort.isEmpty() ? null : comPort;
+        this.cameraStateMonitorMode = properties.getProperty(CAMERA_STATE_MONITOR_MODE);
+        String photoDirectory = properties.getProperty(PHOTO_DIRECTORY, "").trim();
+        this.photoDirectory = photoDirectory.isEmpty() ? "photos" : photoDirectory;
+        this.fullscreen = Boolean.parseBoolean(properties.getProperty(FULLSCREEN));
+        this.mjpegPort = parseInt(properties.getProperty(MJPEG_PORT), 0);
+        this.boomerang = Boolean.parseBoolean(properties.getProperty(BOOMERANG));
+        this.stripTemplate = "grid".equalsIgnoreCase(properties.getProperty(STRIP_TEMPLATE, "").trim())
+                ? StripCompositor.Template.GRID : StripCompositor.Template.STRIP;
+        this.faceDetectionRate = parseInt(properties.getProperty(FACE_DETECTION_RATE), 0);
+        this.faceCascade = properties.getProperty(FACE_CASCADE);
+        this.autoCountdown = Boolean.parseBoolean(properties.getProperty(AUTO_COUNTDOWN));
+    }
+
+    private static Properties defaults() {
+        Properties defaults = new Properties();
+        defaults.setProperty(CAMERA_IP, DEFAULT_CAMERA_IP);
+        defaults.setProperty(CAMERA_NET_MASK_BIT_SIZE, "24");
+        defaults.setProperty(VIEWER_TYPE, "webcam");
+        defaults.setProperty(WEBCAM_INDEX, "0");
+        defaults.setProperty(COM_PORT, "COM");
+        defaults.setProperty(CAMERA_STATE_MONITOR_MODE, "none");
+        defaults.setProperty(PHOTO_DIRECTORY, "photos");
+        defaults.setProperty(FULLSCREEN, "false");
+        defaults.setProperty(MJPEG_PORT, "0");
+        defaults.setProperty(BOOMERANG, "true");
+        defaults.setProperty(STRIP_TEMPLATE, "strip");
+        defaults.setProperty(FACE_DETECTION_RATE, "0");
+        defaults.setProperty(FACE_CASCADE, "lib/haarcascade_frontalface_default.xml");
+        defaults.setProperty(AUTO_COUNTDOWN, "false");
+        return defaults;
     }
 
-    public static Options read() {
-        JTextField ipField = new JTextField("192.168.54.1", 15);
-        JTextField maskField = new JTextField("24", 5);
+    /**
+     * Load the settings from the properties file and the command line, showing the settings dialog if needed.
+     *
+     * @param args the command-line arguments
+     * @return the settings; the application exits if the dialog is cancelled
+     */
+    public static Options load(String[] args) {
+        File configFile = new File(DEFAULT_CONFIG_FILE);
+        Properties overrides = new Properties();
+        boolean forceDialog = false;
+        boolean noDialog = false;
+        int positional = 0;
+        boolean named = false;
+
+        for (String arg : args) {
+            if (arg.equals("--dialog")) {
+                forceDialog = true;
+            } else if (arg.equals("--no-dialog")) {
+                noDialog = true;
+            } else if (arg.startsWith("--config=")) {
+                configFile = new File(arg.substring("--config=".length()));
+            } else if (arg.startsWith("--") && arg.contains("=")) {
+                int separator = arg.indexOf('=');
+                overrides.setProperty(arg.substring(2, separator), arg.substring(separator + 1));
+                named = true;
+            } else if (!arg.isEmpty()) {
+                // Positional arguments as passed by Control.sh/Control.bat: camera IP and netmask size
+                overrides.setProperty(positional++ == 0 ? CAMERA_IP : CAMERA_NET_MASK_BIT_SIZE, arg);
+            }
+        }
+
+        Properties properties = defaults();
+        boolean hasConfigFile = readConfigFile(configFile, properties);
+        // The scripts always pass the camera IP, that alone does not make a configured booth
+        boolean configured = hasConfigFile || named;
+        if (positional > 0 && !hasConfigFile) {
+            properties.setProperty(VIEWER_TYPE, "real"); // A camera IP is only passed for the Lumix camera
+        }
+        properties.putAll(overrides);
+
+        boolean showDialog = (forceDialog || !configured) && !noDialog && !GraphicsEnvironment.isHeadless();
+        if (!showDialog) {
+            System.out.println("Starting without settings dialog, settings file: " + configFile.getPath());
+            return new Options(properties);
+        }
+
+        Properties confirmed = showDialog(properties);
+        if (confirmed == null) {
+            System.exit(0);
+            return null;
+        }
+        writeConfigFile(configFile, confirmed);
+        return new Options(confirmed);
+    }
+
+    private static Properties showDialog(Properties initial) {
+        JTextField ipField = new JTextField(initial.getProperty(CAMERA_IP), 15);
+        JTextField maskField = new JTextField(initial.getProperty(CAMERA_NET_MASK_BIT_SIZE), 5);
         String[] viewerTypes = {"webcam", "real", "mock"};
         JComboBox<String> viewerTypeCombo = new JComboBox<>(viewerTypes);
-        JTextField webcamIndexField = new JTextField("0", 5);
-        JTextField comPortField = new JTextField("COM",10);
+        viewerTypeCombo.setSelectedItem(initial.getProperty(VIEWER_TYPE));
+        JTextField webcamIndexField = new JTextField(initial.getProperty(WEBCAM_INDEX), 5);
+        JTextField comPortField = new JTextField(initial.getProperty(COM_PORT, ""), 10);
         String[] monitorModes = {"none", "mock", "live"};
         JComboBox<String> cameraStateMonitorCombo = new JComboBox<>(monitorModes);
+        cameraStateMonitorCombo.setSelectedItem(initial.getProperty(CAMERA_STATE_MONITOR_MODE));
+        JTextField photoDirectoryField = new JTextField(initial.getProperty(PHOTO_DIRECTORY), 15);
+        JCheckBox fullscreenBox = new JCheckBox("", Boolean.parseBoolean(initial.getProperty(FULLSCREEN)));
 
         JPanel panel = new JPanel(new GridLayout(0, 2));
-        panel.add(new JLabel("Camera IP address:"));
+        panel.add(new JLabel("Camera IP address (or auto):"));
         panel.add(ipField);
         panel.add(new JLabel("Camera IP netmask size:"));
         panel.add(maskField);
@@ -43,35 +180,60 @@ public class Options {
         panel.add(comPortField);
         panel.add(new JLabel("Camera State Monitor Mode:"));
         panel.add(cameraStateMonitorCombo);
+        panel.add(new JLabel("Photo Folder:"));
+        panel.add(photoDirectoryField);
+        panel.add(new JLabel("Start in Fullscreen:"));
+        panel.add(fullscreenBox);
 
         int result = JOptionPane.showConfirmDialog(null, panel,
                 "Enter Camera Settings", JOptionPane.OK_CANCEL_OPTION);
-        if (result == JOptionPane.OK_OPTION) {
-            String cameraIp = ipField.getText();
-            int cameraNetMaskBitSize;
-            try {
-                cameraNetMaskBitSize = Integer.parseInt(maskField.getText());
-            } catch (NumberFormatException e) {
-                cameraNetMaskBitSize = 24;
-            }
-            String viewerType = (String) viewerTypeCombo.getSelectedItem();
-            int webcamIndex;
-            try {
-                webcamIndex = Integer.parseInt(webcamIndexField.getText());
-            } catch (NumberFormatException e) {
-                webcamIndex = 0;
-            }
-            String comPort = comPortField.getText().trim();
-            // If COM port is empty, set it to null
-            if (comPort.isEmpty()) {
-                comPort = null;
-            }
-            String cameraStateMonitorMode = (String) cameraStateMonitorCombo.getSelectedItem();
-            return new Options(cameraIp, cameraNetMaskBitSize, viewerType, webcamIndex, comPort, cameraStateMonitorMode);
-        } else {
-            System.exit(0);
+        if (result != JOptionPane.OK_OPTION) {
             return null;
         }
+
+        Properties properties = new Properties();
+        properties.putAll(initial);
+        properties.setProperty(CAMERA_IP, ipField.getText().trim());
+        properties.setProperty(CAMERA_NET_MASK_BIT_SIZE, maskField.getText().trim());
+        properties.setProperty(VIEWER_TYPE, (String) viewerTypeCombo.getSelectedItem());
+        properties.setProperty(WEBCAM_INDEX, webcamIndexField.getText().trim());
+        properties.setProperty(COM_PORT, comPortField.getText().trim());
+        properties.setProperty(CAMERA_STATE_MONITOR_MODE, (String) cameraStateMonitorCombo.getSelectedItem());
+        properties.setProperty(PHOTO_DIRECTORY, photoDirectoryField.getText().trim());
+        properties.setProperty(FULLSCREEN, String.valueOf(fullscreenBox.isSelected()));
+        return properties;
+    }
+
+    /**
+     * @return whether the file existed and could be read
+     */
+    private static boolean readConfigFile(File configFile, Properties properties) {
+        if (!configFile.isFile()) {
+            return false;
+        }
+        try (InputStream in = new FileInputStream(configFile)) {
+            properties.load(in);
+            return true;
+        } catch (IOException e) {
+            System.err.println("Failed to read " + configFile + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    private static void writeConfigFile(File configFile, Properties properties) {
+        try (OutputStream out = new FileOutputStream(configFile)) {
+            properties.store(out, "Lumix Photobox settings");
+        } catch (IOException e) {
+            System.err.println("Failed to save settings to " + configFile + ": " + e.getMessage());
+        }
+    }
+
+    private static int parseInt(String value, int defaultValue) {
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NullPointerException | NumberFormatException e) {
+            return defaultValue;
+        }
     }
 
     public String getCameraIp() {
@@ -82,6 +244,21 @@ public class Options {
         return cameraNetMaskBitSize;
     }
 
+    /**
+     * @return Whether the camera IP address is set to "auto" and has not been discovered yet.
+     */
+    public boolean isCameraDiscoveryEnabled() {
+        return AUTO_CAMERA_IP.equalsIgnoreCase(cameraIp);
+    }
+
+    /**
+     * Set the discovered camera, for this run only.
+     */
+    public void setCamera(String cameraIp, int cameraNetMaskBitSize) {
+        this.cameraIp = cameraIp;
+        this.cameraNetMaskBitSize = cameraNetMaskBitSize;
+    }
+
     public String getViewerType() {
         return viewerType;
     }
@@ -101,4 +278,54 @@ public class Options {
     public String getCameraStateMonitorMode() {
         return cameraStateMonitorMode;
     }
-}
\ No newline at end of file
+
+    public String getPhotoDirectory() {
+        return photoDirectory;
+    }
+
+    public boolean isFullscreen() {
+        return fullscreen;
+    }
+
+    /**
+     * @return the port of the MJPEG server for secondary displays, or 0 if it is disabled
+     */
+    public int getMjpegPort() {
+        return mjpegPort;
+    }
+
+    /**
+     * @return whether a boomerang GIF of the seconds before each photo is created
+     */
+    public boolean isBoomerangEnabled() {
+        return boomerang;
+    }
+
+    /**
+     * @return the print layout for the photo strips, "strip" (2x6 inch) or "grid" (6x4 inch)
+     */
+    public StripCompositor.Template getStripTemplate() {
+        return stripTemplate;
+    }
+
+    /**
+     * @return how many times per second the live view is searched for faces, or 0 if face detection is disabled
+     */
+    public int getFaceDetectionRate() {
+        return faceDetectionRate;
+    }
+
+    /**
+     * @return the OpenCV Haar cascade file used to find faces
+     */
+    public String getFaceCascade() {
+        return faceCascade;
+    }
+
+    /**
+     * @return whether the countdown starts by itself once the faces in front of the camera hold still
+     */
+    public boolean isAutoCountdown() {
+        return autoCountdown;
+    }
+}
@@ -6,16 +6,29 @@ import java.net.URL;
 import java.net.UnknownHostException;
 import java.net.SocketTimeoutException;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
 
 public class PhotoTaker {
-    private final String cameraIp;
+    private final Options options;
 
     public PhotoTaker(Options options) {
-        this.cameraIp = options.getCameraIp();
+        // The camera IP is looked up for each photo, it may only be known after discovery
+        this.options = options;
     }
 
     public CompletableFuture<PhotoResult> takePhoto() {
-        return CompletableFuture.supplyAsync(() -> {
+        String cameraIp = options.getCameraIp();
+        // In the camera scope, so that a mode switch cancels a request to the previous camera
+        try {
+            return capture(IoRuntime.camera(), cameraIp);
+        } catch (RejectedExecutionException e) {
+            // The camera scope was closed by a mode switch in the meantime
+            return CompletableFuture.completedFuture(new PhotoResult(false, "Photo cancelled: the camera mode changed"));
+        }
+    }
+
+    private CompletableFuture<PhotoResult> capture(IoRuntime.Scope scope, String cameraIp) {
+        return scope.supply(() -> {
             String controlUrl = "http://" + cameraIp + "/cam.cgi?mode=camcmd&value=capture";
             try {
                 URL url = new URL(controlUrl);
@@ -39,7 +52,7 @@ public class PhotoTaker {
             } catch (IOException e) {
                 return new PhotoResult(false, "Error taking photo: " + e.getMessage());
             }
-        });
+        }).exceptionally(error -> new PhotoResult(false, "Photo cancelled: " + error));
     }
 
     public static class PhotoResult {
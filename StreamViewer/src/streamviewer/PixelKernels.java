@@ -0,0 +1,105 @@
+package streamviewer;
+
+/**
+ * Pixel loops of the background effects, working directly on the raster arrays.
+ *
+ * The kernels take packed RGB or ARGB pixels, as in TYPE_INT_RGB and TYPE_INT_ARGB images. The blur processes two
+ * colour channels per arithmetic operation (the red and blue channels, then alpha and green, each in their own
+ * 16 bit half of an int). On top of that the kernels are vectorized with the JDK Vector API if the
+ * jdk.incubator.vector module is available (java --add-modules jdk.incubator.vector), and otherwise run as plain
+ * scalar loops with the same results. The vector kernels can be switched off by the system property
+ * photobox.vectorKernels=false.
+ *
+ * {@link PixelKernelsBenchmark} compares both on the machine it runs on.
+ */
+public final class PixelKernels {
+    /**
+     * The red and blue channels of a packed pixel, or alpha and green after shifting by 8 bits.
+     */
+    static final int CHANNEL_MASK = 0x00FF00FF;
+
+    /**
+     * The operations implemented by the scalar and the vector kernels.
+     */
+    interface Kernels {
+        long sumChannels(int[] pixels, int offset, int length);
+
+        void blurHorizontal(int[] source, int[] target, int width, int height);
+
+        void blurVertical(int[] source, int[] target, int width, int height);
+    }
+
+    private static final Kernels KERNELS = load();
+
+    private PixelKernels() {
+    }
+
+    private static Kernels load() {
+        if (Boolean.parseBoolean(System.getProperty("photobox.vectorKernels", "true"))) {
+            try {
+                return (Kernels) Class.forName("streamviewer.VectorPixelKernels").getDeclaredConstructor().newInstance();
+            } catch (ReflectiveOperationException | LinkageError e) {
+                // The incubator module is not part of the module graph
+            }
+        }
+        return new ScalarPixelKernels();
+    }
+
+    static Kernels getKernels() {
+        return KERNELS;
+    }
+
+    /**
+     * @return whether the vector kernels are in use
+     */
+    public static boolean isVectorized() {
+        return KERNELS.getClass() != ScalarPixelKernels.class;
+    }
+
+    /**
+     * @return the average colour of the pixels as packed RGB, e.g. of a strip along the edge of a frame
+     */
+    public static int averageColor(int[] pixels, int offset, int length) {
+        if (length <= 0) {
+            return 0;
+        }
+        long red = 0;
+        long green = 0;
+        long blue = 0;
+        // The sums come back packed as 21 bits per channel, which holds the sum of up to 8224 pixels
+        for (int start = offset; start < offset + length; start += 8192) {
+            long sums = KERNELS.sumChannels(pixels, start, Math.min(8192, offset + length - start));
+            red += (sums >>> 42) & 0x1FFFFF;
+            green += (sums >>> 21) & 0x1FFFFF;
+            blue += sums & 0x1FFFFF;
+        }
+        return (int) ((red / length << 16) | (green / length << 8) | blue / length);
+    }
+
+    /**
+     * Soften an image with a 3 by 3 binomial blur (1 2 1 in both directions).
+     *
+     * @param pixels the image, changed in place
+     * @param temporary scratch space of the same size
+     */
+    public static void blur(int[] pixels, int[] temporary, int width, int height) {
+        KERNELS.blurHorizontal(pixels, temporary, width, height);
+        KERNELS.blurVertical(temporary, pixels, width, height);
+    }
+
+    // Scalar forms of the kernels, also used by the vector kernels for the pixels that do not fill a vector
+
+    /**
+     * @return the rounded average of four pixels per channel
+     */
+    static int average4(int a, int b, int c, int d) {
+        int redBlue = (a & CHANNEL_MASK) + (b & CHANNEL_MASK) + (c & CHANNEL_MASK) + (d & CHANNEL_MASK) + 0x00020002;
+        int alphaGreen = ((a >>> 8) & CHANNEL_MASK) + ((b >>> 8) & CHANNEL_MASK) + ((c >>> 8) & CHANNEL_MASK)
+                + ((d >>> 8) & CHANNEL_MASK) + 0x00020002;
+        return ((redBlue >>> 2) & CHANNEL_MASK) | (((alphaGreen >>> 2) & CHANNEL_MASK) << 8);
+    }
+
+    static long packSums(long red, long green, long blue) {
+        return (red << 42) | (green << 21) | blue;
+    }
+}
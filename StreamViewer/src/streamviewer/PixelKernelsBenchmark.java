@@ -0,0 +1,101 @@
+package streamviewer;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Measures the scalar and the vector pixel kernels on full HD frames and checks that both compute the same pixels.
+ * Run it on the booth computer itself, as the speedup depends on the vector width of its CPU:
+ *
+ * {@code java --add-modules jdk.incubator.vector -cp StreamViewer.jar streamviewer.PixelKernelsBenchmark}
+ *
+ * Each kernel is warmed up until the JIT has compiled it, then timed over several rounds; the best round counts, as
+ * the others are slowed down by whatever else runs on the machine.
+ */
+public class PixelKernelsBenchmark {
+    private static final int WIDTH = 1920;
+    private static final int HEIGHT = 1080;
+    private static final int WARMUP_MS = 2000;
+    private static final int ROUNDS = 10;
+    private static final int ITERATIONS = 20;
+
+    private interface Kernel {
+        void run(PixelKernels.Kernels kernels);
+    }
+
+    private static final int[] pixels = new int[WIDTH * HEIGHT];
+    private static final int[] other = new int[WIDTH * HEIGHT];
+    private static final int[] target = new int[WIDTH * HEIGHT];
+    private static long sink;
+
+    public static void main(String[] args) {
+        if (!PixelKernels.isVectorized()) {
+            System.out.println("The Vector API is not available, run with --add-modules jdk.incubator.vector");
+            return;
+        }
+        System.out.println(WIDTH + "x" + HEIGHT + " frames, " + Runtime.getRuntime().availableProcessors()
+                + " CPUs, " + System.getProperty("java.vm.name") + " " + System.getProperty("java.version"));
+        Random random = new Random(42);
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = random.nextInt();
+            other[i] = random.nextInt();
+        }
+
+        PixelKernels.Kernels scalar = new ScalarPixelKernels();
+        PixelKernels.Kernels vector = PixelKernels.getKernels();
+        compare("sumChannels", scalar, vector, kernels -> {
+            for (int y = 0; y < HEIGHT; y++) {
+                sink += kernels.sumChannels(pixels, y * WIDTH, WIDTH);
+            }
+        });
+        compare("blur", scalar, vector, kernels -> {
+            kernels.blurHorizontal(pixels, other, WIDTH, HEIGHT);
+            kernels.blurVertical(other, target, WIDTH, HEIGHT);
+        });
+        System.out.println("(" + sink + ")");
+    }
+
+    private static void compare(String name, PixelKernels.Kernels scalar, PixelKernels.Kernels vector, Kernel kernel) {
+        checkSameResult(name, scalar, vector, kernel);
+        double scalarMs = measure(scalar, kernel);
+        double vectorMs = measure(vector, kernel);
+        System.out.printf("%-20s scalar %7.3f ms   vector %7.3f ms   speedup %5.2fx%n",
+                name, scalarMs, vectorMs, scalarMs / vectorMs);
+    }
+
+    private static void checkSameResult(String name, PixelKernels.Kernels scalar, PixelKernels.Kernels vector, Kernel kernel) {
+        int[] originalOther = other.clone();
+        System.arraycopy(pixels, 0, target, 0, target.length);
+        long sinkBefore = sink;
+        kernel.run(scalar);
+        long scalarSink = sink - sinkBefore;
+        int[] scalarTarget = target.clone();
+
+        System.arraycopy(originalOther, 0, other, 0, other.length);
+        System.arraycopy(pixels, 0, target, 0, target.length);
+        sinkBefore = sink;
+        kernel.run(vector);
+        if (!Arrays.equals(scalarTarget, target) || sink - sinkBefore != scalarSink) {
+            throw new IllegalStateException(name + ": the vector kernel computes different pixels");
+        }
+    }
+
+    /**
+     * @return the best time of one kernel run in milliseconds
+     */
+    private static double measure(PixelKernels.Kernels kernels, Kernel kernel) {
+        long warmupEnd = System.currentTimeMillis() + WARMUP_MS;
+        while (System.currentTimeMillis() < warmupEnd) {
+            kernel.run(kernels);
+        }
+        long best = Long.MAX_VALUE;
+        for (int round = 0; round < ROUNDS; round++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < ITERATIONS; i++) {
+                kernel.run(kernels);
+            }
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        return best / 1e6 / ITERATIONS;
+    }
+}
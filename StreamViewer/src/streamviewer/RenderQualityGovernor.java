@@ -0,0 +1,205 @@
+package streamviewer;
+
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Picks how well the live view is scaled, depending on how long painting it takes on this machine.
+ *
+ * The paint time of every frame is measured and averaged over {@link #WINDOW} paints. If the average exceeds the
+ * budget (photobox.paintBudgetMs, 12 ms by default, leaving room for the rest of a 60 Hz frame), the quality goes down
+ * one level; the lowest level also simplifies the background effects. If the average stays well below the budget,
+ * the next better level is tried after {@link #BASE_UPGRADE_DELAY_NANOS}. A level that turned out to be too slow
+ * right after an upgrade is tried again only after twice the delay, so a machine at the edge of the budget does not
+ * keep switching back and forth. The level can be fixed with photobox.renderTier, e.g. -Dphotobox.renderTier=bicubic.
+ *
+ * Only the time spent on the event dispatch thread is measured. With an accelerated pipeline some of the drawing
+ * happens later on the graphics card, which the budget then does not see.
+ *
+ * Used on the event dispatch thread only.
+ */
+public class RenderQualityGovernor {
+    private static final long BUDGET_NANOS = Long.getLong("photobox.paintBudgetMs", 12) * 1_000_000L;
+    private static final String FIXED_TIER = System.getProperty("photobox.renderTier");
+    private static final int WINDOW = 30;
+    /**
+     * Fraction of the budget the paint time has to stay below before a better level is tried.
+     */
+    private static final double UPGRADE_HEADROOM = 0.5;
+    private static final long BASE_UPGRADE_DELAY_NANOS = 5_000_000_000L;
+    private static final long MAX_UPGRADE_DELAY_NANOS = 300_000_000_000L;
+
+    /**
+     * How images are scaled, from the cheapest to the best looking.
+     */
+    public enum Tier {
+        NEAREST(RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR, RenderingHints.VALUE_RENDER_SPEED),
+        BILINEAR(RenderingHints.VALUE_INTERPOLATION_BILINEAR, RenderingHints.VALUE_RENDER_DEFAULT),
+        BICUBIC(RenderingHints.VALUE_INTERPOLATION_BICUBIC, RenderingHints.VALUE_RENDER_QUALITY),
+        /**
+         * Scales each image once into a cached copy of the drawn size, halving it step by step first if it is
+         * shrunk a lot, which avoids the aliasing of a single bicubic pass. Repaints of the same frame, e.g. during
+         * the countdown, only copy the cached image.
+         */
+        PRESCALED(RenderingHints.VALUE_INTERPOLATION_BICUBIC, RenderingHints.VALUE_RENDER_QUALITY);
+
+        private final Object interpolation;
+        private final Object rendering;
+
+        Tier(Object interpolation, Object rendering) {
+            this.interpolation = interpolation;
+            this.rendering = rendering;
+        }
+    }
+
+    private static final Tier[] TIERS = Tier.values();
+
+    /**
+     * 0 is {@link Tier#NEAREST} with simplified background effects, level n above that is the tier with ordinal n - 1.
+     */
+    private int level;
+    private final boolean fixed;
+    private long windowNanos = 0;
+    private int windowPaints = 0;
+    private long lastChangeNanos = System.nanoTime();
+    private boolean lastChangeWasUpgrade = false;
+    private long upgradeDelayNanos = BASE_UPGRADE_DELAY_NANOS;
+
+    /**
+     * The prescaled copies of the last images drawn, e.g. the live frame and the smiley drawn on top of it.
+     */
+    private final Map<BufferedImage, BufferedImage> prescaled = new LinkedHashMap<>(4, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<BufferedImage, BufferedImage> eldest) {
+            return size() > 2;
+        }
+    };
+
+    public RenderQualityGovernor() {
+        Tier fixedTier = null;
+        if (FIXED_TIER != null && !FIXED_TIER.isBlank()) {
+            try {
+                fixedTier = Tier.valueOf(FIXED_TIER.trim().toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                System.err.println("Unknown render tier " + FIXED_TIER + ", adapting to the paint time instead");
+            }
+        }
+        fixed = fixedTier != null;
+        level = fixed ? fixedTier.ordinal() + 1 : Tier.BILINEAR.ordinal() + 1;
+        Metrics.setGauge("render.tier", getTier().ordinal());
+    }
+
+    public Tier getTier() {
+        return TIERS[Math.max(0, level - 1)];
+    }
+
+    /**
+     * @return whether the background effects should save time at the cost of quality
+     */
+    public boolean isEffectQualityReduced() {
+        return level == 0;
+    }
+
+    /**
+     * Draw an image scaled into the given bounds, in the quality of the current tier.
+     */
+    public void drawImage(Graphics2D g2d, BufferedImage image, Rectangle bounds) {
+        if (bounds.width <= 0 || bounds.height <= 0) {
+            return;
+        }
+        Tier tier = getTier();
+        if (tier == Tier.PRESCALED && (image.getWidth() != bounds.width || image.getHeight() != bounds.height)) {
+            BufferedImage scaled = prescaled.get(image);
+            if (scaled == null || scaled.getWidth() != bounds.width || scaled.getHeight() != bounds.height) {
+                scaled = prescale(image, bounds.width, bounds.height);
+                prescaled.put(image, scaled);
+            }
+            g2d.drawImage(scaled, bounds.x, bounds.y, null);
+            return;
+        }
+        g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION, tier.interpolation);
+        g2d.setRenderingHint(RenderingHints.KEY_RENDERING, tier.rendering);
+        g2d.drawImage(image, bounds.x, bounds.y, bounds.width, bounds.height, null);
+    }
+
+    /**
+     * Count the time a paint of the panel took, and change the level if the paints are too slow or fast enough for
+     * a better one.
+     *
+     * @param nanos the duration of the paint
+     * @return whether the level changed
+     */
+    public boolean onPaint(long nanos) {
+        Metrics.record("render.paintUs", nanos / 1000);
+        if (fixed) {
+            return false;
+        }
+        windowNanos += nanos;
+        if (++windowPaints < WINDOW) {
+            return false;
+        }
+        long averageNanos = windowNanos / windowPaints;
+        windowNanos = 0;
+        windowPaints = 0;
+
+        long now = System.nanoTime();
+        if (averageNanos > BUDGET_NANOS && level > 0) {
+            // Too slow right after trying a better level: wait longer before the next try
+            upgradeDelayNanos = lastChangeWasUpgrade && now - lastChangeNanos < upgradeDelayNanos
+                    ? Math.min(2 * upgradeDelayNanos, MAX_UPGRADE_DELAY_NANOS) : BASE_UPGRADE_DELAY_NANOS;
+            changeLevel(level - 1, averageNanos, false, now);
+            return true;
+        }
+        if (averageNanos < BUDGET_NANOS * UPGRADE_HEADROOM && level < TIERS.length
+                && now - lastChangeNanos >= upgradeDelayNanos) {
+            changeLevel(level + 1, averageNanos, true, now);
+            return true;
+        }
+        return false;
+    }
+
+    private void changeLevel(int newLevel, long averageNanos, boolean upgrade, long now) {
+        level = newLevel;
+        lastChangeNanos = now;
+        lastChangeWasUpgrade = upgrade;
+        if (getTier() != Tier.PRESCALED) {
+            prescaled.clear();
+        }
+        Metrics.increment("render.tierChanges");
+        Metrics.setGauge("render.tier", getTier().ordinal());
+        System.out.println("Paints took " + averageNanos / 1000 + " us, switching to " + getTier()
+                + (isEffectQualityReduced() ? " with simple background effects" : ""));
+    }
+
+    /**
+     * Scale an image to the given size, shrinking it by half with bilinear interpolation while it is more than twice
+     * as large, then with bicubic interpolation to the exact size.
+     */
+    private static BufferedImage prescale(BufferedImage image, int width, int height) {
+        int type = image.getColorModel().hasAlpha() ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB;
+        BufferedImage current = image;
+        while (current.getWidth() / 2 >= width && current.getHeight() / 2 >= height) {
+            current = scale(current, current.getWidth() / 2, current.getHeight() / 2, type,
+                    RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        }
+        return scale(current, width, height, type, RenderingHints.VALUE_INTERPOLATION_BICUBIC);
+    }
+
+    private static BufferedImage scale(BufferedImage image, int width, int height, int type, Object interpolation) {
+        BufferedImage scaled = new BufferedImage(Math.max(1, width), Math.max(1, height), type);
+        Graphics2D g2d = scaled.createGraphics();
+        try {
+            g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION, interpolation);
+            g2d.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            g2d.drawImage(image, 0, 0, scaled.getWidth(), scaled.getHeight(), null);
+        } finally {
+            g2d.dispose();
+        }
+        return scaled;
+    }
+}
@@ -0,0 +1,47 @@
+package streamviewer;
+
+/**
+ * Plain loops over the pixels, used when the Vector API is not available.
+ */
+class ScalarPixelKernels implements PixelKernels.Kernels {
+
+    @Override
+    public long sumChannels(int[] pixels, int offset, int length) {
+        long red = 0;
+        long green = 0;
+        long blue = 0;
+        for (int i = offset; i < offset + length; i++) {
+            int pixel = pixels[i];
+            red += (pixel >>> 16) & 0xFF;
+            green += (pixel >>> 8) & 0xFF;
+            blue += pixel & 0xFF;
+        }
+        return PixelKernels.packSums(red, green, blue);
+    }
+
+    @Override
+    public void blurHorizontal(int[] source, int[] target, int width, int height) {
+        for (int y = 0; y < height; y++) {
+            int row = y * width;
+            for (int x = 0; x < width; x++) {
+                int center = source[row + x];
+                int left = x > 0 ? source[row + x - 1] : center;
+                int right = x < width - 1 ? source[row + x + 1] : center;
+                target[row + x] = PixelKernels.average4(left, center, center, right);
+            }
+        }
+    }
+
+    @Override
+    public void blurVertical(int[] source, int[] target, int width, int height) {
+        for (int y = 0; y < height; y++) {
+            int row = y * width;
+            int above = y > 0 ? row - width : row;
+            int below = y < height - 1 ? row + width : row;
+            for (int x = 0; x < width; x++) {
+                int center = source[row + x];
+                target[row + x] = PixelKernels.average4(source[above + x], center, center, source[below + x]);
+            }
+        }
+    }
+}
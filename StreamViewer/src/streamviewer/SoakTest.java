@@ -0,0 +1,408 @@
+package streamviewer;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToDoubleFunction;
+import javax.management.NotificationEmitter;
+import javax.management.openmbean.CompositeData;
+import javax.swing.SwingUtilities;
+
+/**
+ * Runs the real live view pipeline headless for hours and reports whether memory, threads or frame latency creep up,
+ * so that a booth that would degrade during a long event is caught the night before.
+ *
+ * The pipeline is the one of the booth: {@link MockLumixCamera} streams over UDP to a {@link LumixStreamViewer}, whose
+ * frames go to a {@link VideoPanel} that is painted offscreen; a {@link CameraSession} and a
+ * {@link CameraStateMonitor} talk to the mock camera, photos are taken through {@link PhotoTaker}, and the camera
+ * mode is switched between "real" and "mock" regularly, restarting the viewer like the K key does.
+ *
+ * Every sample interval a line is appended to a CSV report: heap after the last GC, the longest GC pause, platform
+ * threads, running {@link IoRuntime} tasks (the virtual threads of the camera I/O, which the thread count misses),
+ * direct buffers, resident memory (Linux only, includes OpenCV and other native memory), frames painted and the
+ * paint latency, i.e. the time from a decoded frame being handed to the panel to the end of its offscreen paint.
+ * At the end the growth per hour after a warmup is printed, and the exit code is 1 if it looks like a leak.
+ *
+ * {@code java -cp StreamViewer.jar streamviewer.SoakTest --minutes=480 --report=soak.csv --loss=0.02}
+ *
+ * Further options: sampleSeconds, captureSeconds, switchMinutes, reorder, latencyMs and jitterMs.
+ */
+public class SoakTest {
+    private static final int PANEL_WIDTH = 1280;
+    private static final int PANEL_HEIGHT = 720;
+    /**
+     * The first part of the run, during which caches fill up and the JIT compiles, is left out of the trends.
+     */
+    private static final double WARMUP_FRACTION = 0.2;
+    /**
+     * Shorter runs are reported, but their trends are too noisy to fail on.
+     */
+    private static final double MIN_TREND_MINUTES = 60;
+    private static final double MAX_HEAP_GROWTH_MB_PER_HOUR = 10;
+    private static final double MAX_RESIDENT_GROWTH_MB_PER_HOUR = 50;
+    private static final double MAX_THREAD_GROWTH_PER_HOUR = 2;
+    private static final double MAX_IO_TASK_GROWTH_PER_HOUR = 2;
+
+    private record Sample(double minutes, long heapAfterGcMb, long maxGcPauseMs, long gcTimeMs, int threads,
+                          int ioTasks, long directMb, long residentMb, long frames, long avgPaintMs, long maxPaintMs,
+                          long maxFrameGapMs, long capturesOk, long capturesFailed, long modeSwitches) {
+    }
+
+    private final Map<String, String> settings;
+    private final List<Sample> samples = new ArrayList<>();
+
+    private MockLumixCamera camera;
+    private Options options;
+    private VideoPanel videoPanel;
+    private BufferedImage canvas;
+    private StreamViewerInterface viewer;
+    private Thread viewerThread;
+    private CameraSession session;
+    private CameraStateMonitor stateMonitor;
+    private String mode = "real";
+
+    private final AtomicBoolean paintPending = new AtomicBoolean();
+    private final LongAdder framesPainted = new LongAdder();
+    private final LongAdder paintNanos = new LongAdder();
+    private final AtomicLong maxPaintNanos = new AtomicLong();
+    private final AtomicLong maxFrameGapNanos = new AtomicLong();
+    private final AtomicLong maxGcPauseMs = new AtomicLong();
+    private volatile long lastFrameNanos = 0;
+    private final LongAdder capturesOk = new LongAdder();
+    private final LongAdder capturesFailed = new LongAdder();
+    private long modeSwitches = 0;
+
+    private SoakTest(Map<String, String> settings) {
+        this.settings = settings;
+    }
+
+    public static void main(String[] args) throws Exception {
+        System.setProperty("java.awt.headless", "true");
+        Map<String, String> settings = new HashMap<>();
+        for (String arg : args) {
+            int separator = arg.indexOf('=');
+            if (arg.startsWith("--") && separator > 2) {
+                settings.put(arg.substring(2, separator), arg.substring(separator + 1));
+            } else {
+                System.err.println("Ignoring argument " + arg);
+            }
+        }
+        System.exit(new SoakTest(settings).run() ? 0 : 1);
+    }
+
+    private double setting(String name, double defaultValue) {
+        String value = settings.get(name);
+        return value != null ? Double.parseDouble(value) : defaultValue;
+    }
+
+    /**
+     * @return whether the run ended without signs of a leak
+     */
+    private boolean run() throws Exception {
+        long durationMs = (long) (setting("minutes", 480) * 60_000);
+        long sampleMs = (long) (setting("sampleSeconds", 60) * 1000);
+        long captureMs = (long) (setting("captureSeconds", 30) * 1000);
+        long switchMs = (long) (setting("switchMinutes", 10) * 60_000);
+        File reportFile = new File(settings.getOrDefault("report", "soak-report.csv"));
+
+        MockLumixCamera.Conditions ideal = MockLumixCamera.Conditions.ideal();
+        camera = new MockLumixCamera(0, new MockLumixCamera.Conditions(ideal.width(), ideal.height(), ideal.fps(),
+                setting("loss", 0), setting("reorder", 0), (long) setting("latencyMs", 0),
+                (long) setting("jitterMs", 0), 0));
+        camera.start();
+
+        Path photoDirectory = Files.createTempDirectory("soak-photos");
+        options = Options.load(new String[]{"--no-dialog", "--config=" + new File(photoDirectory.toFile(), "none"),
+                "--viewerType=real", "--cameraIp=" + camera.getCameraIp(), "--cameraNetMaskBitSize=8",
+                "--cameraStateMonitorMode=live", "--photoDirectory=" + photoDirectory, "--comPort=COM"});
+        canvas = new BufferedImage(PANEL_WIDTH, PANEL_HEIGHT, BufferedImage.TYPE_INT_RGB);
+        SwingUtilities.invokeAndWait(() -> {
+            videoPanel = new VideoPanel(options, () -> {
+            });
+            videoPanel.setSize(PANEL_WIDTH, PANEL_HEIGHT);
+        });
+        watchGcPauses();
+
+        System.out.println("Soak test for " + durationMs / 60_000 + " minutes, report in " + reportFile);
+        startMode();
+        long startMillis = System.currentTimeMillis();
+        long nextSample = startMillis + sampleMs;
+        long nextCapture = startMillis + captureMs;
+        long nextSwitch = startMillis + switchMs;
+        try (PrintWriter report = new PrintWriter(reportFile, StandardCharsets.UTF_8)) {
+            report.println("minutes,heapAfterGcMb,maxGcPauseMs,gcTimeMs,threads,ioTasks,directMb,residentMb,frames,"
+                    + "avgPaintMs,maxPaintMs,maxFrameGapMs,capturesOk,capturesFailed,modeSwitches");
+            while (System.currentTimeMillis() - startMillis < durationMs) {
+                long now = System.currentTimeMillis();
+                long next = Math.min(nextSample, Math.min(nextCapture, nextSwitch));
+                if (now < next) {
+                    Thread.sleep(Math.min(next - now, startMillis + durationMs - now));
+                    continue;
+                }
+                if (now >= nextCapture) {
+                    capture();
+                    nextCapture += captureMs;
+                }
+                if (now >= nextSwitch) {
+                    switchMode();
+                    nextSwitch += switchMs;
+                }
+                if (now >= nextSample) {
+                    Sample sample = sample((now - startMillis) / 60_000.0);
+                    samples.add(sample);
+                    report.println(toCsv(sample));
+                    report.flush();
+                    System.out.println(sample);
+                    nextSample += sampleMs;
+                }
+            }
+        } finally {
+            stopMode();
+            camera.stop();
+            IoRuntime.shutdown();
+        }
+        System.out.println(Metrics.report());
+        return evaluate();
+    }
+
+    private void startMode() throws Exception {
+        options.setViewerType(mode);
+        if (mode.equals("real")) {
+            viewer = new LumixStreamViewer(null, options.getCameraIp(), options.getCameraNetMaskBitSize());
+            stateMonitor = new CameraStateMonitor(options, videoPanel);
+        } else {
+            viewer = new MockStreamViewer("/mockImage.png");
+            stateMonitor = new MockCameraStateMonitor(options, videoPanel);
+        }
+        viewer.setImageConsumer(this::displayFrame);
+        viewerThread = new Thread(viewer, "soak-viewer");
+        viewerThread.start();
+        if (viewer instanceof LumixStreamViewer lumixViewer) {
+            session = new CameraSession(options.getCameraIp(), LumixStreamViewer.DEFAULT_UDP_PORT, IoRuntime.camera());
+            lumixViewer.setRestreamAction(session::restartStream);
+            session.open();
+        }
+        stateMonitor.start();
+    }
+
+    /**
+     * Stop everything of the current mode the way LumixPhotoBox does when switching modes.
+     */
+    private void stopMode() throws InterruptedException {
+        if (session != null) {
+            session.close();
+            session = null;
+        }
+        stateMonitor.stop();
+        viewerThread.interrupt();
+        viewerThread.join(1000);
+        if (viewerThread.isAlive()) {
+            System.err.println("The " + mode + " viewer did not stop within a second");
+        }
+        IoRuntime.resetCamera();
+    }
+
+    private void switchMode() throws Exception {
+        stopMode();
+        mode = mode.equals("real") ? "mock" : "real";
+        modeSwitches++;
+        startMode();
+    }
+
+    private void capture() {
+        new PhotoTaker(options).takePhoto().thenAccept(result -> {
+            if (result.isSuccess()) {
+                capturesOk.increment();
+            } else {
+                capturesFailed.increment();
+            }
+        });
+    }
+
+    /**
+     * The image consumer of the viewers: hand the frame to the panel and paint it offscreen, skipping frames while
+     * the previous one is still waiting to be painted, like Swing coalesces repaints.
+     */
+    private void displayFrame(BufferedImage image) {
+        long arrivalNanos = System.nanoTime();
+        if (lastFrameNanos != 0) {
+            maxFrameGapNanos.accumulateAndGet(arrivalNanos - lastFrameNanos, Math::max);
+        }
+        lastFrameNanos = arrivalNanos;
+        videoPanel.displayNewImage(image);
+        if (!paintPending.compareAndSet(false, true)) {
+            return;
+        }
+        SwingUtilities.invokeLater(() -> {
+            paintPending.set(false);
+            Graphics2D g2d = canvas.createGraphics();
+            try {
+                videoPanel.paint(g2d);
+            } finally {
+                g2d.dispose();
+            }
+            long latency = System.nanoTime() - arrivalNanos;
+            framesPainted.increment();
+            paintNanos.add(latency);
+            maxPaintNanos.accumulateAndGet(latency, Math::max);
+        });
+    }
+
+    private void watchGcPauses() {
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            if (!(collector instanceof NotificationEmitter emitter)) {
+                continue;
+            }
+            emitter.addNotificationListener((notification, handback) -> {
+                if (!notification.getType().equals(GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION)) {
+                    return;
+                }
+                GarbageCollectionNotificationInfo info =
+                        GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData());
+                // Concurrent cycles run alongside the application, they are no pauses
+                if (!info.getGcName().contains("Concurrent")) {
+                    maxGcPauseMs.accumulateAndGet(info.getGcInfo().getDuration(), Math::max);
+                }
+            }, null, null);
+        }
+    }
+
+    /**
+     * Take a sample and reset the per interval values.
+     */
+    private Sample sample(double minutes) {
+        long heapAfterGc = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            MemoryUsage afterGc = pool.getCollectionUsage();
+            if (pool.getType() == MemoryType.HEAP && afterGc != null) {
+                heapAfterGc += afterGc.getUsed();
+            }
+        }
+        long gcTimeMs = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            gcTimeMs += Math.max(0, collector.getCollectionTime());
+        }
+        long direct = 0;
+        for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+            direct += pool.getMemoryUsed();
+        }
+        long frames = framesPainted.sumThenReset();
+        long paint = paintNanos.sumThenReset();
+        return new Sample(Math.round(minutes * 10) / 10.0, heapAfterGc >> 20, maxGcPauseMs.getAndSet(0), gcTimeMs,
+                ManagementFactory.getThreadMXBean().getThreadCount(), IoRuntime.runningTasks(), direct >> 20, readResidentMb(), frames,
+                frames > 0 ? paint / frames / 1_000_000 : 0, maxPaintNanos.getAndSet(0) / 1_000_000,
+                maxFrameGapNanos.getAndSet(0) / 1_000_000, capturesOk.sum(), capturesFailed.sum(), modeSwitches);
+    }
+
+    /**
+     * @return the resident set size of the process, or -1 where /proc is not available
+     */
+    private static long readResidentMb() {
+        try {
+            for (String line : Files.readAllLines(Path.of("/proc/self/status"))) {
+                if (line.startsWith("VmRSS:")) {
+                    return Long.parseLong(line.replaceAll("\\D", "")) >> 10;
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            // Not Linux
+        }
+        return -1;
+    }
+
+    private static String toCsv(Sample sample) {
+        return sample.minutes() + "," + sample.heapAfterGcMb() + "," + sample.maxGcPauseMs() + "," + sample.gcTimeMs()
+                + "," + sample.threads() + "," + sample.ioTasks() + "," + sample.directMb() + "," + sample.residentMb() + "," + sample.frames()
+                + "," + sample.avgPaintMs() + "," + sample.maxPaintMs() + "," + sample.maxFrameGapMs() + ","
+                + sample.capturesOk() + "," + sample.capturesFailed() + "," + sample.modeSwitches();
+    }
+
+    /**
+     * Print the trends after the warmup and judge them.
+     *
+     * @return whether nothing grows faster than the limits
+     */
+    private boolean evaluate() {
+        List<Sample> measured = samples.subList((int) (samples.size() * WARMUP_FRACTION), samples.size());
+        if (measured.size() < 3) {
+            System.out.println("Too few samples for trends, run longer or sample more often");
+            return true;
+        }
+        double heapGrowth = slopePerHour(measured, Sample::heapAfterGcMb);
+        double residentGrowth = slopePerHour(measured, Sample::residentMb);
+        double threadGrowth = slopePerHour(measured, Sample::threads);
+        double ioTaskGrowth = slopePerHour(measured, Sample::ioTasks);
+        long worstGcPause = measured.stream().mapToLong(Sample::maxGcPauseMs).max().orElse(0);
+        long worstPaint = measured.stream().mapToLong(Sample::maxPaintMs).max().orElse(0);
+        long worstGap = measured.stream().mapToLong(Sample::maxFrameGapMs).max().orElse(0);
+        Sample last = measured.get(measured.size() - 1);
+
+        System.out.printf("Heap after GC: %+.1f MB/h, resident: %+.1f MB/h, threads: %+.1f/h, I/O tasks: %+.1f/h%n",
+                heapGrowth, residentGrowth, threadGrowth, ioTaskGrowth);
+        System.out.println("Worst GC pause " + worstGcPause + " ms, worst paint latency " + worstPaint
+                + " ms, longest gap between frames " + worstGap + " ms");
+        System.out.println("Photos " + last.capturesOk() + " ok, " + last.capturesFailed() + " failed; "
+                + last.modeSwitches() + " mode switches; camera sent " + camera.getFramesSent() + " frames");
+
+        if (last.minutes() - measured.get(0).minutes() < MIN_TREND_MINUTES) {
+            System.out.println("Too short to judge the trends, run for at least "
+                    + Math.round(MIN_TREND_MINUTES / (1 - WARMUP_FRACTION)) + " minutes");
+            return true;
+        }
+        boolean passed = true;
+        if (heapGrowth > MAX_HEAP_GROWTH_MB_PER_HOUR) {
+            System.out.println("Possible heap leak");
+            passed = false;
+        }
+        if (last.residentMb() >= 0 && residentGrowth > MAX_RESIDENT_GROWTH_MB_PER_HOUR) {
+            System.out.println("Possible native memory leak");
+            passed = false;
+        }
+        if (threadGrowth > MAX_THREAD_GROWTH_PER_HOUR) {
+            System.out.println("Possible thread leak");
+            passed = false;
+        }
+        if (ioTaskGrowth > MAX_IO_TASK_GROWTH_PER_HOUR) {
+            System.out.println("Possible leak of I/O tasks that never finish");
+            passed = false;
+        }
+        System.out.println(passed ? "Soak test passed" : "Soak test failed");
+        return passed;
+    }
+
+    /**
+     * @return the least squares slope of a value over time, per hour
+     */
+    private static double slopePerHour(List<Sample> samples, ToDoubleFunction<Sample> value) {
+        double meanTime = samples.stream().mapToDouble(Sample::minutes).average().orElse(0);
+        double meanValue = samples.stream().mapToDouble(value).average().orElse(0);
+        double covariance = 0;
+        double variance = 0;
+        for (Sample sample : samples) {
+            double time = sample.minutes() - meanTime;
+            covariance += time * (value.applyAsDouble(sample) - meanValue);
+            variance += time * time;
+        }
+        return variance > 0 ? covariance / variance * 60 : 0;
+    }
+}
@@ -4,5 +4,27 @@ import java.util.function.Consumer;
 import java.awt.image.BufferedImage;
 
 public interface StreamViewerInterface extends Runnable {
+    /**
+     * @param imageConsumer receives the decoded frames; frames are only decoded while an image consumer is set
+     */
     void setImageConsumer(Consumer<BufferedImage> imageConsumer);
+
+    /**
+     * Optional second channel for consumers that only need the JPEG bytes, e.g. recorders and restreamers. Called
+     * on the viewer's thread, so the consumer must not block.
+     *
+     * @param encodedFrameConsumer receives every frame, or null to stop
+     */
+    void setEncodedFrameConsumer(Consumer<EncodedFrame> encodedFrameConsumer);
+
+    /**
+     * Frame rate of the image consumer while the photobox is idle.
+     */
+    int IDLE_FRAMES_PER_SECOND = 5;
+
+    /**
+     * @param idle whether to decode and hand over only {@link #IDLE_FRAMES_PER_SECOND} frames per second to the image
+     * consumer to save power
+     */
+    void setIdle(boolean idle);
 }
@@ -0,0 +1,91 @@
+package streamviewer;
+
+/**
+ * Detects when the camera stops sending live view packets and asks it to stream again.
+ *
+ * The watchdog is fed from the receive loop: {@link #onPacket(long)} for every packet and {@link #check(long)}
+ * whenever the receive times out. Once the gap since the last packet exceeds the stall threshold, the restream action
+ * is run, and repeated with exponential backoff until packets arrive again. How long the screen was frozen and how
+ * long the recovery took are recorded in the {@link Metrics}.
+ *
+ * Not thread safe, meant to be used by the receiving thread only.
+ */
+public class StreamWatchdog {
+    private static final long INITIAL_BACKOFF_NANOS = 500_000_000L;
+    private static final long MAX_BACKOFF_NANOS = 8_000_000_000L;
+
+    private final long stallThresholdNanos;
+    private final Runnable restreamAction;
+
+    private long lastPacketNanos = -1;
+    private boolean stalled = false;
+    private long stallDeclaredNanos;
+    private long nextRestreamNanos;
+    private long backoffNanos;
+
+    /**
+     * @param stallThresholdMs gap between packets after which the stream is considered stalled
+     * @param restreamAction asks the camera to stream again; must not block
+     */
+    public StreamWatchdog(long stallThresholdMs, Runnable restreamAction) {
+        this.stallThresholdNanos = stallThresholdMs * 1_000_000L;
+        this.restreamAction = restreamAction;
+    }
+
+    /**
+     * @param nowNanos receive time of the packet, from {@link System#nanoTime()}
+     */
+    public void onPacket(long nowNanos) {
+        if (lastPacketNanos >= 0) {
+            long gapMs = (nowNanos - lastPacketNanos) / 1_000_000L;
+            Metrics.record("stream.packetGapMs", gapMs);
+
+            if (stalled) {
+                long recoveryMs = (nowNanos - stallDeclaredNanos) / 1_000_000L;
+                Metrics.record("stream.frozenMs", gapMs);
+                Metrics.record("stream.recoveryMs", recoveryMs);
+                System.out.println("Stream recovered after " + gapMs + " ms without packets (" + recoveryMs + " ms after the stall was detected)");
+                stalled = false;
+            }
+        }
+        lastPacketNanos = nowNanos;
+    }
+
+    /**
+     * Check for a stall, called whenever no packet arrived for a while.
+     *
+     * @param nowNanos the current time, from {@link System#nanoTime()}
+     */
+    public void check(long nowNanos) {
+        if (lastPacketNanos < 0) {
+            return; // Not streaming yet, connecting is up to the camera session
+        }
+
+        if (!stalled) {
+            if (nowNanos - lastPacketNanos >= stallThresholdNanos) {
+                stalled = true;
+                stallDeclaredNanos = nowNanos;
+                backoffNanos = INITIAL_BACKOFF_NANOS;
+                Metrics.increment("stream.stalls");
+                System.out.println("Stream stalled, no packet for " + (nowNanos - lastPacketNanos) / 1_000_000L + " ms");
+                restream(nowNanos);
+            }
+        } else if (nowNanos >= nextRestreamNanos) {
+            restream(nowNanos);
+        }
+    }
+
+    /**
+     * @return whether the stream is currently considered stalled
+     */
+    public boolean isStalled() {
+        return stalled;
+    }
+
+    private void restream(long nowNanos) {
+        Metrics.increment("stream.restreams");
+        restreamAction.run();
+        nextRestreamNanos = nowNanos + backoffNanos;
+        backoffNanos = Math.min(MAX_BACKOFF_NANOS, backoffNanos * 2);
+    }
+}
@@ -0,0 +1,228 @@
+package streamviewer;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Lays out the photos of a session into a print-sized photo strip or grid and saves it as a JPEG.
+ *
+ * The photos are decoded in parallel, each one subsampled while decoding, but only down to
+ * {@link #DECODE_OVERSAMPLING} times the size of its cell: subsampling skips pixels and would alias like a
+ * single-step resize if it did all the work. A 20 MP photo is still held at a quarter or less of its pixels in both
+ * templates. The photos are then cropped to the cell's aspect ratio and scaled down in halving steps, which keeps
+ * the quality of a high-quality resize at a fraction of the cost. The cells are drawn into an output image that is
+ * kept and reused for the next composite of the same template, and the JPEG is encoded straight into the file.
+ */
+public class StripCompositor {
+    private static final float JPEG_QUALITY = 0.92f;
+    private static final Color BACKGROUND = Color.WHITE;
+    /**
+     * How much larger than its cell a photo is decoded at least, to leave the last halving steps to
+     * {@link #downscale}.
+     */
+    private static final int DECODE_OVERSAMPLING = 3;
+
+    /**
+     * The print layouts, at 300 dpi.
+     */
+    public enum Template {
+        /**
+         * 2x6 inch strip with 4 photos below each other.
+         */
+        STRIP(600, 1800, 1, 4, 30, 60),
+        /**
+         * 6x4 inch print with 2 by 2 photos.
+         */
+        GRID(1800, 1200, 2, 2, 40, 40);
+
+        private final int width;
+        private final int height;
+        private final int columns;
+        private final int rows;
+        private final int margin;
+        /**
+         * Extra space at the bottom, e.g. for a logo.
+         */
+        private final int footer;
+
+        Template(int width, int height, int columns, int rows, int margin, int footer) {
+            this.width = width;
+            this.height = height;
+            this.columns = columns;
+            this.rows = rows;
+            this.margin = margin;
+            this.footer = footer;
+        }
+
+        public int getPhotoCount() {
+            return columns * rows;
+        }
+
+        int getCellWidth() {
+            return (width - margin * (columns + 1)) / columns;
+        }
+
+        int getCellHeight() {
+            return (height - footer - margin * (rows + 1)) / rows;
+        }
+
+        int getCellX(int index) {
+            return margin + (index % columns) * (getCellWidth() + margin);
+        }
+
+        int getCellY(int index) {
+            return margin + (index / columns) * (getCellHeight() + margin);
+        }
+    }
+
+    private final ExecutorService decodeExecutor;
+    /**
+     * Output image of the last composite, reused if the next one has the same template.
+     */
+    private BufferedImage canvas;
+
+    public StripCompositor() {
+        this.decodeExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), runnable -> {
+            Thread thread = new Thread(runnable, "strip-compositor");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Compose the photos into the template in the background. If there are fewer photos than cells, the remaining
+     * cells stay empty; extra photos are ignored.
+     *
+     * @param photos the photos in the order they should appear
+     * @param template the layout
+     * @param output the JPEG file to write
+     * @return completes with the output file once it has been written
+     */
+    public CompletableFuture<File> compose(List<File> photos, Template template, File output) {
+        long startNanos = System.nanoTime();
+        int count = Math.min(photos.size(), template.getPhotoCount());
+        List<CompletableFuture<BufferedImage>> cells = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            File photo = photos.get(i);
+            cells.add(CompletableFuture.supplyAsync(
+                    () -> loadCell(photo, template.getCellWidth(), template.getCellHeight()), decodeExecutor));
+        }
+
+        return CompletableFuture.allOf(cells.toArray(new CompletableFuture<?>[0])).thenApplyAsync(done -> {
+            try {
+                render(template, cells.stream().map(CompletableFuture::join).toList(), output);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            Metrics.record("strip.composeMs", (System.nanoTime() - startNanos) / 1_000_000);
+            return output;
+        }, decodeExecutor);
+    }
+
+    public void shutdown() {
+        decodeExecutor.shutdownNow();
+    }
+
+    private static BufferedImage loadCell(File photo, int cellWidth, int cellHeight) {
+        long startNanos = System.nanoTime();
+        try {
+            BufferedImage decoded = ThumbnailCache.decodeSubsampled(photo,
+                    DECODE_OVERSAMPLING * cellWidth, DECODE_OVERSAMPLING * cellHeight);
+            if (decoded == null) {
+                throw new IOException("Unsupported image format");
+            }
+            BufferedImage cell = scaleToFill(decoded, cellWidth, cellHeight);
+            Metrics.record("strip.cellMs", (System.nanoTime() - startNanos) / 1_000_000);
+            return cell;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to read " + photo.getName(), e);
+        }
+    }
+
+    /**
+     * Crop the image to the aspect ratio of the target size, centered, and scale it to exactly that size.
+     */
+    static BufferedImage scaleToFill(BufferedImage image, int width, int height) {
+        double scale = Math.max((double) width / image.getWidth(), (double) height / image.getHeight());
+        int cropWidth = Math.min(image.getWidth(), (int) Math.round(width / scale));
+        int cropHeight = Math.min(image.getHeight(), (int) Math.round(height / scale));
+        // Shares the pixels of the decoded image, nothing is copied
+        BufferedImage cropped = image.getSubimage((image.getWidth() - cropWidth) / 2,
+                (image.getHeight() - cropHeight) / 2, cropWidth, cropHeight);
+        return downscale(cropped, width, height);
+    }
+
+    /**
+     * Scale down in steps of at most one half with bilinear interpolation, so that every source pixel contributes to
+     * the result. A single bilinear or bicubic step only samples a few pixels around each target pixel and aliases
+     * badly when shrinking by large factors.
+     */
+    static BufferedImage downscale(BufferedImage image, int width, int height) {
+        BufferedImage current = image;
+        int currentWidth = image.getWidth();
+        int currentHeight = image.getHeight();
+        do {
+            currentWidth = Math.max(width, currentWidth / 2);
+            currentHeight = Math.max(height, currentHeight / 2);
+            BufferedImage step = new BufferedImage(currentWidth, currentHeight, BufferedImage.TYPE_INT_RGB);
+            Graphics2D g2d = step.createGraphics();
+            g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g2d.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            g2d.drawImage(current, 0, 0, currentWidth, currentHeight, null);
+            g2d.dispose();
+            current = step;
+        } while (currentWidth != width || currentHeight != height);
+        return current;
+    }
+
+    private synchronized void render(Template template, List<BufferedImage> cells, File output) throws IOException {
+        if (canvas == null || canvas.getWidth() != template.width || canvas.getHeight() != template.height) {
+            canvas = new BufferedImage(template.width, template.height, BufferedImage.TYPE_INT_RGB);
+        }
+        Graphics2D g2d = canvas.createGraphics();
+        g2d.setColor(BACKGROUND);
+        g2d.fillRect(0, 0, template.width, template.height);
+        for (int i = 0; i < cells.size(); i++) {
+            g2d.drawImage(cells.get(i), template.getCellX(i), template.getCellY(i), null);
+        }
+        g2d.dispose();
+
+        // Written next to the target and moved into place, so that nobody sees a half written file
+        File temporary = new File(output.getParentFile(), output.getName() + ".tmp");
+        Files.deleteIfExists(temporary.toPath());
+        writeJpeg(canvas, temporary);
+        Files.move(temporary.toPath(), output.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void writeJpeg(BufferedImage image, File file) throws IOException {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        try (ImageOutputStream out = ImageIO.createImageOutputStream(file)) {
+            if (out == null) {
+                throw new IOException("Cannot write " + file);
+            }
+            writer.setOutput(out);
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(JPEG_QUALITY);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+    }
+}
@@ -0,0 +1,246 @@
+package streamviewer;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Creates photo thumbnails on a background pool and keeps them in an LRU cache bounded by size in bytes.
+ *
+ * Callers on the EDT only ever get an already decoded thumbnail or null; a null result schedules the decode and
+ * the callback is run once the thumbnail is in the cache. Thumbnails are looked up in the optional
+ * {@link ThumbnailStore} before decoding the photo, and newly created ones are added to it.
+ */
+public class ThumbnailCache {
+    private final int thumbnailWidth;
+    private final int thumbnailHeight;
+    private final long maxBytes;
+    private long currentBytes = 0;
+
+    /**
+     * Thumbnails in access order, the eldest entry is the least recently used one.
+     */
+    private final LinkedHashMap<String, BufferedImage> thumbnails = new LinkedHashMap<>(64, 0.75f, true);
+
+    private final Map<String, Future<?>> pending = new ConcurrentHashMap<>();
+
+    private final ExecutorService decodeExecutor;
+
+    private final ThumbnailStore store;
+
+    /**
+     * @param thumbnailWidth maximum width of a thumbnail
+     * @param thumbnailHeight maximum height of a thumbnail
+     * @param maxBytes maximum pixel memory held by the cache
+     * @param threads number of background decoding threads
+     * @param store persistent thumbnail store, or null to keep thumbnails in memory only
+     */
+    public ThumbnailCache(int thumbnailWidth, int thumbnailHeight, long maxBytes, int threads, ThumbnailStore store) {
+        this.store = store;
+        this.thumbnailWidth = thumbnailWidth;
+        this.thumbnailHeight = thumbnailHeight;
+        this.maxBytes = maxBytes;
+        this.decodeExecutor = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "thumbnailer");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
+    }
+
+    /**
+     * Get the thumbnail of the given photo without blocking.
+     *
+     * @param photo the photo file
+     * @param onLoaded called from a background thread when a missing thumbnail has been created
+     * @return the cached thumbnail, or null if it is not available yet
+     */
+    public BufferedImage get(File photo, Runnable onLoaded) {
+        String key = photo.getAbsolutePath();
+        synchronized (thumbnails) {
+            BufferedImage thumbnail = thumbnails.get(key);
+            if (thumbnail != null) {
+                return thumbnail;
+            }
+        }
+
+        FutureTask<Void> task = new FutureTask<>(() -> {
+            BufferedImage thumbnail = createThumbnail(photo);
+            if (thumbnail != null) {
+                put(key, thumbnail);
+                onLoaded.run();
+            }
+        }, null) {
+            @Override
+            protected void done() {
+                pending.remove(key, this);
+            }
+        };
+        // Register the task before it can run, so that its own removal from the pending map cannot be lost
+        if (pending.putIfAbsent(key, task) == null) {
+            decodeExecutor.execute(task);
+        }
+        return null;
+    }
+
+    /**
+     * Cancel queued thumbnail requests for photos that are no longer needed, e.g. because they were scrolled away.
+     *
+     * @param wanted the photos that should still be decoded
+     */
+    public void retainPending(Collection<File> wanted) {
+        Set<String> wantedKeys = new HashSet<>();
+        for (File file : wanted) {
+            wantedKeys.add(file.getAbsolutePath());
+        }
+        for (Iterator<Map.Entry<String, Future<?>>> it = pending.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<String, Future<?>> entry = it.next();
+            if (!wantedKeys.contains(entry.getKey())) {
+                // Do not interrupt running decodes, ImageIO streams do not like being interrupted
+                entry.getValue().cancel(false);
+                it.remove();
+            }
+        }
+    }
+
+    public void put(String key, BufferedImage thumbnail) {
+        synchronized (thumbnails) {
+            BufferedImage previous = thumbnails.put(key, thumbnail);
+            if (previous != null) {
+                currentBytes -= sizeOf(previous);
+            }
+            currentBytes += sizeOf(thumbnail);
+
+            Iterator<Map.Entry<String, BufferedImage>> it = thumbnails.entrySet().iterator();
+            while (currentBytes > maxBytes && it.hasNext()) {
+                Map.Entry<String, BufferedImage> eldest = it.next();
+                if (eldest.getValue() == thumbnail) {
+                    continue; // Never evict the thumbnail that was just added
+                }
+                currentBytes -= sizeOf(eldest.getValue());
+                it.remove();
+            }
+        }
+    }
+
+    public void shutdown() {
+        decodeExecutor.shutdownNow();
+        if (store != null) {
+            store.close();
+        }
+    }
+
+    public int getThumbnailWidth() {
+        return thumbnailWidth;
+    }
+
+    public int getThumbnailHeight() {
+        return thumbnailHeight;
+    }
+
+    private BufferedImage createThumbnail(File photo) {
+        if (store != null) {
+            BufferedImage stored = store.read(photo);
+            if (stored != null) {
+                return stored;
+            }
+        }
+
+        try {
+            BufferedImage decoded = decodeSubsampled(photo, thumbnailWidth, thumbnailHeight);
+            if (decoded == null) {
+                return null;
+            }
+            BufferedImage thumbnail = scaleToFit(decoded, thumbnailWidth, thumbnailHeight);
+            if (store != null) {
+                store.write(photo, thumbnail);
+            }
+            return thumbnail;
+        } catch (IOException e) {
+            System.err.println("Failed to create thumbnail for " + photo.getName() + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Decode the image reading only every n-th pixel, so that the result is still at least as large as the
+     * requested size. For a 20 MP JPEG and a thumbnail this skips almost all of the pixel work.
+     *
+     * @param file the image file
+     * @param minWidth the minimum width of the decoded image
+     * @param minHeight the minimum height of the decoded image
+     * @return the decoded image, or null if no reader is able to read the file
+     * @throws IOException on read errors
+     */
+    public static BufferedImage decodeSubsampled(File file, int minWidth, int minHeight) throws IOException {
+        try (ImageInputStream input = ImageIO.createImageInputStream(file)) {
+            return decodeSubsampled(input, minWidth, minHeight);
+        }
+    }
+
+    /**
+     * Same as {@link #decodeSubsampled(File, int, int)}, for an image in memory.
+     */
+    public static BufferedImage decodeSubsampled(byte[] encoded, int minWidth, int minHeight) throws IOException {
+        try (ImageInputStream input = ImageIO.createImageInputStream(new ByteArrayInputStream(encoded))) {
+            return decodeSubsampled(input, minWidth, minHeight);
+        }
+    }
+
+    private static BufferedImage decodeSubsampled(ImageInputStream input, int minWidth, int minHeight) throws IOException {
+        if (input == null) {
+            return null;
+        }
+        Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+        if (!readers.hasNext()) {
+            return null;
+        }
+        ImageReader reader = readers.next();
+        try {
+            reader.setInput(input, true, true);
+            int width = reader.getWidth(0);
+            int height = reader.getHeight(0);
+            int subsampling = Math.max(1, Math.min(width / Math.max(1, minWidth), height / Math.max(1, minHeight)));
+
+            ImageReadParam param = reader.getDefaultReadParam();
+            param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+            return reader.read(0, param);
+        } finally {
+            reader.dispose();
+        }
+    }
+
+    static BufferedImage scaleToFit(BufferedImage image, int maxWidth, int maxHeight) {
+        double scale = Math.min(1.0, Math.min((double) maxWidth / image.getWidth(), (double) maxHeight / image.getHeight()));
+        int width = Math.max(1, (int) Math.round(image.getWidth() * scale));
+        int height = Math.max(1, (int) Math.round(image.getHeight() * scale));
+
+        BufferedImage thumbnail = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g2d = thumbnail.createGraphics();
+        g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g2d.drawImage(image, 0, 0, width, height, null);
+        g2d.dispose();
+        return thumbnail;
+    }
+
+    private static long sizeOf(BufferedImage image) {
+        return (long) image.getWidth() * image.getHeight() * 4;
+    }
+}
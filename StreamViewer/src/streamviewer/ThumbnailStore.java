@@ -0,0 +1,302 @@
+package streamviewer;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Persistent thumbnail store, so that the gallery does not have to decode every photo again after a restart.
+ *
+ * The store consists of two files in the given directory:
+ * <ul>
+ *     <li>{@code thumbnails.idx} - compact index: file name, modification time, file size, offset and length of the
+ *     encoded thumbnail</li>
+ *     <li>{@code thumbnails.dat} - the JPEG encoded thumbnails packed one after another</li>
+ * </ul>
+ * Both files are read through memory mapping, apart from data beyond the 2 GB a single mapping can hold. New
+ * thumbnails are appended to the data file, the index is rewritten from time to time and on {@link #close()}. An
+ * entry is stale when the photo's modification time or size differ; stale entries are simply not returned, the
+ * caller creates a new thumbnail which then replaces the old entry. The thumbnails no longer referenced are removed
+ * from the data file when the store is opened, once they take up more space than the referenced ones; at that point
+ * nothing is mapped yet, which Windows requires for replacing the file.
+ */
+public class ThumbnailStore {
+    private static final int INDEX_MAGIC = 0x4C505449; // "LPTI"
+    private static final int INDEX_VERSION = 1;
+    private static final int INDEX_FLUSH_INTERVAL = 25;
+    /**
+     * Unreferenced thumbnails are only removed if they take up at least this many bytes.
+     */
+    private static final long MIN_COMPACTION_WASTE = 1024 * 1024;
+
+    private final Path indexPath;
+    private final Path dataPath;
+
+    private final Map<String, Entry> entries = new HashMap<>();
+    private FileChannel dataChannel;
+    private MappedByteBuffer dataBuffer;
+    private long dataSize = 0;
+    private int unsavedEntries = 0;
+    private boolean opened = false;
+
+    private record Entry(long lastModified, long fileSize, long offset, int length) {
+    }
+
+    /**
+     * @param directory the directory holding the store files, created when needed
+     */
+    public ThumbnailStore(File directory) {
+        this.indexPath = new File(directory, "thumbnails.idx").toPath();
+        this.dataPath = new File(directory, "thumbnails.dat").toPath();
+    }
+
+    /**
+     * Read the stored thumbnail of the given photo.
+     *
+     * @param photo the photo file
+     * @return the thumbnail, or null if none is stored or the stored one is stale
+     */
+    public BufferedImage read(File photo) {
+        byte[] encoded;
+        synchronized (this) {
+            if (!ensureOpen()) {
+                return null;
+            }
+            Entry entry = entries.get(photo.getName());
+            if (entry == null || entry.lastModified() != photo.lastModified() || entry.fileSize() != photo.length()) {
+                return null;
+            }
+            encoded = readBytes(entry);
+        }
+        if (encoded == null) {
+            return null;
+        }
+
+        try {
+            return ImageIO.read(new ByteArrayInputStream(encoded));
+        } catch (IOException e) {
+            System.err.println("Failed to read stored thumbnail of " + photo.getName() + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Append the thumbnail of the given photo to the store, replacing any previous entry.
+     *
+     * @param photo the photo file
+     * @param thumbnail its thumbnail
+     */
+    public void write(File photo, BufferedImage thumbnail) {
+        byte[] encoded;
+        try {
+            encoded = EncodedFrame.encodeJpeg(thumbnail, 0.85f);
+        } catch (IOException e) {
+            System.err.println("Failed to encode thumbnail of " + photo.getName() + ": " + e.getMessage());
+            return;
+        }
+
+        synchronized (this) {
+            if (!ensureOpen()) {
+                return;
+            }
+            try {
+                long offset = dataSize;
+                ByteBuffer buffer = ByteBuffer.wrap(encoded);
+                while (buffer.hasRemaining()) {
+                    dataChannel.write(buffer, offset + buffer.position());
+                }
+                dataSize += encoded.length;
+                entries.put(photo.getName(), new Entry(photo.lastModified(), photo.length(), offset, encoded.length));
+
+                if (++unsavedEntries >= INDEX_FLUSH_INTERVAL) {
+                    writeIndex();
+                }
+            } catch (IOException e) {
+                System.err.println("Failed to store thumbnail of " + photo.getName() + ": " + e.getMessage());
+            }
+        }
+    }
+
+    public synchronized void close() {
+        if (!opened || dataChannel == null) {
+            return;
+        }
+        try {
+            if (unsavedEntries > 0) {
+                writeIndex();
+            }
+            dataChannel.close();
+        } catch (IOException e) {
+            System.err.println("Failed to close thumbnail store: " + e.getMessage());
+        }
+        dataChannel = null;
+        dataBuffer = null;
+    }
+
+    private boolean ensureOpen() {
+        if (opened) {
+            return dataChannel != null;
+        }
+        opened = true;
+
+        try {
+            Files.createDirectories(dataPath.getParent());
+            dataChannel = FileChannel.open(dataPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            dataSize = dataChannel.size();
+            readIndex();
+            compactIfWasteful();
+            return true;
+        } catch (IOException e) {
+            System.err.println("Thumbnail store unavailable, thumbnails will not be persisted: " + e.getMessage());
+            dataChannel = null;
+            return false;
+        }
+    }
+
+    private void readIndex() {
+        if (!Files.exists(indexPath)) {
+            return;
+        }
+        try (FileChannel indexChannel = FileChannel.open(indexPath, StandardOpenOption.READ)) {
+            MappedByteBuffer index = indexChannel.map(FileChannel.MapMode.READ_ONLY, 0, indexChannel.size());
+            if (index.remaining() < 12 || index.getInt() != INDEX_MAGIC || index.getInt() != INDEX_VERSION) {
+                System.err.println("Ignoring thumbnail index with unknown format.");
+                return;
+            }
+            int count = index.getInt();
+            byte[] nameBytes = new byte[256];
+            for (int i = 0; i < count; i++) {
+                int nameLength = index.getShort() & 0xFFFF;
+                if (nameLength > nameBytes.length) {
+                    nameBytes = new byte[nameLength];
+                }
+                index.get(nameBytes, 0, nameLength);
+                String name = new String(nameBytes, 0, nameLength, StandardCharsets.UTF_8);
+                Entry entry = new Entry(index.getLong(), index.getLong(), index.getLong(), index.getInt());
+                // Entries pointing past the end of the data file were written before a crash, drop them
+                if (entry.offset() + entry.length() <= dataSize) {
+                    entries.put(name, entry);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Failed to read thumbnail index, thumbnails will be recreated: " + e.getMessage());
+            entries.clear();
+        }
+    }
+
+    private void writeIndex() throws IOException {
+        // The index only ever references data that is already on disk
+        dataChannel.force(false);
+
+        int size = 12;
+        for (String name : entries.keySet()) {
+            size += 2 + name.getBytes(StandardCharsets.UTF_8).length + 8 + 8 + 8 + 4;
+        }
+        ByteBuffer index = ByteBuffer.allocate(size);
+        index.putInt(INDEX_MAGIC).putInt(INDEX_VERSION).putInt(entries.size());
+        for (Map.Entry<String, Entry> mapEntry : entries.entrySet()) {
+            byte[] name = mapEntry.getKey().getBytes(StandardCharsets.UTF_8);
+            Entry entry = mapEntry.getValue();
+            index.putShort((short) name.length).put(name);
+            index.putLong(entry.lastModified()).putLong(entry.fileSize()).putLong(entry.offset()).putInt(entry.length());
+        }
+        index.flip();
+
+        // Write a temporary file and swap it in, so that a crash never leaves a half written index behind
+        Path temporaryPath = indexPath.resolveSibling(indexPath.getFileName() + ".tmp");
+        try (FileChannel indexChannel = FileChannel.open(temporaryPath, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (index.hasRemaining()) {
+                indexChannel.write(index);
+            }
+        }
+        Files.move(temporaryPath, indexPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        unsavedEntries = 0;
+    }
+
+    /**
+     * Remove the thumbnails no longer referenced by the index from the data file, if they take up more space than
+     * the referenced ones. Copies the referenced ones into a new data file that replaces the old one.
+     */
+    private void compactIfWasteful() throws IOException {
+        long referenced = 0;
+        for (Entry entry : entries.values()) {
+            referenced += entry.length();
+        }
+        long waste = dataSize - referenced;
+        if (waste < MIN_COMPACTION_WASTE || waste < referenced) {
+            return;
+        }
+
+        Path temporaryPath = dataPath.resolveSibling(dataPath.getFileName() + ".tmp");
+        Map<String, Entry> compacted = new HashMap<>();
+        try (FileChannel compactedChannel = FileChannel.open(temporaryPath, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            long offset = 0;
+            for (Map.Entry<String, Entry> mapEntry : entries.entrySet()) {
+                Entry entry = mapEntry.getValue();
+                ByteBuffer encoded = ByteBuffer.allocate(entry.length());
+                readFully(entry.offset(), encoded);
+                encoded.flip();
+                while (encoded.hasRemaining()) {
+                    compactedChannel.write(encoded, offset + encoded.position());
+                }
+                compacted.put(mapEntry.getKey(), new Entry(entry.lastModified(), entry.fileSize(), offset, entry.length()));
+                offset += entry.length();
+            }
+            compactedChannel.force(false);
+        }
+
+        // Without an index a crash from here on only costs the thumbnails, but never pairs the old offsets with
+        // the new data file
+        Files.deleteIfExists(indexPath);
+        dataChannel.close();
+        Files.move(temporaryPath, dataPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        dataChannel = FileChannel.open(dataPath, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        System.out.println("Compacted thumbnail store from " + dataSize + " to " + dataChannel.size() + " bytes");
+        dataSize = dataChannel.size();
+        entries.clear();
+        entries.putAll(compacted);
+        writeIndex();
+    }
+
+    private byte[] readBytes(Entry entry) {
+        try {
+            byte[] encoded = new byte[entry.length()];
+            if (entry.offset() + entry.length() > Integer.MAX_VALUE) {
+                // Beyond what a single mapping can hold
+                readFully(entry.offset(), ByteBuffer.wrap(encoded));
+                return encoded;
+            }
+            // Map the data file again only when it has grown past the mapped region
+            if (dataBuffer == null || dataBuffer.capacity() < entry.offset() + entry.length()) {
+                dataBuffer = dataChannel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(dataSize, Integer.MAX_VALUE));
+            }
+            dataBuffer.get((int) entry.offset(), encoded);
+            return encoded;
+        } catch (IOException | IndexOutOfBoundsException | IllegalArgumentException e) {
+            System.err.println("Failed to read stored thumbnail: " + e.getMessage());
+            return null;
+        }
+    }
+
+    private void readFully(long offset, ByteBuffer target) throws IOException {
+        while (target.hasRemaining()) {
+            if (dataChannel.read(target, offset + target.position()) < 0) {
+                throw new IOException("Thumbnail data file ends early");
+            }
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package streamviewer;
+
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * The pixel kernels on the widest vectors the CPU supports, with the same results as {@link ScalarPixelKernels}.
+ *
+ * Only loaded by {@link PixelKernels} if the jdk.incubator.vector module is available. The pixels left over at the
+ * end of a row are handled by the scalar kernels.
+ */
+class VectorPixelKernels extends ScalarPixelKernels {
+    private static final VectorSpecies<Integer> INTS = IntVector.SPECIES_PREFERRED;
+
+    @Override
+    public long sumChannels(int[] pixels, int offset, int length) {
+        // Each lane sums at most length / lanes values of 255, far below the int range for a row
+        IntVector red = IntVector.zero(INTS);
+        IntVector green = IntVector.zero(INTS);
+        IntVector blue = IntVector.zero(INTS);
+        int i = offset;
+        for (; i + INTS.length() <= offset + length; i += INTS.length()) {
+            IntVector pixel = IntVector.fromArray(INTS, pixels, i);
+            red = red.add(pixel.lanewise(VectorOperators.LSHR, 16).and(0xFF));
+            green = green.add(pixel.lanewise(VectorOperators.LSHR, 8).and(0xFF));
+            blue = blue.add(pixel.and(0xFF));
+        }
+        long rest = super.sumChannels(pixels, i, offset + length - i);
+        return PixelKernels.packSums(red.reduceLanes(VectorOperators.ADD) + ((rest >>> 42) & 0x1FFFFF),
+                green.reduceLanes(VectorOperators.ADD) + ((rest >>> 21) & 0x1FFFFF),
+                blue.reduceLanes(VectorOperators.ADD) + (rest & 0x1FFFFF));
+    }
+
+    @Override
+    public void blurHorizontal(int[] source, int[] target, int width, int height) {
+        if (width < INTS.length() + 2) {
+            super.blurHorizontal(source, target, width, height);
+            return;
+        }
+        for (int y = 0; y < height; y++) {
+            int row = y * width;
+            target[row] = PixelKernels.average4(source[row], source[row], source[row], source[row + 1]);
+            int x = 1;
+            for (; x + INTS.length() < width; x += INTS.length()) {
+                IntVector center = IntVector.fromArray(INTS, source, row + x);
+                average4(IntVector.fromArray(INTS, source, row + x - 1), center, center,
+                        IntVector.fromArray(INTS, source, row + x + 1))
+                        .intoArray(target, row + x);
+            }
+            for (; x < width; x++) {
+                int center = source[row + x];
+                int right = x < width - 1 ? source[row + x + 1] : center;
+                target[row + x] = PixelKernels.average4(source[row + x - 1], center, center, right);
+            }
+        }
+    }
+
+    @Override
+    public void blurVertical(int[] source, int[] target, int width, int height) {
+        for (int y = 0; y < height; y++) {
+            int row = y * width;
+            int above = y > 0 ? row - width : row;
+            int below = y < height - 1 ? row + width : row;
+            int x = 0;
+            for (; x + INTS.length() <= width; x += INTS.length()) {
+                IntVector center = IntVector.fromArray(INTS, source, row + x);
+                average4(IntVector.fromArray(INTS, source, above + x), center, center,
+                        IntVector.fromArray(INTS, source, below + x))
+                        .intoArray(target, row + x);
+            }
+            for (; x < width; x++) {
+                int center = source[row + x];
+                target[row + x] = PixelKernels.average4(source[above + x], center, center, source[below + x]);
+            }
+        }
+    }
+
+    /**
+     * Same as {@link PixelKernels#average4(int, int, int, int)}, lane by lane.
+     */
+    private static IntVector average4(IntVector a, IntVector b, IntVector c, IntVector d) {
+        IntVector redBlue = a.and(PixelKernels.CHANNEL_MASK).add(b.and(PixelKernels.CHANNEL_MASK))
+                .add(c.and(PixelKernels.CHANNEL_MASK)).add(d.and(PixelKernels.CHANNEL_MASK)).add(0x00020002);
+        IntVector alphaGreen = a.lanewise(VectorOperators.LSHR, 8).and(PixelKernels.CHANNEL_MASK)
+                .add(b.lanewise(VectorOperators.LSHR, 8).and(PixelKernels.CHANNEL_MASK))
+                .add(c.lanewise(VectorOperators.LSHR, 8).and(PixelKernels.CHANNEL_MASK))
+                .add(d.lanewise(VectorOperators.LSHR, 8).and(PixelKernels.CHANNEL_MASK))
+                .add(0x00020002);
+        return redBlue.lanewise(VectorOperators.LSHR, 2).and(PixelKernels.CHANNEL_MASK)
+                .or(alphaGreen.lanewise(VectorOperators.LSHR, 2).and(PixelKernels.CHANNEL_MASK)
+                        .lanewise(VectorOperators.LSHL, 8));
+    }
+}
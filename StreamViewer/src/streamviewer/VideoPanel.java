@@ -3,18 +3,26 @@ package streamviewer;
 import javax.swing.*;
 import java.awt.*;
 import java.awt.event.*;
+import java.awt.geom.Rectangle2D;
 import java.awt.image.BufferedImage;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Consumer;
 import javax.imageio.ImageIO;
 
 public class VideoPanel extends JPanel implements CameraStateUpdateListener {
-    private ExecutorService executorService;
+    /**
+     * How long the photo just taken is shown.
+     */
+    private static final int REVIEW_MILLIS = 2000;
+    private static final long PHOTO_POLL_MS = 200;
 
     private int currentBackgroundMode = 0;
     private final BackgroundEffect[] backgroundEffects;
+    private final RenderQualityGovernor renderQuality = new RenderQualityGovernor();
     private Color backgroundColor = Color.WHITE;
 
     private final Options options;
@@ -28,6 +36,8 @@ public class VideoPanel extends JPanel implements CameraStateUpdateListener {
     private Dimension lastWindowSize;
     private BufferedImage smileyImage;
     private boolean showingSmiley = false;
+    private BufferedImage reviewImage;
+    private boolean reviewIsLiveFrame = false;
     private float countdownAlpha = 1.0f;
     private Timer smileyTimer;
 
@@ -44,18 +54,26 @@ public class VideoPanel extends JPanel implements CameraStateUpdateListener {
 
     private LedController ledController;
 
+    private final GalleryPanel galleryPanel;
+
     private final Runnable cameraModeSwitch;
+    private Runnable photoTakenListener;
+    private Consumer<Boolean> countdownListener;
+    private Runnable recordingToggle;
+    private Runnable stripAction;
+    private volatile FaceDetector faceDetector;
+    private boolean autoCountdown = false;
+    private volatile IdleMonitor idleMonitor;
+    private volatile boolean idle = false;
+    private boolean recording = false;
 
     public VideoPanel(Options options, Runnable cameraModeSwitch) {
-        this.executorService = Executors.newSingleThreadExecutor();
-
         this.cameraModeSwitch = cameraModeSwitch;
         this.cameraStateMonitorMode = options.getCameraStateMonitorMode();
 
         this.options = options;
 
         setLayout(null); // Use null layout for absolute positioning
-        this.executorService = Executors.newSingleThreadExecutor();
 
         // Initialize background effects
         backgroundEffects = new BackgroundEffect[]{
@@ -69,7 +87,7 @@ public class VideoPanel extends JPanel implements CameraStateUpdateListener {
         photoButton.setBackground(new Color(255, 69, 58)); // A nicer red color
         photoButton.setForeground(Color.WHITE);
         photoButton.setFont(new Font("Arial", Font.BOLD, 30));
-        photoButton.addActionListener(_ -> {
+        photoButton.addActionListener(e -> {
             startCountdown();
             SwingUtilities.invokeLater(this::requestFocusInWindow);
         });
@@ -96,6 +114,11 @@ public class VideoPanel extends JPanel implements CameraStateUpdateListener {
         infoPanel.setVisible(false);
         add(infoPanel);
 
+        // Initialize gallery, shown on top of everything else
+        galleryPanel = new GalleryPanel(new File(options.getPhotoDirectory()), this::closeGallery);
+        galleryPanel.setVisible(false);
+        add(galleryPanel, 0);
+
         // Initialize LedController
         initializeLedController();
 
@@ -125,6 +148,12 @@ public class VideoPanel extends JPanel implements CameraStateUpdateListener {
                     }
                 } else if (e.getKeyCode() == KeyEvent.VK_K) {
                     cameraModeSwitch.run();
+                } else if (e.getKeyCode() == KeyEvent.VK_G) {
+                    openGallery();
+                } else if (e.getKeyCode() == KeyEvent.VK_R && recordingToggle != null) {
+                    recordingToggle.run();
+                } else if (e.getKeyCode() == KeyEvent.VK_S && stripAction != null) {
+                    stripAction.run();
                 }
             }
         });
@@ -140,39 +169,82 @@ public class VideoPanel extends JPanel implements CameraStateUpdateListener {
             }
         });
 
-        // Load the smiley image from the resources folder
-        try (InputStream stream = getClass().getResourceAsStream("/partySmiley.png")) {
+        updateComponentPositions();
+    }
+
+    /**
+     * Load the smiley image from the resources folder. Decoding it takes a while on the first use of ImageIO, so this
+     * is done in the background at startup.
+     *
+     * @return the image, or null if it could not be loaded
+     */
+    public static BufferedImage loadSmileyImage() {
+        try (InputStream stream = VideoPanel.class.getResourceAsStream("/partySmiley.png")) {
             if (stream == null) {
                 System.err.println("Failed to load partySmiley.png. Make sure it exists in the resources folder.");
-            } else {
-                smileyImage = ImageIO.read(stream);
+                return null;
             }
+            return ImageIO.read(stream);
         } catch (IOException e) {
             e.printStackTrace();
             System.err.println("Failed to load partySmiley.png.");
+            return null;
         }
+    }
 
-        updateComponentPositions();
+    public void setSmileyImage(BufferedImage smileyImage) {
+        this.smileyImage = smileyImage;
     }
 
     @Override
     protected void paintComponent(Graphics g) {
+        long startNanos = System.nanoTime();
         super.paintComponent(g);
         Graphics2D g2d = (Graphics2D) g;
 
-        backgroundEffects[currentBackgroundMode].render(g2d);
+        if (galleryPanel.isVisible()) {
+            return; // The gallery covers the whole panel
+        }
+
+        // The effects are paused while idle, the plain background is much cheaper to paint
+        BackgroundEffect backgroundEffect = backgroundEffects[idle ? 0 : currentBackgroundMode];
+        backgroundEffect.setReducedQuality(renderQuality.isEffectQualityReduced());
+        backgroundEffect.setImage(currentImage);
+        backgroundEffect.render(g2d);
 
-        if (currentImage != null) {
+        if (currentImage != null && !(showingSmiley && reviewImage != null)) {
             drawFittedImage(g2d, currentImage, true); // Draw video stream with 16:9 aspect ratio
+            if (faceDetector != null && !showingSmiley) {
+                drawFramingGuide(g2d, getFittedBounds(currentImage, true));
+            }
         }
 
-        if (showingSmiley && smileyImage != null) {
+        if (showingSmiley && reviewImage != null) {
+            drawReviewImage(g2d);
+        } else if (showingSmiley && smileyImage != null) {
             drawFittedImage(g2d, smileyImage, false); // Draw smiley without forcing 16:9 aspect ratio
         }
 
+        if (recording) {
+            drawRecordingIndicator(g2d);
+        }
+
         if (countdownSeconds > 0 && countdownSeconds <= 3) {
             drawCountdown(g2d);
         }
+
+        // Measured for the frames only, the countdown and smiley are short and must not lower the quality on their own
+        if (currentImage != null && !showingSmiley && countdownSeconds == 0) {
+            renderQuality.onPaint(System.nanoTime() - startNanos);
+        }
+    }
+
+    private void drawRecordingIndicator(Graphics2D g2d) {
+        g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        g2d.setColor(Color.RED);
+        g2d.fillOval(getWidth() - 90, 20, 20, 20);
+        g2d.setFont(new Font("Arial", Font.BOLD, 20));
+        g2d.drawString("REC", getWidth() - 64, 38);
     }
 
     private void initializeLedController() {
@@ -180,6 +252,10 @@ public class VideoPanel extends JPanel implements CameraStateUpdateListener {
     }
 
     private void drawFittedImage(Graphics2D g2d, BufferedImage image, boolean force16by9) {
+        renderQuality.drawImage(g2d, image, getFittedBounds(image, force16by9));
+    }
+
+    private Rectangle getFittedBounds(BufferedImage image, boolean force16by9) {
         int panelWidth = getWidth();
         int panelHeight = getHeight();
         int imageWidth = image.getWidth();
@@ -201,8 +277,50 @@ public class VideoPanel extends JPanel implements CameraStateUpdateListener {
 
         int x = (panelWidth - scaledWidth) / 2;
         int y = (panelHeight - scaledHeight) / 2;
+        return new Rectangle(x, y, scaledWidth, scaledHeight);
+    }
 
-        g2d.drawImage(image, x, y, scaledWidth, scaledHeight, null);
+    /**
+     * Frame the detected faces, and show the area that stays on the prints if a face is outside of it.
+     */
+    private void drawFramingGuide(Graphics2D g2d, Rectangle image) {
+        List<Rectangle2D> faces = faceDetector.getFaces();
+        if (faces.isEmpty()) {
+            return;
+        }
+        double safeMargin = 0.1;
+        boolean outside = false;
+        g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        g2d.setStroke(new BasicStroke(3));
+        g2d.setColor(new Color(255, 255, 255, 160));
+        for (Rectangle2D face : faces) {
+            int x = image.x + (int) (face.getX() * image.width);
+            int y = image.y + (int) (face.getY() * image.height);
+            int size = (int) (face.getWidth() * image.width);
+            g2d.drawRoundRect(x, y, size, (int) (face.getHeight() * image.height), size / 4, size / 4);
+            outside |= face.getMinX() < safeMargin || face.getMaxX() > 1 - safeMargin
+                    || face.getMinY() < safeMargin || face.getMaxY() > 1 - safeMargin;
+        }
+        if (outside) {
+            g2d.setColor(new Color(255, 165, 0, 200));
+            g2d.setStroke(new BasicStroke(4, BasicStroke.CAP_BUTT, BasicStroke.JOIN_MITER, 10, new float[]{20, 15}, 0));
+            g2d.drawRect(image.x + (int) (image.width * safeMargin), image.y + (int) (image.height * safeMargin),
+                    (int) (image.width * (1 - 2 * safeMargin)), (int) (image.height * (1 - 2 * safeMargin)));
+        }
+    }
+
+    /**
+     * Draw the instant review image with the smiley as a small badge in the top left corner.
+     */
+    private void drawReviewImage(Graphics2D g2d) {
+        // Live view frames are shown like the stream, full photos keep their own aspect ratio
+        drawFittedImage(g2d, reviewImage, reviewIsLiveFrame);
+
+        if (smileyImage != null) {
+            int badgeHeight = getHeight() / 4;
+            int badgeWidth = badgeHeight * smileyImage.getWidth() / Math.max(1, smileyImage.getHeight());
+            g2d.drawImage(smileyImage, 20, 20, badgeWidth, badgeHeight, null);
+        }
     }
 
     private void cycleBackgroundMode() {
@@ -266,13 +384,30 @@ public class VideoPanel extends JPanel implements CameraStateUpdateListener {
         int infoPanelHeight = 80;
         infoPanel.setBounds(10, height - infoPanelHeight - 10, infoPanelWidth, infoPanelHeight);
 
+        galleryPanel.setBounds(0, 0, width, height);
+
         // Ensure the panel is repainted after updating positions
         revalidate();
         repaint();
     }
 
     public void displayNewImage(BufferedImage image) {
+        if (image != null) {
+            Metrics.markStartupPhase("firstFrame");
+        }
         this.currentImage = image;
+        LedController leds = ledController;
+        if (leds != null && image != null) {
+            leds.offerFrame(image);
+        }
+        FaceDetector detector = faceDetector;
+        if (detector != null && image != null) {
+            detector.offerFrame(image);
+        }
+        IdleMonitor monitor = idleMonitor;
+        if (monitor != null && image != null) {
+            monitor.offerFrame(image);
+        }
         SwingUtilities.invokeLater(this::repaint);
     }
 
@@ -296,6 +431,9 @@ public class VideoPanel extends JPanel implements CameraStateUpdateListener {
         countdownSeconds = 3;
         showingSmiley = false;
         countdownAlpha = 1.0f;
+        if (countdownListener != null) {
+            countdownListener.accept(true);
+        }
 
         // Start with mode 2 for the countdown
         ledController.sendCommand("mode 2" + ";");
@@ -337,15 +475,23 @@ public class VideoPanel extends JPanel implements CameraStateUpdateListener {
     }
 
     private void showSmileyImage() {
+        // The stream viewers hand over a fresh image for every frame, so holding on to the
+        // latest one freezes the frame closest to the shutter without copying or decoding it again
+        reviewImage = currentImage;
+        reviewIsLiveFrame = true;
         showingSmiley = true;
+        if (countdownListener != null) {
+            countdownListener.accept(false);
+        }
         repaint();
         takePhoto();
 
         if (smileyTimer != null && smileyTimer.isRunning()) {
             smileyTimer.stop();
         }
-        smileyTimer = new Timer(2000, e -> {
+        smileyTimer = new Timer(REVIEW_MILLIS, e -> {
             showingSmiley = false;
+            reviewImage = null;
             // Return to the previous LED mode after taking the photo
             ledController.sendCommand("mode " + ledController.getCurrentMode() + ";");
 
@@ -357,19 +503,178 @@ public class VideoPanel extends JPanel implements CameraStateUpdateListener {
         smileyTimer.start();
     }
 
+    /**
+     * @param photoTakenListener called on the EDT after each capture request has finished, or null
+     */
+    public void setPhotoTakenListener(Runnable photoTakenListener) {
+        this.photoTakenListener = photoTakenListener;
+    }
+
+    /**
+     * @param countdownListener called on the EDT with true when a countdown starts and with false when the photo is
+     * taken, or null
+     */
+    public void setCountdownListener(Consumer<Boolean> countdownListener) {
+        this.countdownListener = countdownListener;
+    }
+
+    /**
+     * @param recordingToggle called on the EDT when the operator starts or stops recording a clip (R key), or null
+     */
+    public void setRecordingToggle(Runnable recordingToggle) {
+        this.recordingToggle = recordingToggle;
+    }
+
+    /**
+     * @param stripAction called on the EDT when the operator asks for a photo strip of the latest photos (S key), or
+     * null
+     */
+    public void setStripAction(Runnable stripAction) {
+        this.stripAction = stripAction;
+    }
+
+    /**
+     * @param faceDetector detector for the framing guide, or null
+     * @param autoCountdown whether to start the countdown once the faces in front of the camera hold still
+     */
+    public void setFaceDetector(FaceDetector faceDetector, boolean autoCountdown) {
+        this.faceDetector = faceDetector;
+        this.autoCountdown = autoCountdown;
+        if (faceDetector != null) {
+            faceDetector.setStableListener(() -> SwingUtilities.invokeLater(this::startAutoCountdown));
+        }
+    }
+
+    /**
+     * @param idleMonitor receives the displayed frames to detect motion, or null
+     */
+    public void setIdleMonitor(IdleMonitor idleMonitor) {
+        this.idleMonitor = idleMonitor;
+    }
+
+    /**
+     * Pause the background effects and dim the LED ring while the photobox is idle. May be called on any thread.
+     *
+     * @param idle whether the photobox is idle
+     */
+    public void setIdle(boolean idle) {
+        this.idle = idle;
+        LedController leds = ledController;
+        if (leds != null) {
+            leds.setDimmed(idle);
+        }
+        SwingUtilities.invokeLater(this::repaint);
+    }
+
+    private void startAutoCountdown() {
+        if (autoCountdown && !showingSmiley && !galleryPanel.isVisible() && photoButton.isEnabled()) {
+            startCountdown();
+        }
+    }
+
+    /**
+     * @param recording whether a clip is being recorded, shown as an indicator
+     */
+    public void setRecording(boolean recording) {
+        this.recording = recording;
+        repaint();
+    }
+
+    /**
+     * Replace the instant review frame with the real photo once a higher resolution version of it is available.
+     * Photos arriving after the review window has closed are ignored.
+     *
+     * @param photo the captured photo
+     */
+    public void showCapturedPhoto(BufferedImage photo) {
+        SwingUtilities.invokeLater(() -> {
+            if (!showingSmiley || photo == null) {
+                return;
+            }
+            if (reviewImage == null || (long) photo.getWidth() * photo.getHeight() > (long) reviewImage.getWidth() * reviewImage.getHeight()) {
+                reviewImage = photo;
+                reviewIsLiveFrame = false;
+                repaint();
+            }
+        });
+    }
+
     private void takePhoto() {
         repaint();
         photoButton.setEnabled(false); // Disable the button while taking a photo
-        executorService.submit(() -> {
-            photoTaker.takePhoto().thenAccept(result -> SwingUtilities.invokeLater(() -> {
-                photoButton.setEnabled(true); // Re-enable the button
-                if (result.isSuccess()) {
-                    System.out.println("Photo taken successfully!");
-                } else {
-                    showErrorDialog(result.getErrorMessage());
+        long captureMillis = System.currentTimeMillis();
+        photoTaker.takePhoto().thenAccept(result -> SwingUtilities.invokeLater(() -> {
+            photoButton.setEnabled(true); // Re-enable the button
+            if (photoTakenListener != null) {
+                photoTakenListener.run();
+            }
+            if (result.isSuccess()) {
+                System.out.println("Photo taken successfully!");
+                fetchCapturedPhoto(captureMillis);
+            } else {
+                showErrorDialog(result.getErrorMessage());
+            }
+        }));
+    }
+
+    /**
+     * Look for the captured photo in the photo directory while the review frame is shown, for booths that copy the
+     * photos from the camera into it, and show it instead of the live frame once its file is completely written.
+     * The camera itself offers no way to download the photo.
+     */
+    private void fetchCapturedPhoto(long captureMillis) {
+        File photoDirectory = new File(options.getPhotoDirectory());
+        int width = Math.max(1, getWidth());
+        int height = Math.max(1, getHeight());
+        // File times may only have a resolution of seconds
+        long since = captureMillis / 1000 * 1000;
+        long deadline = captureMillis + REVIEW_MILLIS;
+        try {
+            IoRuntime.camera().execute(() -> {
+                File candidate = null;
+                long candidateLength = -1;
+                while (System.currentTimeMillis() < deadline) {
+                    File newest = findPhotoSince(photoDirectory, since);
+                    // Unchanged since the last look, so it is no longer being written
+                    if (newest != null && newest.equals(candidate) && newest.length() == candidateLength) {
+                        try {
+                            showCapturedPhoto(ThumbnailCache.decodeSubsampled(newest, width, height));
+                        } catch (IOException e) {
+                            System.err.println("Failed to read " + newest + ": " + e.getMessage());
+                        }
+                        return;
+                    }
+                    candidate = newest;
+                    candidateLength = newest != null ? newest.length() : -1;
+                    try {
+                        Thread.sleep(PHOTO_POLL_MS);
+                    } catch (InterruptedException e) {
+                        return; // The camera mode changed
+                    }
                 }
-            }));
+            });
+        } catch (RejectedExecutionException e) {
+            // The camera mode changed, the live frame stays
+        }
+    }
+
+    /**
+     * @return the newest JPEG in the directory modified at or after the given time, or null if there is none
+     */
+    private static File findPhotoSince(File directory, long sinceMillis) {
+        File[] files = directory.listFiles((dir, name) -> {
+            String lowerCase = name.toLowerCase();
+            return lowerCase.endsWith(".jpg") || lowerCase.endsWith(".jpeg");
         });
+        File newest = null;
+        if (files != null) {
+            for (File file : files) {
+                if (file.lastModified() >= sinceMillis && (newest == null || file.lastModified() > newest.lastModified())) {
+                    newest = file;
+                }
+            }
+        }
+        return newest;
     }
 
     private void showErrorDialog(String errorMessage) {
@@ -377,7 +682,7 @@ public class VideoPanel extends JPanel implements CameraStateUpdateListener {
             JOptionPane pane = new JOptionPane(errorMessage, JOptionPane.ERROR_MESSAGE);
             JDialog dialog = pane.createDialog(this, "Error Taking Photo");
 
-            Timer timer = new Timer(5000, (_) -> dialog.dispose());
+            Timer timer = new Timer(5000, e -> dialog.dispose());
             timer.setRepeats(false);
             timer.start();
 
@@ -430,6 +735,18 @@ public class VideoPanel extends JPanel implements CameraStateUpdateListener {
         updateInfoPanelVisibility();
     }
 
+    private void openGallery() {
+        galleryPanel.refresh();
+        galleryPanel.setVisible(true);
+        galleryPanel.requestFocusInWindow();
+    }
+
+    private void closeGallery() {
+        galleryPanel.setVisible(false);
+        requestFocusInWindow();
+        repaint();
+    }
+
     private void toggleInfoPanel() {
         showInfoPanel = !showInfoPanel;
         updateInfoPanelVisibility();
@@ -442,6 +759,12 @@ public class VideoPanel extends JPanel implements CameraStateUpdateListener {
 
 
     // Fullscreen
+    public void enterFullscreen() {
+        if (!isFullScreen) {
+            toggleFullscreen();
+        }
+    }
+
     private void toggleFullscreen() {
         Window window = SwingUtilities.getWindowAncestor(this);
         if (window instanceof JFrame frame) {
@@ -514,9 +837,7 @@ public class VideoPanel extends JPanel implements CameraStateUpdateListener {
                 ledController.close();
                 ledController = null;
             }
-            if (executorService != null && !executorService.isShutdown()) {
-                executorService.shutdownNow();
-            }
+            galleryPanel.shutdown();
         }
     }
 }
\ No newline at end of file
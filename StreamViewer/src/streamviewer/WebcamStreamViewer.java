@@ -2,7 +2,6 @@ package streamviewer;
 
 import org.opencv.core.Core;
 import org.opencv.core.Mat;
-import org.opencv.imgproc.Imgproc;
 import org.opencv.videoio.VideoCapture;
 import org.opencv.videoio.Videoio;
 
@@ -14,10 +13,26 @@ public class WebcamStreamViewer implements StreamViewerInterface {
 
     private VideoCapture capture;
     private final AtomicBoolean running;
-    private Consumer<BufferedImage> imageConsumer;
+    private volatile Consumer<BufferedImage> imageConsumer;
+    private volatile Consumer<EncodedFrame> encodedFrameConsumer;
     private final int deviceIndex;
+    private volatile boolean idle = false;
+
+    private static boolean openCvLoaded = false;
+
+    /**
+     * Load the OpenCV native library. It is only needed by the webcam viewer and takes a noticeable part of the
+     * startup time, so it is loaded when the first webcam viewer is created instead of at application start.
+     */
+    public static synchronized void loadOpenCv() {
+        if (!openCvLoaded) {
+            System.load(System.getProperty("user.dir") + "/lib/opencv_java4100.dll");  // For Windows
+            openCvLoaded = true;
+        }
+    }
 
     public WebcamStreamViewer(int deviceIndex) {
+        loadOpenCv();
         this.deviceIndex = deviceIndex;
         this.running = new AtomicBoolean(false);
     }
@@ -27,9 +42,26 @@ public class WebcamStreamViewer implements StreamViewerInterface {
         this.imageConsumer = imageConsumer;
     }
 
+    /**
+     * Webcam frames are only encoded if a consumer asks for their JPEG bytes.
+     */
+    @Override
+    public void setEncodedFrameConsumer(Consumer<EncodedFrame> encodedFrameConsumer) {
+        this.encodedFrameConsumer = encodedFrameConsumer;
+    }
+
+    /**
+     * While idle, fewer frames are read from the webcam, also for the encoded frame consumer.
+     */
+    @Override
+    public void setIdle(boolean idle) {
+        this.idle = idle;
+    }
+
     @Override
     public void run() {
         running.set(true);
+        long sequenceNumber = 0;
         Mat frame = new Mat();
 
         try {
@@ -44,16 +76,25 @@ public class WebcamStreamViewer implements StreamViewerInterface {
 
             while (running.get() && capture.isOpened()) {
                 if (capture.read(frame)) {
-                    BufferedImage image = matToBufferedImage(frame);
-                    if (imageConsumer != null) {
-                        imageConsumer.accept(image);
+                    long captureNanos = System.nanoTime();
+                    Consumer<BufferedImage> imageConsumer = this.imageConsumer;
+                    Consumer<EncodedFrame> encodedFrameConsumer = this.encodedFrameConsumer;
+                    if (imageConsumer != null || encodedFrameConsumer != null) {
+                        BufferedImage image = matToBufferedImage(frame);
+                        if (imageConsumer != null) {
+                            imageConsumer.accept(image);
+                        }
+                        if (encodedFrameConsumer != null) {
+                            encodedFrameConsumer.accept(EncodedFrame.ofImage(sequenceNumber, captureNanos, image));
+                        }
                     }
+                    sequenceNumber++;
                 } else {
                     throw new RuntimeException("Failed to read frame from camera. The webcam may have been disconnected.");
                 }
 
                 try {
-                    Thread.sleep(33); // Approximately 30 fps
+                    Thread.sleep(idle ? 1000 / IDLE_FRAMES_PER_SECOND : 33); // Approximately 30 fps
                 } catch (InterruptedException e) {
                     Thread.currentThread().interrupt();
                     break;
@@ -73,23 +114,10 @@ public class WebcamStreamViewer implements StreamViewerInterface {
     }
 
     private BufferedImage matToBufferedImage(Mat mat) {
-        Mat convertedMat = new Mat();
-        Imgproc.cvtColor(mat, convertedMat, Imgproc.COLOR_BGR2RGB);
-        int width = convertedMat.width();
-        int height = convertedMat.height();
-        int channels = convertedMat.channels();
-        byte[] sourcePixels = new byte[width * height * channels];
-        convertedMat.get(0, 0, sourcePixels);
-
-        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+        // OpenCV frames are BGR, the same byte order as TYPE_3BYTE_BGR, so they are copied without any conversion
+        BufferedImage image = new BufferedImage(mat.width(), mat.height(), BufferedImage.TYPE_3BYTE_BGR);
         final byte[] targetPixels = ((java.awt.image.DataBufferByte) image.getRaster().getDataBuffer()).getData();
-
-        for (int i = 0; i < sourcePixels.length; i += 3) {
-            targetPixels[i] = sourcePixels[i + 2];     // Blue channel
-            targetPixels[i + 1] = sourcePixels[i + 1]; // Green channel
-            targetPixels[i + 2] = sourcePixels[i];     // Red channel
-        }
-
+        mat.get(0, 0, targetPixels);
         return image;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,200 @@
+package streamviewer;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Minimal, reusable pull parser for the small XML documents returned by the camera's cam.cgi.
+ *
+ * One instance is meant to be reset and reused for every response, so polling the camera does not allocate a new
+ * parser, DOM or intermediate strings for each request. Only elements and text are reported; the XML declaration,
+ * comments, processing instructions and attributes are skipped. The input is treated as ASCII/UTF-8 without
+ * multi-byte characters in element names, which holds for all camera responses.
+ */
+public class XmlPullParser {
+    public static final int START_ELEMENT = 1;
+    public static final int END_ELEMENT = 2;
+    public static final int TEXT = 3;
+    public static final int END_DOCUMENT = 4;
+
+    private byte[] data;
+    private int length;
+    private int position;
+
+    private final StringBuilder name = new StringBuilder(32);
+    private final StringBuilder text = new StringBuilder(64);
+    private boolean pendingEndElement = false;
+
+    /**
+     * Start parsing a new document.
+     *
+     * @param data buffer holding the document
+     * @param length number of valid bytes in the buffer
+     */
+    public void reset(byte[] data, int length) {
+        this.data = data;
+        this.length = length;
+        this.position = 0;
+        this.pendingEndElement = false;
+        this.name.setLength(0);
+        this.text.setLength(0);
+    }
+
+    /**
+     * Advance to the next event.
+     *
+     * @return one of {@link #START_ELEMENT}, {@link #END_ELEMENT}, {@link #TEXT} or {@link #END_DOCUMENT}
+     * @throws IOException if the document is malformed
+     */
+    public int next() throws IOException {
+        if (pendingEndElement) {
+            // The end of a self-closing element, the name is still the one of its start
+            pendingEndElement = false;
+            return END_ELEMENT;
+        }
+
+        while (position < length) {
+            if (data[position] != '<') {
+                if (readText()) {
+                    return TEXT;
+                }
+                continue;
+            }
+
+            position++;
+            if (position >= length) {
+                break;
+            }
+            byte first = data[position];
+            if (first == '?') {
+                skipPast("?>");
+            } else if (first == '!') {
+                skipPast(">");
+            } else if (first == '/') {
+                position++;
+                readName();
+                skipPast(">");
+                return END_ELEMENT;
+            } else {
+                readName();
+                // Skip attributes, but notice self-closing elements
+                while (position < length && data[position] != '>') {
+                    position++;
+                }
+                if (position >= length) {
+                    throw new IOException("Unterminated element <" + name + ">");
+                }
+                pendingEndElement = data[position - 1] == '/';
+                position++;
+                return START_ELEMENT;
+            }
+        }
+        return END_DOCUMENT;
+    }
+
+    /**
+     * @return name of the current element; valid after {@link #START_ELEMENT} and {@link #END_ELEMENT}
+     */
+    public CharSequence getName() {
+        return name;
+    }
+
+    /**
+     * @return whether the current element has the given name
+     */
+    public boolean isName(String expected) {
+        return expected.contentEquals(name);
+    }
+
+    /**
+     * @return the current text with entities resolved and surrounding whitespace removed; valid after {@link #TEXT}
+     */
+    public String getText() {
+        return text.toString();
+    }
+
+    private void readName() {
+        name.setLength(0);
+        while (position < length) {
+            byte b = data[position];
+            if (b == '>' || b == '/' || b == ' ' || b == '\t' || b == '\r' || b == '\n') {
+                break;
+            }
+            name.append((char) b);
+            position++;
+        }
+    }
+
+    /**
+     * Read text up to the next tag.
+     *
+     * @return false if the text consisted of whitespace only
+     */
+    private boolean readText() {
+        text.setLength(0);
+        while (position < length && data[position] != '<') {
+            byte b = data[position];
+            if (b == '&') {
+                position = readEntity(position);
+            } else {
+                text.append((char) (b & 0xFF));
+                position++;
+            }
+        }
+
+        int end = text.length();
+        while (end > 0 && Character.isWhitespace(text.charAt(end - 1))) {
+            end--;
+        }
+        int start = 0;
+        while (start < end && Character.isWhitespace(text.charAt(start))) {
+            start++;
+        }
+        if (start == end) {
+            return false;
+        }
+        text.setLength(end);
+        text.delete(0, start);
+        return true;
+    }
+
+    private int readEntity(int start) {
+        int end = start + 1;
+        while (end < length && end - start < 8 && data[end] != ';') {
+            end++;
+        }
+        if (end >= length || data[end] != ';') {
+            text.append('&');
+            return start + 1;
+        }
+
+        String entity = new String(data, start + 1, end - start - 1, StandardCharsets.US_ASCII);
+        switch (entity) {
+            case "amp" -> text.append('&');
+            case "lt" -> text.append('<');
+            case "gt" -> text.append('>');
+            case "quot" -> text.append('"');
+            case "apos" -> text.append('\'');
+            default -> text.append('&').append(entity).append(';');
+        }
+        return end + 1;
+    }
+
+    private void skipPast(String terminator) throws IOException {
+        int last = length - terminator.length();
+        for (; position <= last; position++) {
+            boolean matches = true;
+            for (int i = 0; i < terminator.length(); i++) {
+                if (data[position + i] != terminator.charAt(i)) {
+                    matches = false;
+                    break;
+                }
+            }
+            if (matches) {
+                position += terminator.length();
+                return;
+            }
+        }
+        throw new IOException("Expected '" + terminator + "' before the end of the document");
+    }
+}